@@ -3,6 +3,7 @@
 import java.io.Serializable;
 
 import io.github.javactrl.rt.CThrowable;
+import io.github.javactrl.rt.CallFrame;
 import io.github.javactrl.rt.Unwind;
 
 /**
@@ -23,10 +24,14 @@ public interface CRunnable extends Serializable {
    * @param body the code to execute
    */
   static void brackets(CRunnable body) {
+    CallFrame._enterCapture();
     try {
       body.run();
     } catch(Unwind t) {
       t.boundary();
-    } catch (CThrowable e) {}
+    } catch (CThrowable e) {
+    } finally {
+      CallFrame._exitCapture();
+    }
   }
 }
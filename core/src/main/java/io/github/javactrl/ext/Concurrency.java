@@ -87,9 +87,9 @@ void fork(final CRunnable body) throws CThrowable {
           token.head = null;
           if (ignoreResult) {
             if (windToken != null)
-              frame.wind(windToken);
+              frame.windOnce(windToken);
           } else {
-            frame.wind(ex == null ? Wind.createReturn(getResult()) : Wind.createThrow(ex));
+            frame.windOnce(ex == null ? Wind.createReturn(getResult()) : Wind.createThrow(ex));
           }
         }
       }
@@ -0,0 +1,523 @@
+package io.github.javactrl.instrument;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.lang.String.format;
+
+/**
+ * AOT instrumentation of a whole jar file or classes directory.
+ *
+ * The class files are instrumented in parallel on the common {@link java.util.concurrent.ForkJoinPool},
+ * so they must not depend on {@link Transform#callPredicate}, the predicate is passed to
+ * {@link Transform#instrumentClass(byte[], CallPredicate)} instead. A jar's entries which aren't
+ * changed by the instrumentation (resources and classes without suspending methods) are copied with
+ * their compressed data as is. The signature files of a signed jar are removed if any class is
+ * changed, so the output isn't signed.
+ *
+ * The output records a hash of the input's content and the instrumentation's options (the
+ * <code>META-INF/javactrl.stamp</code> entry of a jar, and <code>&lt;output&gt;.javactrl</code> file
+ * near an output directory), so the next run with the same input and options doesn't do anything. The
+ * class path entries are hashed by their sizes and modification times only, and directories in
+ * the class path by their names.
+ */
+public final class BatchTransform {
+  /* the prefix of the hash recorded in the outputs */
+  private static final String STAMP = "javactrl ";
+  /* the output jar's entry with the hash */
+  private static final byte[] STAMP_ENTRY = "META-INF/javactrl.stamp".getBytes(StandardCharsets.UTF_8);
+  /* zip format signatures */
+  private static final int LOCAL_HEADER = 0x04034b50;
+  private static final int CENTRAL_HEADER = 0x02014b50;
+  private static final int END_HEADER = 0x06054b50;
+  private static final int END_SIZE = 22;
+  private static final int STORED = 0;
+  private static final int DEFLATED = 8;
+  /* the flag for sizes and CRC written after the data, the output always has them in the headers */
+  private static final int DATA_DESCRIPTOR = 8;
+
+  private final CallPredicate callPredicate;
+  private final AtomicInteger instrumented = new AtomicInteger();
+  private final AtomicInteger copied = new AtomicInteger();
+  private boolean upToDate;
+
+  /* a zip entry, with the fields of its central directory header */
+  private static final class Entry {
+    int versionMadeBy;
+    int versionNeeded;
+    int flags;
+    int method;
+    int time;
+    int date;
+    long crc;
+    long compressedSize;
+    long size;
+    int internalAttributes;
+    long externalAttributes;
+    byte[] name;
+    byte[] extra;
+    byte[] comment;
+    /* the local header's extra field and the data's position in the input */
+    byte[] localExtra;
+    long dataOffset;
+    /* the instrumented class, compressed */
+    byte[] data;
+  }
+
+  /**
+   * Constructor, the options are read when an input is instrumented, so they must be set before
+   *
+   * @param callPredicate selects calls which can suspend, it's called from several threads
+   */
+  public BatchTransform(final CallPredicate callPredicate) {
+    this.callPredicate = callPredicate;
+  }
+
+  /**
+   * Instruments a jar file (if the input's name ends with <code>.jar</code>, <code>.zip</code> or
+   * <code>.war</code>) or a directory with class files
+   *
+   * @param input input jar or directory
+   * @param output output jar or directory, it must be different from the input
+   * @throws IOException on IO errors, or if the input isn't a valid archive
+   */
+  public void instrument(final Path input, final Path output) throws IOException {
+    if (Files.exists(output) && Files.isSameFile(input, output))
+      throw new IOException(format("the output %s is the same as the input", output));
+    if (Files.isDirectory(input))
+      instrumentDirectory(input, output);
+    else if (isArchive(input))
+      instrumentArchive(input, output);
+    else
+      throw new IOException(format("%s is neither a directory nor a jar file", input));
+  }
+
+  /**
+   * Checks if the path names a jar file
+   *
+   * @param path the path to check
+   * @return {@literal true} if the name ends with <code>.jar</code>, <code>.zip</code> or
+   *         <code>.war</code>
+   */
+  public static boolean isArchive(final Path path) {
+    final var name = path.getFileName().toString().toLowerCase();
+    return name.endsWith(".jar") || name.endsWith(".zip") || name.endsWith(".war");
+  }
+
+  /**
+   * The number of classes changed by the last runs
+   *
+   * @return the counter's value
+   */
+  public int instrumented() {
+    return instrumented.get();
+  }
+
+  /**
+   * The number of files and entries copied unchanged by the last runs
+   *
+   * @return the counter's value
+   */
+  public int copied() {
+    return copied.get();
+  }
+
+  /**
+   * Checks if the last run didn't do anything because the output was already up to date
+   *
+   * @return {@literal true} if the output was skipped
+   */
+  public boolean upToDate() {
+    return upToDate;
+  }
+
+  /* the hash of the instrumentation's options and the class path, the input is added after */
+  private static MessageDigest digest() {
+    try {
+      final var ret = MessageDigest.getInstance("SHA-256");
+      ret.update(BytecodeCache.configuration().getBytes(StandardCharsets.UTF_8));
+      if (Main.classPath != null) {
+        for (final var i : Main.classPath.split(File.pathSeparator)) {
+          final var file = new File(i);
+          ret.update(format("%s %d %d\n", i, file.isFile() ? file.length() : 0, file.lastModified())
+              .getBytes(StandardCharsets.UTF_8));
+        }
+      }
+      return ret;
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(final byte[] hash) {
+    final var ret = new StringBuilder(STAMP);
+    for (final var i : hash)
+      ret.append(format("%02x", i));
+    return ret.toString();
+  }
+
+  private void instrumentDirectory(final Path input, final Path output) throws IOException {
+    final List<Path> files;
+    try (final var walk = Files.walk(input)) {
+      files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    final var digest = digest();
+    for (final var i : files) {
+      digest.update(input.relativize(i).toString().getBytes(StandardCharsets.UTF_8));
+      digest.update(Files.readAllBytes(i));
+    }
+    final var hash = hex(digest.digest());
+    final var stamp = output.resolveSibling(output.getFileName() + ".javactrl");
+    upToDate = Files.isDirectory(output) && readStamp(stamp).equals(hash);
+    if (upToDate)
+      return;
+    try {
+      files.parallelStream().forEach(i -> {
+        try {
+          final var path = input.relativize(i).toString();
+          final var target = output.resolve(path);
+          Files.createDirectories(target.getParent());
+          final var result = isInstrumentable(path.replace(File.separatorChar, '/'))
+              ? Transform.instrumentClass(Files.readAllBytes(i), callPredicate)
+              : null;
+          if (result == null) {
+            Files.copy(i, target, StandardCopyOption.REPLACE_EXISTING);
+            copied.incrementAndGet();
+          } else {
+            Files.write(target, result);
+            instrumented.incrementAndGet();
+          }
+        } catch (final IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (final UncheckedIOException e) {
+      throw e.getCause();
+    }
+    removeStale(input, files, output);
+    Files.writeString(stamp, hash);
+  }
+
+  /* removes the output's files without a source in the input, e.g. of the classes deleted since the last run */
+  private static void removeStale(final Path input, final List<Path> files, final Path output) throws IOException {
+    final var sources = files.stream().map(input::relativize).collect(Collectors.toSet());
+    final List<Path> stale;
+    try (final var walk = Files.walk(output)) {
+      stale = walk.filter(i -> Files.isRegularFile(i) && !sources.contains(output.relativize(i)))
+          .collect(Collectors.toList());
+    }
+    for (final var i : stale)
+      Files.delete(i);
+  }
+
+  private static String readStamp(final Path stamp) throws IOException {
+    try {
+      return Files.readString(stamp);
+    } catch (final NoSuchFileException e) {
+      return "";
+    }
+  }
+
+  private void instrumentArchive(final Path input, final Path output) throws IOException {
+    try (final var channel = FileChannel.open(input)) {
+      if (channel.size() > Integer.MAX_VALUE)
+        throw new IOException(format("%s is too large", input));
+      final var map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      map.order(ByteOrder.LITTLE_ENDIAN);
+      final var digest = digest();
+      digest.update(map.duplicate());
+      final var hash = hex(digest.digest());
+      upToDate = Files.isRegularFile(output) && readArchiveStamp(output).equals(hash);
+      if (upToDate)
+        return;
+      final var entries = readEntries(input, map);
+      /* the input may be an output of a previous instrumentation */
+      entries.removeIf(i -> Arrays.equals(i.name, STAMP_ENTRY));
+      try {
+        entries.parallelStream().forEach(i -> {
+          if (isClass(i))
+            instrumentEntry(map, i);
+        });
+      } catch (final UncheckedIOException e) {
+        throw e.getCause();
+      }
+      /* the signatures don't match the instrumented classes, so the output isn't signed */
+      if (entries.stream().anyMatch(i -> i.data != null))
+        entries.removeIf(BatchTransform::isSignature);
+      final var dir = Files.createDirectories(output.toAbsolutePath().getParent());
+      final var temp = Files.createTempFile(dir, "javactrl", ".tmp");
+      try {
+        try (final var out = new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16)) {
+          entries.add(stampEntry(hash));
+          writeArchive(map, entries, comment(map), out);
+        }
+        Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    }
+  }
+
+  private static boolean isClass(final Entry entry) {
+    return (entry.method == STORED || entry.method == DEFLATED)
+        && isInstrumentable(new String(entry.name, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Checks if the file is a class file not excluded by {@link Main#predicate}
+   *
+   * @param path the file's path relative to the classes root, with <code>/</code> separators
+   * @return {@literal true} if the file must be passed to the instrumentation
+   */
+  public static boolean isInstrumentable(final String path) {
+    return path.endsWith(".class") && !Main.predicate.test(path.substring(0, path.length() - ".class".length()));
+  }
+
+  /* a signed jar's signature file or signature block */
+  private static boolean isSignature(final Entry entry) {
+    final var name = new String(entry.name, StandardCharsets.UTF_8).toUpperCase(Locale.ROOT);
+    return name.startsWith("META-INF/") && name.indexOf('/', "META-INF/".length()) < 0
+        && (name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC"));
+  }
+
+  private static String readArchiveStamp(final Path archive) throws IOException {
+    try (final var channel = FileChannel.open(archive)) {
+      if (channel.size() > Integer.MAX_VALUE)
+        return "";
+      final var map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      map.order(ByteOrder.LITTLE_ENDIAN);
+      final List<Entry> entries;
+      try {
+        entries = readEntries(archive, map);
+      } catch (final IOException e) {
+        /* it's written again anyway */
+        return "";
+      }
+      for (final var i : entries) {
+        if (i.method == STORED && Arrays.equals(i.name, STAMP_ENTRY))
+          return new String(bytes(map, i.dataOffset, (int) i.compressedSize), StandardCharsets.UTF_8);
+      }
+      return "";
+    }
+  }
+
+  /* the hash's entry, with a fixed date, so the output doesn't depend on the time */
+  private static Entry stampEntry(final String hash) {
+    final var ret = new Entry();
+    ret.versionMadeBy = 20;
+    ret.versionNeeded = 10;
+    ret.method = STORED;
+    ret.date = (1 << 5) | 1;
+    ret.data = hash.getBytes(StandardCharsets.UTF_8);
+    final var crc = new CRC32();
+    crc.update(ret.data);
+    ret.crc = crc.getValue();
+    ret.size = ret.data.length;
+    ret.compressedSize = ret.data.length;
+    ret.name = STAMP_ENTRY;
+    ret.extra = new byte[0];
+    ret.comment = new byte[0];
+    ret.localExtra = new byte[0];
+    return ret;
+  }
+
+  /* the archive's comment, the end of central directory record must be there */
+  private static byte[] comment(final ByteBuffer map) {
+    final var end = findEnd(map);
+    return bytes(map, end + END_SIZE, map.getShort(end + 20) & 0xffff);
+  }
+
+  /* the end of central directory record's position, or -1 */
+  private static int findEnd(final ByteBuffer map) {
+    final var limit = Math.max(0, map.limit() - END_SIZE - 0xffff);
+    for (var i = map.limit() - END_SIZE; i >= limit; --i) {
+      if (map.getInt(i) == END_HEADER && i + END_SIZE + (map.getShort(i + 20) & 0xffff) == map.limit())
+        return i;
+    }
+    return -1;
+  }
+
+  private static byte[] bytes(final ByteBuffer map, final long offset, final int length) {
+    final var ret = new byte[length];
+    map.duplicate().position((int) offset).get(ret);
+    return ret;
+  }
+
+  private static List<Entry> readEntries(final Path input, final MappedByteBuffer map) throws IOException {
+    final var end = findEnd(map);
+    if (end < 0)
+      throw new IOException(format("%s isn't a zip file", input));
+    final var count = map.getShort(end + 10) & 0xffff;
+    var pos = map.getInt(end + 16) & 0xffffffffL;
+    if (count == 0xffff || pos == 0xffffffffL)
+      throw new IOException(format("%s is a ZIP64 archive, they aren't supported", input));
+    final var ret = new ArrayList<Entry>(count);
+    for (var i = 0; i < count; ++i) {
+      final var p = (int) pos;
+      if (map.getInt(p) != CENTRAL_HEADER)
+        throw new IOException(format("%s has a broken central directory", input));
+      final var entry = new Entry();
+      entry.versionMadeBy = map.getShort(p + 4) & 0xffff;
+      entry.versionNeeded = map.getShort(p + 6) & 0xffff;
+      entry.flags = map.getShort(p + 8) & 0xffff;
+      entry.method = map.getShort(p + 10) & 0xffff;
+      entry.time = map.getShort(p + 12) & 0xffff;
+      entry.date = map.getShort(p + 14) & 0xffff;
+      entry.crc = map.getInt(p + 16) & 0xffffffffL;
+      entry.compressedSize = map.getInt(p + 20) & 0xffffffffL;
+      entry.size = map.getInt(p + 24) & 0xffffffffL;
+      final var nameLength = map.getShort(p + 28) & 0xffff;
+      final var extraLength = map.getShort(p + 30) & 0xffff;
+      final var commentLength = map.getShort(p + 32) & 0xffff;
+      entry.internalAttributes = map.getShort(p + 36) & 0xffff;
+      entry.externalAttributes = map.getInt(p + 38) & 0xffffffffL;
+      final var local = map.getInt(p + 42) & 0xffffffffL;
+      entry.name = bytes(map, p + 46, nameLength);
+      entry.extra = bytes(map, p + 46 + nameLength, extraLength);
+      entry.comment = bytes(map, p + 46 + nameLength + extraLength, commentLength);
+      if (map.getInt((int) local) != LOCAL_HEADER)
+        throw new IOException(format("%s has a broken local header", input));
+      final var localExtraLength = map.getShort((int) local + 28) & 0xffff;
+      entry.localExtra = bytes(map, local + 30 + (map.getShort((int) local + 26) & 0xffff), localExtraLength);
+      entry.dataOffset = local + 30 + (map.getShort((int) local + 26) & 0xffff) + localExtraLength;
+      ret.add(entry);
+      pos += 46 + nameLength + extraLength + commentLength;
+    }
+    return ret;
+  }
+
+  /* runs in a pool's thread, keeps the result only if the class is changed */
+  private void instrumentEntry(final ByteBuffer map, final Entry entry) {
+    final var compressed = bytes(map, entry.dataOffset, (int) entry.compressedSize);
+    byte[] data;
+    if (entry.method == STORED) {
+      data = compressed;
+    } else {
+      final var inflater = new Inflater(true);
+      try {
+        inflater.setInput(compressed);
+        data = new byte[(int) entry.size];
+        for (var n = 0; n < data.length && !inflater.finished();) {
+          final var read = inflater.inflate(data, n, data.length - n);
+          if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+            break;
+          n += read;
+        }
+      } catch (final DataFormatException e) {
+        throw new UncheckedIOException(new IOException(
+            format("broken entry %s", new String(entry.name, StandardCharsets.UTF_8)), e));
+      } finally {
+        inflater.end();
+      }
+    }
+    final var result = Transform.instrumentClass(data, callPredicate);
+    if (result == null)
+      return;
+    final var crc = new CRC32();
+    crc.update(result);
+    entry.crc = crc.getValue();
+    entry.size = result.length;
+    if (entry.method == STORED) {
+      entry.data = result;
+    } else {
+      final var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      try {
+        deflater.setInput(result);
+        deflater.finish();
+        final var out = new ByteArrayOutputStream(result.length);
+        final var buf = new byte[8192];
+        while (!deflater.finished())
+          out.write(buf, 0, deflater.deflate(buf));
+        entry.data = out.toByteArray();
+      } finally {
+        deflater.end();
+      }
+    }
+    entry.compressedSize = entry.data.length;
+    instrumented.incrementAndGet();
+  }
+
+  private void writeArchive(final ByteBuffer map, final List<Entry> entries, final byte[] comment,
+      final OutputStream out) throws IOException {
+    final var header = ByteBuffer.allocate(46).order(ByteOrder.LITTLE_ENDIAN);
+    final var offsets = new long[entries.size()];
+    var pos = 0L;
+    for (var i = 0; i < entries.size(); ++i) {
+      final var entry = entries.get(i);
+      if (entry.data == null)
+        copied.incrementAndGet();
+      offsets[i] = pos;
+      header.clear();
+      header.putInt(LOCAL_HEADER).putShort((short) entry.versionNeeded)
+          .putShort((short) (entry.flags & ~DATA_DESCRIPTOR)).putShort((short) entry.method)
+          .putShort((short) entry.time).putShort((short) entry.date).putInt((int) entry.crc)
+          .putInt((int) entry.compressedSize).putInt((int) entry.size).putShort((short) entry.name.length)
+          .putShort((short) entry.localExtra.length);
+      out.write(header.array(), 0, header.position());
+      out.write(entry.name);
+      out.write(entry.localExtra);
+      if (entry.data != null) {
+        out.write(entry.data);
+      } else {
+        final var data = map.duplicate().position((int) entry.dataOffset);
+        final var buf = new byte[(int) Math.min(entry.compressedSize, 1 << 16)];
+        for (var left = entry.compressedSize; left > 0; left -= buf.length) {
+          final var n = (int) Math.min(left, buf.length);
+          data.get(buf, 0, n);
+          out.write(buf, 0, n);
+        }
+      }
+      pos += 30 + entry.name.length + entry.localExtra.length + entry.compressedSize;
+      if (pos > 0xffffffffL)
+        throw new IOException("the output needs ZIP64, it isn't supported");
+    }
+    final var directory = pos;
+    for (var i = 0; i < entries.size(); ++i) {
+      final var entry = entries.get(i);
+      header.clear();
+      header.putInt(CENTRAL_HEADER).putShort((short) entry.versionMadeBy).putShort((short) entry.versionNeeded)
+          .putShort((short) (entry.flags & ~DATA_DESCRIPTOR)).putShort((short) entry.method)
+          .putShort((short) entry.time).putShort((short) entry.date).putInt((int) entry.crc)
+          .putInt((int) entry.compressedSize).putInt((int) entry.size).putShort((short) entry.name.length)
+          .putShort((short) entry.extra.length).putShort((short) entry.comment.length).putShort((short) 0)
+          .putShort((short) entry.internalAttributes).putInt((int) entry.externalAttributes)
+          .putInt((int) offsets[i]);
+      out.write(header.array(), 0, header.position());
+      out.write(entry.name);
+      out.write(entry.extra);
+      out.write(entry.comment);
+      pos += 46 + entry.name.length + entry.extra.length + entry.comment.length;
+    }
+    header.clear();
+    header.putInt(END_HEADER).putShort((short) 0).putShort((short) 0).putShort((short) entries.size())
+        .putShort((short) entries.size()).putInt((int) (pos - directory)).putInt((int) directory)
+        .putShort((short) comment.length);
+    out.write(header.array(), 0, header.position());
+    out.write(comment);
+  }
+}
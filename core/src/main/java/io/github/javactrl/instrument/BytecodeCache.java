@@ -0,0 +1,297 @@
+package io.github.javactrl.instrument;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.String.format;
+
+/**
+ * Instrumented classes stored in a directory, so the next JVM starts don't run the instrumentation
+ * for the same input again (see <code>cache</code> agent option).
+ *
+ * An entry's name is a hash of the input class, javactrl's version, the agent's jar and the
+ * instrumentation's options. The output also depends on the call predicate's answers about other
+ * classes (see {@link SuspendabilityIndex}), so the entry keeps the questions asked while
+ * instrumenting, and it's used only if the current predicate gives the same answers. The class
+ * name filter ({@link Main#predicate}) is a part of the options, so it must be {@link PrefixRules}
+ * with a {@link PrefixRules#key()}.
+ *
+ * A used entry's modification time is updated, and when the cache is opened, the entries not used
+ * for longer than the maximal age are removed, and then the least recently used ones until the
+ * entries' total size is within the bound.
+ */
+public final class BytecodeCache {
+  /* the entries' format version */
+  private static final int MAGIC = 0x6a637431;
+  /** the entries' total size bound of {@link #BytecodeCache(Path)} */
+  public static final long MAX_SIZE = 256L << 20;
+  /** the time an entry is kept since its last use by {@link #BytecodeCache(Path)} */
+  public static final Duration MAX_AGE = Duration.ofDays(30);
+
+  private final Path dir;
+  private final byte[] configuration;
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+
+  /* a call predicate's question with its answer */
+  private static final class Query {
+    final String owner;
+    final String name;
+    final String descriptor;
+    final boolean answer;
+
+    Query(final String owner, final String name, final String descriptor, final boolean answer) {
+      this.owner = owner;
+      this.name = name;
+      this.descriptor = descriptor;
+      this.answer = answer;
+    }
+  }
+
+  /* an entry's file with its last use time and size */
+  private static final class Stored {
+    final Path file;
+    final long time;
+    final long size;
+
+    Stored(final Path file, final long time, final long size) {
+      this.file = file;
+      this.time = time;
+      this.size = size;
+    }
+  }
+
+  /**
+   * Constructor, the options are read here, so they must be set before
+   *
+   * @param dir the cache's directory, it's created if it doesn't exist
+   * @throws IOException if the directory can't be created
+   * @throws IllegalStateException if {@link Main#predicate} can't be a part of the entries' key
+   */
+  public BytecodeCache(final Path dir) throws IOException {
+    this(dir, MAX_SIZE, MAX_AGE);
+  }
+
+  /**
+   * Constructor, the options are read here, so they must be set before
+   *
+   * @param dir the cache's directory, it's created if it doesn't exist
+   * @param maxSize the entries' total size bound in bytes
+   * @param maxAge the time an entry is kept since its last use
+   * @throws IOException if the directory can't be created or read
+   * @throws IllegalStateException if {@link Main#predicate} can't be a part of the entries' key
+   */
+  public BytecodeCache(final Path dir, final long maxSize, final Duration maxAge) throws IOException {
+    if (predicateKey() == null)
+      throw new IllegalStateException(format("the class name filter %s can't be a cache's key, it must be PrefixRules",
+          Main.predicate));
+    this.dir = Files.createDirectories(dir);
+    this.configuration = configuration().getBytes(StandardCharsets.UTF_8);
+    evict(maxSize, maxAge);
+  }
+
+  /* `Main.predicate`'s description which is the same in each JVM, or {@literal null} */
+  static String predicateKey() {
+    return Main.predicate instanceof PrefixRules ? ((PrefixRules) Main.predicate).key() : null;
+  }
+
+  /* the javactrl's version and build, and the instrumentation's options */
+  static String configuration() {
+    final var ret = new StringBuilder();
+    ret.append(Main.class.getPackage().getImplementationVersion()).append('\n');
+    try {
+      final var location = new File(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+      if (location.isFile())
+        ret.append(location.length()).append(' ').append(location.lastModified()).append('\n');
+    } catch (final Exception e) {
+      ret.append("unknown location\n");
+    }
+    ret.append("USE_INDEX=").append(Main.USE_INDEX).append('\n');
+    /* without the key, an AOT output is never up to date, and the cache refuses the predicate */
+    final var predicate = predicateKey();
+    ret.append("predicate=").append(predicate == null ? Main.predicate : predicate).append('\n');
+    for (final var field : Transform.class.getFields()) {
+      final var type = field.getType();
+      if (!Modifier.isStatic(field.getModifiers())
+          || !(type.isPrimitive() || type == String.class || type == Profile.class))
+        continue;
+      try {
+        ret.append(field.getName()).append('=').append(field.get(null)).append('\n');
+      } catch (final IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return ret.toString();
+  }
+
+  /**
+   * Returns the cached instrumentation's result, or instruments the class and stores the result
+   *
+   * @param data input bytecode
+   * @param callPredicate selects calls which can suspend
+   * @return instrumented bytecode or {@literal null} if nothing is changed there
+   */
+  @SuppressWarnings("CallToPrintStackTrace")
+  public byte[] instrumentClass(final byte[] data, final CallPredicate callPredicate) {
+    final var file = dir.resolve(key(data));
+    try {
+      final var entry = Files.readAllBytes(file);
+      final var in = new DataInputStream(new ByteArrayInputStream(entry));
+      if (in.readInt() == MAGIC) {
+        var valid = true;
+        for (var i = in.readInt(); i > 0 && valid; --i) {
+          final var owner = in.readUTF();
+          final var name = in.readUTF();
+          final var descriptor = in.readUTF();
+          valid = callPredicate.test(owner, name, descriptor.isEmpty() ? null : descriptor) == in.readBoolean();
+        }
+        if (valid) {
+          hits.incrementAndGet();
+          touch(file);
+          final var length = in.readInt();
+          return length < 0 ? null : in.readNBytes(length);
+        }
+      }
+    } catch (final NoSuchFileException e) {
+      /* not cached yet */
+    } catch (final IOException e) {
+      e.printStackTrace();
+    }
+    misses.incrementAndGet();
+    final var queries = new LinkedHashMap<String, Query>();
+    final var ret = Transform.instrumentClass(data, new CallPredicate() {
+      @Override
+      public boolean test(final String owner, final String name) {
+        return test(owner, name, null);
+      }
+
+      @Override
+      public boolean test(final String owner, final String name, final String descriptor) {
+        final var answer = callPredicate.test(owner, name, descriptor);
+        queries.putIfAbsent(format("%s.%s%s", owner, name, descriptor),
+            new Query(owner, name, descriptor, answer));
+        return answer;
+      }
+    });
+    try {
+      store(file, queries.values(), ret);
+    } catch (final IOException e) {
+      e.printStackTrace();
+    }
+    return ret;
+  }
+
+  /* marks the entry as used, for the eviction */
+  private static void touch(final Path file) {
+    try {
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (final IOException e) {
+      /* e.g. another JVM has just removed it */
+    }
+  }
+
+  /* removes the entries (and other JVMs' abandoned temporary files) unused for `maxAge`, then the oldest above `maxSize` */
+  private void evict(final long maxSize, final Duration maxAge) throws IOException {
+    final var files = new ArrayList<Stored>();
+    var total = 0L;
+    try (final var list = Files.list(dir)) {
+      for (final var i : (Iterable<Path>) list::iterator) {
+        try {
+          final var attributes = Files.readAttributes(i, BasicFileAttributes.class);
+          if (!attributes.isRegularFile())
+            continue;
+          files.add(new Stored(i, attributes.lastModifiedTime().toMillis(), attributes.size()));
+          total += attributes.size();
+        } catch (final NoSuchFileException e) {
+          /* removed by another JVM */
+        }
+      }
+    }
+    files.sort(Comparator.comparingLong(i -> i.time));
+    final var oldest = System.currentTimeMillis() - maxAge.toMillis();
+    for (final var i : files) {
+      if (i.time >= oldest && total <= maxSize)
+        break;
+      Files.deleteIfExists(i.file);
+      total -= i.size;
+    }
+  }
+
+  /* the entry is written into a temporary file first, so other JVMs never read a partial one */
+  private void store(final Path file, final Collection<Query> queries, final byte[] result) throws IOException {
+    final var bytes = new ByteArrayOutputStream();
+    final var out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(queries.size());
+    for (final var i : queries) {
+      out.writeUTF(i.owner);
+      out.writeUTF(i.name);
+      out.writeUTF(i.descriptor == null ? "" : i.descriptor);
+      out.writeBoolean(i.answer);
+    }
+    out.writeInt(result == null ? -1 : result.length);
+    if (result != null)
+      out.write(result);
+    out.flush();
+    final var temp = Files.createTempFile(dir, "entry", ".tmp");
+    try {
+      Files.write(temp, bytes.toByteArray());
+      Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private String key(final byte[] data) {
+    try {
+      final var digest = MessageDigest.getInstance("SHA-256");
+      digest.update(configuration);
+      final var hash = digest.digest(data);
+      final var ret = new StringBuilder();
+      for (final var i : hash)
+        ret.append(format("%02x", i));
+      return ret.toString();
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * The number of classes returned from the cache
+   *
+   * @return the counter's value
+   */
+  public int hits() {
+    return hits.get();
+  }
+
+  /**
+   * The number of classes instrumented because they weren't in the cache, or the cached entry
+   * was outdated
+   *
+   * @return the counter's value
+   */
+  public int misses() {
+    return misses.get();
+  }
+}
@@ -13,4 +13,16 @@ public interface CallPredicate {
      * @return <code>true</code> if the method must be instrumented
      */
     boolean test(String owner, String name);
+
+    /**
+     * The same as {@link #test(String, String)} but also receives the called method's descriptor
+     * 
+     * @param owner Class name (internal)
+     * @param name Method name
+     * @param descriptor Method descriptor
+     * @return <code>true</code> if the method must be instrumented
+     */
+    default boolean test(String owner, String name, String descriptor) {
+        return test(owner, name);
+    }
 }
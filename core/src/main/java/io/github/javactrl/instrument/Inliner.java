@@ -0,0 +1,339 @@
+package io.github.javactrl.instrument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AnalyzerAdapter;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Replaces the calls of small suspendable methods of the same class with their bodies, so their
+ * suspending calls become states of the caller's frame (see {@link Transform#INLINE_CALLS}).
+ *
+ * The callees are static or private methods without <code>try-catch</code> blocks, so the
+ * caller's <code>Wind</code> and <code>Unwind</code> handlers around the call are the only ones
+ * around the inlined body, as they were for the callee's frame. The callee's locals are moved
+ * after the caller's ones, each inlined call gets its own registers range.
+ *
+ * The input must have expanded frames.
+ */
+final class Inliner extends AnalyzerAdapter {
+  /* the class's internal name */
+  private final String owner;
+  /* the inlinable methods by their names and descriptors */
+  private final Map<String, MethodNode> callees;
+  /* the first register of the next inlined body */
+  private int nextLocal;
+  /* the operand stack's size needed by the inlined bodies */
+  private int maxStack = 0;
+  /* the inlined bodies' calls aren't inlined */
+  private boolean inlining = false;
+  /* the caller's current line number, 0 if there is none */
+  private int line = 0;
+
+  /**
+   * Constructor
+   *
+   * @param owner the class's internal name
+   * @param access the caller's access flags
+   * @param name the caller's name
+   * @param descriptor the caller's descriptor
+   * @param maxLocals the caller's original locals number
+   * @param callees the inlinable methods (see {@link #callees})
+   * @param methodVisitor the next visitor
+   */
+  Inliner(final String owner, final int access, final String name, final String descriptor, final int maxLocals,
+      final Map<String, MethodNode> callees, final MethodVisitor methodVisitor) {
+    super(ASM9, owner, access, name, descriptor, methodVisitor);
+    this.owner = owner;
+    this.callees = callees;
+    this.nextLocal = maxLocals;
+  }
+
+  /**
+   * Selects the class's methods which calls can be inlined
+   *
+   * @param cls the class with expanded frames
+   * @return the methods by their names and descriptors
+   */
+  static Map<String, MethodNode> callees(final ClassNode cls) {
+    final var ret = new HashMap<String, MethodNode>();
+    if ((cls.access & ACC_INTERFACE) != 0)
+      return ret;
+    for (final var method : cls.methods) {
+      if (method.name.equals("<init>") || method.name.equals("<clinit>")
+          || method.exceptions == null || !method.exceptions.contains(Transform.CTRL_TOKEN)
+          || (method.access & (ACC_STATIC | ACC_PRIVATE)) == 0
+          || (method.access & (ACC_ABSTRACT | ACC_NATIVE | ACC_SYNCHRONIZED | ACC_BRIDGE)) != 0
+          || !method.tryCatchBlocks.isEmpty())
+        continue;
+      final var size = new CodeSizeEvaluator(null);
+      method.instructions.accept(size);
+      if (size.getMinSize() > Transform.MAX_INLINE_SIZE || !isInlinable(cls.name, method))
+        continue;
+      ret.put(method.name + method.desc, method);
+    }
+    return ret;
+  }
+
+  /*
+   * no subroutines, no recursion, and nothing is left on the operand stack on return, the callee
+   * can't throw by itself either, an `Unwind` thrown outside of a call can't be a caller's state
+   */
+  private static boolean isInlinable(final String owner, final MethodNode method) {
+    final var insns = method.instructions.toArray();
+    for (final var insn : insns) {
+      final var opcode = insn.getOpcode();
+      if (opcode == JSR || opcode == RET || opcode == ATHROW)
+        return false;
+      if (insn instanceof MethodInsnNode) {
+        final var call = (MethodInsnNode) insn;
+        if (call.owner.equals(owner) && call.name.equals(method.name) && call.desc.equals(method.desc))
+          return false;
+      }
+    }
+    try {
+      final var frames = new Analyzer<BasicValue>(new BasicInterpreter()).analyze(owner, method);
+      final var returnSize = Type.getReturnType(method.desc) == Type.VOID_TYPE ? 0 : 1;
+      for (var i = 0; i < insns.length; ++i) {
+        final var opcode = insns[i].getOpcode();
+        if (opcode >= IRETURN && opcode <= RETURN && frames[i] != null && frames[i].getStackSize() != returnSize)
+          return false;
+      }
+    } catch (AnalyzerException e) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Checks if the method calls anything inlinable
+   *
+   * @param owner the class's internal name
+   * @param method the caller
+   * @param callees the inlinable methods (see {@link #callees})
+   * @return {@literal true} if there is such a call
+   */
+  static boolean calls(final String owner, final MethodNode method, final Map<String, MethodNode> callees) {
+    for (final AbstractInsnNode insn : method.instructions) {
+      if (!(insn instanceof MethodInsnNode))
+        continue;
+      final var call = (MethodInsnNode) insn;
+      if (call.owner.equals(owner) && callees.containsKey(call.name + call.desc))
+        return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void visitMethodInsn(final int opcode, final String owner, final String name, final String descriptor,
+      final boolean isInterface) {
+    final var callee = inlining || !owner.equals(this.owner) ? null : callees.get(name + descriptor);
+    if (callee == null || locals == null || opcode == INVOKEINTERFACE
+        || (opcode == INVOKESTATIC) != ((callee.access & ACC_STATIC) != 0)) {
+      super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+      return;
+    }
+    final var argTypes = Type.getArgumentTypes(descriptor);
+    final var isStatic = opcode == INVOKESTATIC;
+    var argSlots = isStatic ? 0 : 1;
+    for (final var i : argTypes)
+      argSlots += i.getSize();
+    final var below = compress(stack.subList(0, stack.size() - argSlots));
+    final var callerLocals = new ArrayList<>(locals);
+    /* uninitialized objects can't be kept across the callee's branches */
+    for (final var i : below) {
+      if (i instanceof Label || i == UNINITIALIZED_THIS) {
+        super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        return;
+      }
+    }
+    final var base = nextLocal;
+    nextLocal += callee.maxLocals;
+    maxStack = Math.max(maxStack, stack.size() - argSlots + callee.maxStack + 2);
+    inlining = true;
+    /* # arguments to the callee's registers */
+    var slot = base + argSlots;
+    for (var i = argTypes.length - 1; i >= 0; --i) {
+      slot -= argTypes[i].getSize();
+      visitVarInsn(argTypes[i].getOpcode(ISTORE), slot);
+    }
+    if (!isStatic) {
+      /* the call would throw `NullPointerException` on a `null` receiver */
+      final var nonNull = new Label();
+      visitVarInsn(ASTORE, base);
+      visitVarInsn(ALOAD, base);
+      visitJumpInsn(IFNONNULL, nonNull);
+      visitInsn(ACONST_NULL);
+      visitInsn(ATHROW);
+      visitLabel(nonNull);
+      final var params = new ArrayList<Object>();
+      params.add(owner);
+      for (final var i : argTypes)
+        params.add(frameType(i));
+      final var frameLocals = frameLocals(callerLocals, base, params);
+      visitFrame(F_NEW, frameLocals.length, frameLocals, below.size(), below.toArray());
+      /* the callee's frame at its start can't be at the same offset */
+      visitInsn(NOP);
+    }
+    /* # the callee's body */
+    final var insns = callee.instructions;
+    var returns = 0;
+    var lastReturn = false;
+    var startFrame = false;
+    var started = false;
+    for (final var insn : insns) {
+      final var code = insn.getOpcode();
+      if (code >= IRETURN && code <= RETURN) {
+        ++returns;
+        lastReturn = true;
+      } else if (code >= 0) {
+        lastReturn = false;
+      } else if (!started && insn instanceof FrameNode) {
+        startFrame = true;
+      }
+      started |= code >= 0;
+    }
+    /* the caller's frame may be at the same offset */
+    if (startFrame && isStatic)
+      visitInsn(NOP);
+    final var totalReturns = returns;
+    final var skipLastReturn = lastReturn;
+    final var end = new Label();
+    final var returnType = Type.getReturnType(descriptor);
+    insns.resetLabels();
+    final var replay = new MethodVisitor(ASM9, this) {
+      int returnsCount = 0;
+      boolean jumps = false;
+
+      @Override
+      public void visitFrame(final int type, final int numLocal, final Object[] local, final int numStack,
+          final Object[] stack) {
+        final var frameLocals = frameLocals(callerLocals, base, Arrays.asList(local).subList(0, numLocal));
+        final var frameStack = new ArrayList<Object>(below);
+        for (var i = 0; i < numStack; ++i)
+          frameStack.add(stack[i]);
+        super.visitFrame(F_NEW, frameLocals.length, frameLocals, frameStack.size(), frameStack.toArray());
+      }
+
+      @Override
+      public void visitInsn(final int opcode) {
+        if (opcode < IRETURN || opcode > RETURN) {
+          super.visitInsn(opcode);
+          return;
+        }
+        if (++returnsCount == totalReturns && skipLastReturn)
+          return;
+        jumps = true;
+        super.visitJumpInsn(GOTO, end);
+      }
+
+      @Override
+      public void visitVarInsn(final int opcode, final int varIndex) {
+        super.visitVarInsn(opcode, varIndex + base);
+      }
+
+      @Override
+      public void visitIincInsn(final int varIndex, final int increment) {
+        super.visitIincInsn(varIndex + base, increment);
+      }
+
+    };
+    insns.accept(replay);
+    if (replay.jumps || !skipLastReturn) {
+      visitLabel(end);
+      final var frameLocals = compress(callerLocals).toArray();
+      final var frameStack = new ArrayList<Object>(below);
+      if (returnType != Type.VOID_TYPE)
+        frameStack.add(frameType(returnType));
+      visitFrame(F_NEW, frameLocals.length, frameLocals, frameStack.size(), frameStack.toArray());
+      /* a frame of the caller may follow */
+      visitInsn(NOP);
+    }
+    /* the callee's line numbers are kept, they are in the same source file, then the caller's one is restored */
+    if (line > 0) {
+      final var back = new Label();
+      visitLabel(back);
+      visitLineNumber(line, back);
+    }
+    for (final LocalVariableNode i : callee.localVariables)
+      visitLocalVariable(i.name, i.desc, i.signature, i.start.getLabel(), i.end.getLabel(), i.index + base);
+    inlining = false;
+  }
+
+  @Override
+  public void visitLineNumber(final int line, final Label start) {
+    if (!inlining)
+      this.line = line;
+    super.visitLineNumber(line, start);
+  }
+
+  @Override
+  public void visitMaxs(final int maxStack, final int maxLocals) {
+    super.visitMaxs(Math.max(maxStack, this.maxStack), Math.max(maxLocals, nextLocal));
+  }
+
+  /* the caller's locals followed by the callee's ones, in the frames' format */
+  private static Object[] frameLocals(final List<Object> callerLocals, final int base, final List<Object> calleeLocals) {
+    final var slots = new ArrayList<>(callerLocals.subList(0, Math.min(base, callerLocals.size())));
+    while (slots.size() < base)
+      slots.add(TOP);
+    for (final var i : calleeLocals) {
+      slots.add(i);
+      if (i == LONG || i == DOUBLE)
+        slots.add(TOP);
+    }
+    return compress(slots).toArray();
+  }
+
+  /* `AnalyzerAdapter` uses two elements for `long` and `double` values, the frames use one */
+  static List<Object> compress(final List<Object> types) {
+    final var ret = new ArrayList<>();
+    for (var i = 0; i < types.size(); ++i) {
+      final var type = types.get(i);
+      ret.add(type);
+      if (type == LONG || type == DOUBLE)
+        ++i;
+    }
+    return ret;
+  }
+
+  static Object frameType(final Type type) {
+    switch (type.getSort()) {
+      case Type.BOOLEAN:
+      case Type.CHAR:
+      case Type.BYTE:
+      case Type.SHORT:
+      case Type.INT:
+        return INTEGER;
+      case Type.FLOAT:
+        return FLOAT;
+      case Type.LONG:
+        return LONG;
+      case Type.DOUBLE:
+        return DOUBLE;
+      case Type.ARRAY:
+        return type.getDescriptor();
+      default:
+        return type.getInternalName();
+    }
+  }
+}
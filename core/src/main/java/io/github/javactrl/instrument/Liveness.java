@@ -0,0 +1,400 @@
+package io.github.javactrl.instrument;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Dataflow analysis of the original method's body. For each call it tells which locals can be
+ * read after the call, and which locals are constants or copies of other locals there.
+ *
+ * Locals are identified by their first register. The control flow graph is kept in arrays of
+ * instruction indexes, and the known values in arrays indexed by registers.
+ */
+final class Liveness {
+  /* marks the second register of `long` and `double` locals in the known values */
+  private static final Object SECOND = new Object();
+  private static final int[] NONE = new int[0];
+  /* the method's instructions */
+  private final AbstractInsnNode[] insns;
+  /* indexes of the method's call instructions */
+  private final int[] invokes;
+  /* locals which can be read before written starting from each instruction */
+  private final BitSet[] liveIn;
+  /*
+   * known values of locals before each instruction indexed by registers, it's either
+   * the instruction pushing a constant or an `Integer` index of the local it's copied from
+   */
+  private final Object[][] factsIn;
+
+  private Liveness(final AbstractInsnNode[] insns, final int[] invokes, final BitSet[] liveIn,
+      final Object[][] factsIn) {
+    this.insns = insns;
+    this.invokes = invokes;
+    this.liveIn = liveIn;
+    this.factsIn = factsIn;
+  }
+
+  /* FIFO of instruction indexes, each index is queued at most once */
+  private static final class Worklist {
+    final int[] items;
+    final BitSet queued;
+    int head = 0;
+    int count = 0;
+
+    Worklist(final int size) {
+      items = new int[Math.max(size, 1)];
+      queued = new BitSet(size);
+    }
+
+    void add(final int i) {
+      if (queued.get(i))
+        return;
+      queued.set(i);
+      items[(head + count++) % items.length] = i;
+    }
+
+    boolean isEmpty() {
+      return count == 0;
+    }
+
+    int poll() {
+      final var ret = items[head];
+      head = (head + 1) % items.length;
+      --count;
+      queued.clear(ret);
+      return ret;
+    }
+  }
+
+  /* reverses the edges */
+  private static int[][] reverse(final int[][] edges) {
+    final var counts = new int[edges.length];
+    for (final var i : edges) {
+      for (final var j : i)
+        ++counts[j];
+    }
+    final var ret = new int[edges.length][];
+    for (var i = 0; i < edges.length; ++i)
+      ret[i] = counts[i] == 0 ? NONE : new int[counts[i]];
+    Arrays.fill(counts, 0);
+    for (var i = 0; i < edges.length; ++i) {
+      for (final var j : edges[i])
+        ret[j][counts[j]++] = i;
+    }
+    return ret;
+  }
+
+  /**
+   * Runs the analysis
+   *
+   * @param method the original (not instrumented) method
+   * @return the result or {@literal null} if the method uses subroutines
+   */
+  static Liveness analyze(final MethodNode method) {
+    final var insns = method.instructions.toArray();
+    final var size = insns.length;
+    final var succs = new int[size][];
+    var invokeCount = 0;
+    /* registers of `long` and `double` locals at the method's end take two slots */
+    var registers = method.maxLocals + 1;
+    for (var i = 0; i < size; ++i) {
+      final var insn = insns[i];
+      final var opcode = insn.getOpcode();
+      if (opcode == JSR || opcode == RET)
+        return null;
+      if (insn instanceof MethodInsnNode)
+        ++invokeCount;
+      else if (insn instanceof VarInsnNode)
+        registers = Math.max(registers, ((VarInsnNode) insn).var + 2);
+      else if (insn instanceof IincInsnNode)
+        registers = Math.max(registers, ((IincInsnNode) insn).var + 2);
+      if (insn instanceof JumpInsnNode) {
+        final var target = method.instructions.indexOf(((JumpInsnNode) insn).label);
+        succs[i] = opcode == GOTO ? new int[] { target } : new int[] { target, i + 1 };
+      } else if (insn instanceof TableSwitchInsnNode) {
+        final var sw = (TableSwitchInsnNode) insn;
+        succs[i] = new int[sw.labels.size() + 1];
+        succs[i][0] = method.instructions.indexOf(sw.dflt);
+        for (var j = 0; j < sw.labels.size(); ++j)
+          succs[i][j + 1] = method.instructions.indexOf(sw.labels.get(j));
+      } else if (insn instanceof LookupSwitchInsnNode) {
+        final var sw = (LookupSwitchInsnNode) insn;
+        succs[i] = new int[sw.labels.size() + 1];
+        succs[i][0] = method.instructions.indexOf(sw.dflt);
+        for (var j = 0; j < sw.labels.size(); ++j)
+          succs[i][j + 1] = method.instructions.indexOf(sw.labels.get(j));
+      } else if ((opcode >= IRETURN && opcode <= RETURN) || opcode == ATHROW || i + 1 == size) {
+        succs[i] = NONE;
+      } else {
+        succs[i] = new int[] { i + 1 };
+      }
+    }
+    final var invokes = new int[invokeCount];
+    invokeCount = 0;
+    for (var i = 0; i < size; ++i) {
+      if (insns[i] instanceof MethodInsnNode)
+        invokes[invokeCount++] = i;
+    }
+    final var handlerCounts = new int[size];
+    for (final var i : method.tryCatchBlocks) {
+      for (int j = method.instructions.indexOf(i.start), end = method.instructions.indexOf(i.end); j < end; ++j)
+        ++handlerCounts[j];
+    }
+    final var handlers = new int[size][];
+    for (var i = 0; i < size; ++i)
+      handlers[i] = handlerCounts[i] == 0 ? NONE : new int[handlerCounts[i]];
+    Arrays.fill(handlerCounts, 0);
+    for (final var i : method.tryCatchBlocks) {
+      final var handler = method.instructions.indexOf(i.handler);
+      for (int j = method.instructions.indexOf(i.start), end = method.instructions.indexOf(i.end); j < end; ++j)
+        handlers[j][handlerCounts[j]++] = handler;
+    }
+    /* predecessors through both normal and exceptional edges */
+    final var edges = new int[size][];
+    for (var i = 0; i < size; ++i) {
+      if (handlers[i].length == 0) {
+        edges[i] = succs[i];
+      } else {
+        edges[i] = Arrays.copyOf(succs[i], succs[i].length + handlers[i].length);
+        System.arraycopy(handlers[i], 0, edges[i], succs[i].length, handlers[i].length);
+      }
+    }
+    final var preds = reverse(edges);
+    /* # backward liveness */
+    final var liveIn = new BitSet[size];
+    for (var i = 0; i < size; ++i)
+      liveIn[i] = new BitSet();
+    final var queue = new Worklist(size);
+    for (var i = size - 1; i >= 0; --i)
+      queue.add(i);
+    final var live = new BitSet();
+    while (!queue.isEmpty()) {
+      final var i = queue.poll();
+      live.clear();
+      for (final var j : succs[i])
+        live.or(liveIn[j]);
+      final var insn = insns[i];
+      if (insn instanceof VarInsnNode) {
+        final var varInsn = (VarInsnNode) insn;
+        if (varInsn.getOpcode() >= ISTORE)
+          live.clear(varInsn.var);
+        else
+          live.set(varInsn.var);
+      } else if (insn instanceof IincInsnNode) {
+        live.set(((IincInsnNode) insn).var);
+      }
+      for (final var j : handlers[i])
+        live.or(liveIn[j]);
+      if (live.equals(liveIn[i]))
+        continue;
+      liveIn[i] = (BitSet) live.clone();
+      for (final var j : preds[i])
+        queue.add(j);
+    }
+    /* # forward constants and copies */
+    final var factsIn = new Object[size][];
+    if (size > 0) {
+      factsIn[0] = new Object[registers];
+      queue.add(0);
+    }
+    while (!queue.isEmpty()) {
+      final var i = queue.poll();
+      final var in = factsIn[i];
+      var out = in;
+      final var insn = insns[i];
+      if (insn instanceof VarInsnNode && insn.getOpcode() >= ISTORE) {
+        final var var = ((VarInsnNode) insn).var;
+        final var wide = insn.getOpcode() == LSTORE || insn.getOpcode() == DSTORE;
+        out = in.clone();
+        kill(out, var);
+        if (wide)
+          kill(out, var + 1);
+        final var value = storedValue(insn);
+        if (value != null)
+          out[var] = value;
+        if (wide)
+          out[var + 1] = SECOND;
+      } else if (insn instanceof IincInsnNode) {
+        out = in.clone();
+        kill(out, ((IincInsnNode) insn).var);
+      }
+      for (final var j : succs[i]) {
+        if (meet(factsIn, j, out))
+          queue.add(j);
+      }
+      for (final var j : handlers[i]) {
+        if (meet(factsIn, j, in))
+          queue.add(j);
+      }
+    }
+    return new Liveness(insns, invokes, liveIn, factsIn);
+  }
+
+  /* removes everything known about a register, including copies of it, when it's overwritten */
+  private static void kill(final Object[] facts, final int var) {
+    final var prev = facts[var];
+    facts[var] = null;
+    /* overwriting a part of `long` or `double` value */
+    if (prev == SECOND)
+      kill(facts, var - 1);
+    else if (var + 1 < facts.length && facts[var + 1] == SECOND)
+      facts[var + 1] = null;
+    for (var i = 0; i < facts.length; ++i) {
+      if (facts[i] instanceof Integer && (Integer) facts[i] == var)
+        facts[i] = null;
+    }
+  }
+
+  /* intersects known facts, returns `true` if the target is changed */
+  private static boolean meet(final Object[][] factsIn, final int target, final Object[] facts) {
+    final var cur = factsIn[target];
+    if (cur == null) {
+      factsIn[target] = facts.clone();
+      return true;
+    }
+    var changed = false;
+    for (var i = 0; i < cur.length; ++i) {
+      if (cur[i] != null && !cur[i].equals(facts[i])) {
+        cur[i] = null;
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /* if the stored value is produced by the immediately preceding instruction returns what it is */
+  private static Object storedValue(final AbstractInsnNode store) {
+    final var prev = store.getPrevious();
+    if (prev == null)
+      return null;
+    final var type = storeType(store.getOpcode());
+    final var opcode = prev.getOpcode();
+    if (prev instanceof VarInsnNode && opcode < ISTORE && storeType(opcode + ISTORE - ILOAD) == type
+        && ((VarInsnNode) prev).var != ((VarInsnNode) store).var)
+      return ((VarInsnNode) prev).var;
+    if (constantType(prev) == type)
+      return prev;
+    return null;
+  }
+
+  /* the stored value's sort */
+  private static int storeType(final int opcode) {
+    switch (opcode) {
+      case ISTORE:
+        return Type.INT;
+      case LSTORE:
+        return Type.LONG;
+      case FSTORE:
+        return Type.FLOAT;
+      case DSTORE:
+        return Type.DOUBLE;
+      default:
+        return Type.OBJECT;
+    }
+  }
+
+  /* sort of the value pushed by a constant instruction or -1 if it's not such */
+  private static int constantType(final AbstractInsnNode insn) {
+    final var opcode = insn.getOpcode();
+    if (opcode == ACONST_NULL)
+      return Type.OBJECT;
+    if (opcode >= ICONST_M1 && opcode <= ICONST_5)
+      return Type.INT;
+    if (opcode == LCONST_0 || opcode == LCONST_1)
+      return Type.LONG;
+    if (opcode >= FCONST_0 && opcode <= FCONST_2)
+      return Type.FLOAT;
+    if (opcode == DCONST_0 || opcode == DCONST_1)
+      return Type.DOUBLE;
+    if (insn instanceof IntInsnNode && opcode != NEWARRAY)
+      return Type.INT;
+    if (insn instanceof LdcInsnNode) {
+      final var cst = ((LdcInsnNode) insn).cst;
+      if (cst instanceof Integer)
+        return Type.INT;
+      if (cst instanceof Long)
+        return Type.LONG;
+      if (cst instanceof Float)
+        return Type.FLOAT;
+      if (cst instanceof Double)
+        return Type.DOUBLE;
+      if (cst instanceof String
+          || (cst instanceof Type && ((Type) cst).getSort() != Type.METHOD))
+        return Type.OBJECT;
+    }
+    return -1;
+  }
+
+  /**
+   * Checks if the local can be read after the call
+   *
+   * @param invoke the call's index among the method's call instructions
+   * @param var the local's register
+   * @return <code>false</code> if the local's value isn't needed after the call
+   */
+  boolean isLive(final int invoke, final int var) {
+    return liveIn[invokes[invoke]].get(var);
+  }
+
+  /**
+   * Finds a constant value of the local at the call
+   *
+   * @param invoke the call's index among the method's call instructions
+   * @param var the local's register
+   * @return the instruction pushing the value or {@literal null} if it's unknown
+   */
+  AbstractInsnNode constant(final int invoke, final int var) {
+    final var value = resolve(factsIn[invokes[invoke]], var);
+    return value instanceof AbstractInsnNode ? (AbstractInsnNode) value : null;
+  }
+
+  /**
+   * Finds a live local without a known value which has the same value at the call
+   *
+   * @param invoke the call's index among the method's call instructions
+   * @param var the local's register
+   * @return the other local's register or -1 if there is no such
+   */
+  int copyOf(final int invoke, final int var) {
+    final var value = resolve(factsIn[invokes[invoke]], var);
+    return value instanceof Integer && isLive(invoke, (Integer) value) ? (Integer) value : -1;
+  }
+
+  /* follows the copies chain */
+  private static Object resolve(final Object[] facts, final int var) {
+    if (facts == null || var >= facts.length)
+      return null;
+    var value = facts[var];
+    for (var i = 0; value instanceof Integer && i < facts.length; ++i) {
+      final var next = facts[(Integer) value];
+      if (next == null)
+        break;
+      value = next;
+    }
+    return value instanceof Integer && facts[(Integer) value] != null ? null : value;
+  }
+
+  /**
+   * The call instruction
+   *
+   * @param invoke the call's index among the method's call instructions
+   * @return the instruction
+   */
+  AbstractInsnNode invoke(final int invoke) {
+    return insns[invokes[invoke]];
+  }
+}
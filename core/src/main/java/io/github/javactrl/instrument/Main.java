@@ -7,15 +7,25 @@
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.BiFunction;
 import java.util.function.Predicate;
-import java.util.regex.Pattern;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.util.ASMifier;
 import org.objectweb.asm.util.TraceClassVisitor;
 
+import io.github.javactrl.rt.CallFrame;
+
 /** Entry point to JavaAgent and AOT instrumentation tool */
 public class Main {
 
@@ -26,10 +36,20 @@ private Main() {
   /** dump instrumented classes */
   public static boolean DEBUG = false;
 
-  /** preliminary filter for classes we don't want to instrument */
-  public static Predicate<String> predicate = Pattern
-      .compile("(jdk/|java/|sun/|org/junit/|org/gradle/|worker/org/gradle/|com/sun/|io/github/javactrl/rt/).*")
-      .asMatchPredicate();
+  /** narrow {@link #defaultCallPredicate} with {@link SuspendabilityIndex} */
+  public static boolean USE_INDEX = true;
+
+  /** additional class path used to build the index for AOT instrumentation */
+  public static String classPath = null;
+
+  /* the java agent's indexes for each class loader */
+  private static final Map<ClassLoader, SuspendabilityIndex> indexes = new WeakHashMap<>();
+
+  /**
+   * preliminary filter for classes we don't want to instrument, the calls of their methods aren't
+   * suspending either (see {@link PrefixRules})
+   */
+  public static Predicate<String> predicate = PrefixRules.defaults();
 
   /** predicate for method call */
   public static CallPredicate defaultCallPredicate = (owner, name) -> {
@@ -47,25 +67,55 @@ private Main() {
    */
   public static void premain(final String agentArgs, final Instrumentation inst)
       throws Exception {
+    Path cacheDir = null;
+    Path classList = null;
     if (agentArgs != null) {
-      final var args = agentArgs.split(",");
-      for (final var arg : args) {
-          switch (arg) {
-              case "check":
-                  Transform.CHECK = true;
-                  break;
-              case "nocheck":
-                  Transform.CHECK = false;
-                  break;
-              case "debug":
-                  DEBUG = true;
-                  break;
-              default:
-                  break;
-          }
+      for (final var arg : agentArgs.split(",")) {
+        if (arg.startsWith("train=")) {
+          /* a tail call's frame isn't captured, so it wouldn't be recorded */
+          Transform.TAIL_CALLS = false;
+          Profile.train(Path.of(arg.substring("train=".length())));
+        } else if (arg.startsWith("cache=")) {
+          cacheDir = Path.of(arg.substring("cache=".length()));
+        } else if (arg.startsWith("preinstrument=")) {
+          classList = Path.of(arg.substring("preinstrument=".length()));
+        } else {
+          setOption(arg);
+        }
       }
     }
     Transform.callPredicate = defaultCallPredicate;
+    /* it's keyed by the options, so it's created after all of them are set */
+    final var cache = cacheDir == null ? null : new BytecodeCache(cacheDir);
+    final BiFunction<ClassLoader, byte[], byte[]> instrument = (loader, data) -> cache != null
+        ? cache.instrumentClass(data, agentCallPredicate(loader))
+        : Transform.instrumentClass(data, agentCallPredicate(loader));
+    final var preinstrumenter = classList == null ? null
+        : new Preinstrumenter(classList, ClassLoader.getSystemClassLoader(), instrument);
+    if (preinstrumenter != null) {
+      preinstrumenter.start(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          preinstrumenter.write();
+        } catch (final IOException e) {
+          e.printStackTrace();
+        }
+      }));
+    }
+    final var profile = Transform.profile;
+    final var retransform = profile != null && inst.isRetransformClassesSupported();
+    if (retransform) {
+      CallFrame.missedCaptureListener = cls -> {
+        System.err.println(format("javactrl: an Unwind passed a call in %s not observed in the profile, "
+            + "its continuation is lost, the class is instrumented fully", cls.getName()));
+        profile.instrumentFully(cls.getName().replace('.', '/'));
+        try {
+          inst.retransformClasses(cls);
+        } catch (Throwable e) {
+          e.printStackTrace();
+        }
+      };
+    }
     inst.addTransformer(new ClassFileTransformer() {
       @Override
       @SuppressWarnings({"CallToPrintStackTrace", "UseSpecificCatch"})
@@ -75,6 +125,9 @@ public byte[] transform(ClassLoader loader, String className,
           throws IllegalClassFormatException {
         if (predicate.test(className))
           return data;
+        /* before the call predicate, the index for the loader is built on its first use */
+        if (Transform.PRESCAN && !Transform.isCandidate(data))
+          return null;
         try {
           if (DEBUG) {
             System.out.println(format("instrumenting %s...", className));
@@ -83,7 +136,14 @@ public byte[] transform(ClassLoader loader, String className,
             Files.write(dumpFile.toPath(), data);
             debDump(dumpFile);
         }
-          final var instrumented = Transform.instrumentClass(data);
+          /* the retransformed classes are instrumented differently (see `Transform.profile`) */
+          final byte[] instrumented;
+          if (classBeingRedefined != null)
+            instrumented = Transform.instrumentClass(data, agentCallPredicate(loader));
+          else if (preinstrumenter != null)
+            instrumented = preinstrumenter.instrumentClass(className, loader, data);
+          else
+            instrumented = instrument.apply(loader, data);
           if (DEBUG) {
             if (instrumented != null) {
               final var dumpFile = new File(format("_dumps_/%s-out.class", className));
@@ -109,7 +169,182 @@ public byte[] transform(ClassLoader loader, String className,
           return data;
         }
       }
-    });
+    }, retransform);
+  }
+
+  /* the index is built lazily for each class loader */
+  private static CallPredicate agentCallPredicate(final ClassLoader loader) {
+    if (!USE_INDEX)
+      return defaultCallPredicate;
+    synchronized (indexes) {
+      return indexes.computeIfAbsent(loader, i -> SuspendabilityIndex.forLoader(i, defaultCallPredicate));
+    }
+  }
+
+  /**
+   * Sets the instrumentation options to their defaults, and then sets the listed ones, this lets
+   * build tools instrument several outputs with different options in the same JVM
+   *
+   * @param options the agent's options, except <code>train</code>, <code>cache</code> and
+   *                <code>preinstrument</code>
+   * @throws IOException on reading the profile
+   */
+  public static void configure(final Iterable<String> options) throws IOException {
+    DEBUG = false;
+    USE_INDEX = true;
+    classPath = null;
+    predicate = PrefixRules.defaults();
+    Transform.CHECK = false;
+    Transform.LAZY_FRAMES = false;
+    Transform.DUAL_BODIES = false;
+    Transform.TYPED_FRAMES = false;
+    Transform.SAVE_LIVE_ONLY = true;
+    Transform.SENTINEL_UNWIND = false;
+    Transform.WIND_TABLES = true;
+    Transform.PRIMITIVE_RESULTS = true;
+    Transform.TAIL_CALLS = false;
+    Transform.CLASS_DISPATCH = false;
+    Transform.OUTLINE_UNWIND = true;
+    Transform.INLINE_CALLS = false;
+    Transform.INLINE_REPORT = false;
+    Transform.YIELD_POINTS = false;
+    Transform.profile = null;
+    Transform.PRESCAN = true;
+    for (final var i : options)
+      setOption(i);
+  }
+
+  /* sets an agent's option, the unknown ones are ignored */
+  private static void setOption(final String arg) throws IOException {
+    switch (arg) {
+      case "check":
+        Transform.CHECK = true;
+        break;
+      case "nocheck":
+        Transform.CHECK = false;
+        break;
+      case "debug":
+        DEBUG = true;
+        break;
+      case "lazy":
+        Transform.LAZY_FRAMES = true;
+        break;
+      case "dual":
+        Transform.DUAL_BODIES = true;
+        break;
+      case "typed":
+        Transform.TYPED_FRAMES = true;
+        break;
+      case "nolive":
+        Transform.SAVE_LIVE_ONLY = false;
+        break;
+      case "sentinel":
+        Transform.SENTINEL_UNWIND = true;
+        break;
+      case "noindex":
+        USE_INDEX = false;
+        break;
+      case "notables":
+        Transform.WIND_TABLES = false;
+        break;
+      case "boxed":
+        Transform.PRIMITIVE_RESULTS = false;
+        break;
+      case "tail":
+        Transform.TAIL_CALLS = true;
+        break;
+      case "dispatch":
+        Transform.CLASS_DISPATCH = true;
+        break;
+      case "nooutline":
+        Transform.OUTLINE_UNWIND = false;
+        break;
+      case "inline":
+        Transform.INLINE_CALLS = true;
+        break;
+      case "inlinereport":
+        Transform.INLINE_REPORT = true;
+        break;
+      case "yield":
+        Transform.YIELD_POINTS = true;
+        break;
+      case "noprescan":
+        Transform.PRESCAN = false;
+        break;
+      default:
+        if (arg.startsWith("profile="))
+          Transform.profile = Profile.read(Path.of(arg.substring("profile=".length())));
+        else if (arg.startsWith("include="))
+          rules().include(arg.substring("include=".length()));
+        else if (arg.startsWith("exclude="))
+          rules().exclude(arg.substring("exclude=".length()));
+        else if (arg.startsWith("rules="))
+          rules().read(Path.of(arg.substring("rules=".length())));
+        break;
+    }
+  }
+
+  /* the rules to add the options' ones to, a custom predicate is their fallback */
+  private static PrefixRules rules() {
+    if (!(predicate instanceof PrefixRules))
+      predicate = new PrefixRules(predicate);
+    return (PrefixRules) predicate;
+  }
+
+  /* the index is built once, from the input's classes directory and the class path */
+  private static SuspendabilityIndex aotCallPredicate(final File inFile, final byte[] inData) throws IOException {
+    var root = inFile.getAbsoluteFile().toPath();
+    for (var i = new ClassReader(inData).getClassName().split("/").length; i > 0 && root != null; --i)
+      root = root.getParent();
+    return aotCallPredicate(root);
+  }
+
+  /**
+   * The call predicate for AOT instrumentation
+   *
+   * @param root the classes directory or jar file with the instrumented classes, or {@literal null}
+   * @return the predicate, it must be closed when the instrumentation finishes
+   * @throws IOException on reading the root's class files
+   */
+  public static SuspendabilityIndex aotCallPredicate(final Path root) throws IOException {
+    /* without class files every call is left to `defaultCallPredicate` */
+    if (!USE_INDEX)
+      return new SuspendabilityIndex(name -> null, defaultCallPredicate);
+    final var urls = new ArrayList<URL>();
+    if (root != null)
+      urls.add(root.toUri().toURL());
+    if (classPath != null) {
+      for (final var i : classPath.split(File.pathSeparator)) {
+        try {
+          urls.add(Path.of(i).toUri().toURL());
+        } catch (MalformedURLException e) {
+          System.err.println(format("ignoring class path entry %s", i));
+        }
+      }
+    }
+    /* unlike `forLoader`, the index keeps its loader and closes it, nothing else refers to it here */
+    final var loader = new URLClassLoader(urls.toArray(new URL[0]), Main.class.getClassLoader());
+    final var index = new SuspendabilityIndex(name -> {
+      try (final var stream = loader.getResourceAsStream(name + ".class")) {
+        return stream == null ? null : stream.readAllBytes();
+      } catch (IOException e) {
+        return null;
+      }
+    }, defaultCallPredicate, loader);
+    try {
+      if (root != null && Files.isDirectory(root)) {
+        index.addAll(root);
+      } else if (root != null) {
+        try (final var jar = FileSystems.newFileSystem(root, (ClassLoader) null)) {
+          for (final var i : jar.getRootDirectories())
+            index.addAll(i);
+        }
+      }
+    } catch (IOException e) {
+      index.close();
+      throw e;
+    }
+    return index;
   }
 
   /**
@@ -134,11 +369,14 @@ private static void debDump(File file) throws IOException {
    * @throws IOException on IO errors
    */
   public static void instrumentClass(final File inFile, final File outFile) throws IOException {
-    Transform.callPredicate = defaultCallPredicate;
     if (DEBUG)
       debDump(inFile);
     final var inData = Files.readAllBytes(inFile.toPath());
-    var outData = Transform.instrumentClass(inData);
+    byte[] outData;
+    try (final var callPredicate = aotCallPredicate(inFile, inData)) {
+      Transform.callPredicate = callPredicate;
+      outData = Transform.instrumentClass(inData);
+    }
     if (outData == null)
       outData = inData;
     Files.write(outFile.toPath(), outData);
@@ -168,6 +406,96 @@ public static void main(String args[]) {
           case "-nocheck":
             Transform.CHECK = false;
             continue;
+          case "-lazy":
+            Transform.LAZY_FRAMES = true;
+            continue;
+          case "-dual":
+            Transform.DUAL_BODIES = true;
+            continue;
+          case "-typed":
+            Transform.TYPED_FRAMES = true;
+            continue;
+          case "-nolive":
+            Transform.SAVE_LIVE_ONLY = false;
+            continue;
+          case "-sentinel":
+            Transform.SENTINEL_UNWIND = true;
+            continue;
+          case "-noindex":
+            USE_INDEX = false;
+            continue;
+          case "-notables":
+            Transform.WIND_TABLES = false;
+            continue;
+          case "-boxed":
+            Transform.PRIMITIVE_RESULTS = false;
+            continue;
+          case "-tail":
+            Transform.TAIL_CALLS = true;
+            continue;
+          case "-dispatch":
+            Transform.CLASS_DISPATCH = true;
+            continue;
+          case "-nooutline":
+            Transform.OUTLINE_UNWIND = false;
+            continue;
+          case "-inline":
+            Transform.INLINE_CALLS = true;
+            continue;
+          case "-inlinereport":
+            Transform.INLINE_REPORT = true;
+            continue;
+          case "-yield":
+            Transform.YIELD_POINTS = true;
+            continue;
+          case "-noprescan":
+            Transform.PRESCAN = false;
+            continue;
+          case "-cp":
+            if (++i == args.length) {
+              usage();
+              return;
+            }
+            classPath = args[i];
+            continue;
+          case "-include":
+            if (++i == args.length) {
+              usage();
+              return;
+            }
+            rules().include(args[i]);
+            continue;
+          case "-exclude":
+            if (++i == args.length) {
+              usage();
+              return;
+            }
+            rules().exclude(args[i]);
+            continue;
+          case "-rules":
+            if (++i == args.length) {
+              usage();
+              return;
+            }
+            try {
+              rules().read(Path.of(args[i]));
+            } catch (IOException e) {
+              e.printStackTrace();
+              return;
+            }
+            continue;
+          case "-profile":
+            if (++i == args.length) {
+              usage();
+              return;
+            }
+            try {
+              Transform.profile = Profile.read(Path.of(args[i]));
+            } catch (IOException e) {
+              e.printStackTrace();
+              return;
+            }
+            continue;
           case "-?":
           case "-help":
             usage();
@@ -179,19 +507,20 @@ public static void main(String args[]) {
         }
       }
       if (inputFile == null) {
-        if (!arg.endsWith(".class")) {
-          System.err.println("Only .class files are implemented now");
+        inputFile = new File(arg);
+        if (!arg.endsWith(".class") && !inputFile.isDirectory() && !BatchTransform.isArchive(inputFile.toPath())) {
+          System.err.println("Only .class files, jar files and directories are supported");
           usage();
           return;
         }
-        inputFile = new File(arg);
       } else {
-        if (!arg.endsWith(".class")) {
+        outputFile = new File(arg);
+        if (arg.endsWith(".class") != inputFile.getName().endsWith(".class")
+            || BatchTransform.isArchive(outputFile.toPath()) != BatchTransform.isArchive(inputFile.toPath())) {
           System.err.println("Output file type must be the same as input");
           usage();
           return;
         }
-        outputFile = new File(arg);
       }
     }
     if (inputFile == null || outputFile == null) {
@@ -202,7 +531,19 @@ public static void main(String args[]) {
     inputFile = inputFile.getAbsoluteFile();
     outputFile = outputFile.getAbsoluteFile();
     try {
-      instrumentClass(inputFile, outputFile);
+      if (inputFile.getName().endsWith(".class")) {
+        instrumentClass(inputFile, outputFile);
+      } else {
+        try (final var callPredicate = aotCallPredicate(inputFile.toPath())) {
+          final var batch = new BatchTransform(callPredicate);
+          batch.instrument(inputFile.toPath(), outputFile.toPath());
+          if (batch.upToDate())
+            System.err.println(format("%s is up to date", outputFile));
+          else
+            System.err.println(format("%s: %d classes instrumented, %d files copied", outputFile,
+                batch.instrumented(), batch.copied()));
+        }
+      }
     } catch (IOException e) {
       System.err.println("instrumentation error: " + e.toString());
       e.printStackTrace();
@@ -211,7 +552,7 @@ public static void main(String args[]) {
 
   /** Prints usage */
   public static void usage() {
-    System.err.println("java -jar <this jar>.jar  [-check] <input file>.class [<output file>.class]");
+    System.err.println("java -jar <this jar>.jar  [-check] [-lazy] [-dual] [-typed] [-nolive] [-noindex] [-sentinel] [-notables] [-boxed] [-tail] [-dispatch] [-nooutline] [-inline] [-inlinereport] [-yield] [-noprescan] [-profile <file>] [-include <prefix>] [-exclude <prefix>] [-rules <file>] [-cp <class path>] <input>.class|<input>.jar|<input directory> <output>.class|<output>.jar|<output directory>");
     System.exit(-1);
   }
 }
@@ -0,0 +1,183 @@
+package io.github.javactrl.instrument;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+import static java.lang.String.format;
+
+/**
+ * Include and exclude rules for class names (see {@link Main#predicate}), the predicate is
+ * {@literal true} for the excluded classes.
+ *
+ * A rule is a prefix of the classes' internal names (dots are replaced with slashes, so
+ * <code>com.acme.util.</code> is <code>com/acme/util/</code>). The longest matching rule wins, and
+ * the names without matching rules are checked by the fallback predicate. The rules are kept in a
+ * trie, so a check reads each character of the name at most once.
+ */
+public final class PrefixRules implements Predicate<String> {
+  /** the packages which are never instrumented by default */
+  public static final String[] DEFAULT_EXCLUDES = { "jdk/", "java/", "sun/", "org/junit/", "org/gradle/",
+      "worker/org/gradle/", "com/sun/", "io/github/javactrl/rt/" };
+
+  private static final byte NONE = 0;
+  private static final byte INCLUDE = 1;
+  private static final byte EXCLUDE = 2;
+  /* the default rules' fallback, nothing is excluded without a matching rule */
+  private static final Predicate<String> NOTHING = name -> false;
+
+  /* a trie node, children are sorted by their characters */
+  private static final class Node {
+    char[] chars = new char[0];
+    Node[] children = new Node[0];
+    byte rule = NONE;
+
+    Node child(final char c) {
+      final var i = Arrays.binarySearch(chars, c);
+      return i < 0 ? null : children[i];
+    }
+
+    Node addChild(final char c) {
+      var i = Arrays.binarySearch(chars, c);
+      if (i >= 0)
+        return children[i];
+      i = -i - 1;
+      final var node = new Node();
+      final var n = chars.length;
+      chars = Arrays.copyOf(chars, n + 1);
+      children = Arrays.copyOf(children, n + 1);
+      System.arraycopy(chars, i, chars, i + 1, n - i);
+      System.arraycopy(children, i, children, i + 1, n - i);
+      chars[i] = c;
+      children[i] = node;
+      return node;
+    }
+  }
+
+  private final Node root = new Node();
+  private final Predicate<String> fallback;
+  /* the rules as they are added, for `toString` */
+  private final Map<String, Boolean> rules = new TreeMap<>();
+
+  /**
+   * Constructor
+   *
+   * @param fallback checks the names without matching rules
+   */
+  public PrefixRules(final Predicate<String> fallback) {
+    this.fallback = fallback;
+  }
+
+  /**
+   * The default rules, excluding {@link #DEFAULT_EXCLUDES}
+   *
+   * @return new rules
+   */
+  public static PrefixRules defaults() {
+    final var ret = new PrefixRules(NOTHING);
+    for (final var i : DEFAULT_EXCLUDES)
+      ret.exclude(i);
+    return ret;
+  }
+
+  /**
+   * Adds a rule excluding the classes with the prefix
+   *
+   * @param prefix a prefix of class names
+   * @return this
+   */
+  public PrefixRules exclude(final String prefix) {
+    return add(prefix, EXCLUDE);
+  }
+
+  /**
+   * Adds a rule including the classes with the prefix
+   *
+   * @param prefix a prefix of class names
+   * @return this
+   */
+  public PrefixRules include(final String prefix) {
+    return add(prefix, INCLUDE);
+  }
+
+  /**
+   * Adds the rules from a file, a rule per line, <code>+prefix</code> includes and
+   * <code>-prefix</code> excludes, the empty lines and the lines starting with <code>#</code> are
+   * ignored
+   *
+   * @param file the file's path
+   * @return this
+   * @throws IOException on reading errors, or if a line isn't a rule
+   */
+  public PrefixRules read(final Path file) throws IOException {
+    for (final var i : Files.readAllLines(file)) {
+      final var line = i.trim();
+      if (line.isEmpty() || line.startsWith("#"))
+        continue;
+      if (line.startsWith("+"))
+        include(line.substring(1).trim());
+      else if (line.startsWith("-"))
+        exclude(line.substring(1).trim());
+      else
+        throw new IOException(String.format("%s: a rule must start with + or -: %s", file, line));
+    }
+    return this;
+  }
+
+  private PrefixRules add(final String prefix, final byte rule) {
+    final var name = prefix.replace('.', '/');
+    var node = root;
+    for (var i = 0; i < name.length(); ++i)
+      node = node.addChild(name.charAt(i));
+    node.rule = rule;
+    rules.put(name, rule == INCLUDE);
+    return this;
+  }
+
+  /**
+   * Checks the class name
+   *
+   * @param name the class's internal name
+   * @return {@literal true} if the class is excluded
+   */
+  @Override
+  public boolean test(final String name) {
+    var rule = root.rule;
+    var node = root;
+    for (var i = 0; i < name.length() && node != null; ++i) {
+      node = node.child(name.charAt(i));
+      if (node != null && node.rule != NONE)
+        rule = node.rule;
+    }
+    return rule == NONE ? fallback.test(name) : rule == EXCLUDE;
+  }
+
+  /**
+   * Describes the rules and their fallback the same way in each JVM, so the instrumentation's
+   * results can be keyed by it (see {@link BytecodeCache})
+   *
+   * @return the rules in the file format, or {@literal null} if the fallback is neither the default
+   *         one nor other rules
+   */
+  public String key() {
+    if (fallback == NOTHING)
+      return toString();
+    if (!(fallback instanceof PrefixRules))
+      return null;
+    final var next = ((PrefixRules) fallback).key();
+    return next == null ? null : format("%s\n%s", this, next);
+  }
+
+  /** the rules in the file format, sorted */
+  @Override
+  public String toString() {
+    final var ret = new StringBuilder();
+    for (final var i : rules.entrySet())
+      ret.append(i.getValue() ? '+' : '-').append(i.getKey()).append('\n');
+    return ret.toString();
+  }
+}
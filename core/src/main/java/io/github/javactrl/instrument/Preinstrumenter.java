@@ -0,0 +1,169 @@
+package io.github.javactrl.instrument;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Instruments the classes of a list on background threads before they are loaded (see
+ * <code>preinstrument</code> agent option), so the threads loading them don't wait for the
+ * instrumentation.
+ *
+ * The class files are read from a class loader's resources (the system one for the agent), and
+ * the result is used only if the loaded class is defined by the same loader with the same
+ * content. A class requested before a background thread took it is instrumented by the requesting
+ * thread, and a class being instrumented in background is waited for. The list has an internal
+ * class name per line, the classes instrumented in this run are added to it by {@link #write()},
+ * and the listed classes not found are removed.
+ */
+public final class Preinstrumenter {
+  /* the bytecode the result was made of, and the result */
+  private static final class Prepared {
+    final byte[] input;
+    final byte[] output;
+
+    Prepared(final byte[] input, final byte[] output) {
+      this.input = input;
+      this.output = output;
+    }
+  }
+
+  private final Path file;
+  private final ClassLoader loader;
+  private final BiFunction<ClassLoader, byte[], byte[]> instrument;
+  private final Set<String> listed = new TreeSet<>();
+  private final Set<String> instrumented = ConcurrentHashMap.newKeySet();
+  private final Map<String, FutureTask<Prepared>> tasks = new ConcurrentHashMap<>();
+  private final AtomicInteger hits = new AtomicInteger();
+
+  /**
+   * Constructor, it reads the list
+   *
+   * @param file the class list, it may not exist yet
+   * @param loader the class loader to read the class files with
+   * @param instrument the instrumentation, e.g. {@link Transform#instrumentClass(byte[], CallPredicate)}
+   *                   with the loader's call predicate, it's called from several threads
+   * @throws IOException on reading errors
+   */
+  public Preinstrumenter(final Path file, final ClassLoader loader,
+      final BiFunction<ClassLoader, byte[], byte[]> instrument) throws IOException {
+    this.file = file;
+    this.loader = loader;
+    this.instrument = instrument;
+    if (Files.exists(file)) {
+      for (final var line : Files.readAllLines(file)) {
+        final var name = line.trim();
+        if (!name.isEmpty() && !name.startsWith("#"))
+          listed.add(name.replace('.', '/'));
+      }
+    }
+  }
+
+  /**
+   * Starts instrumenting the listed classes
+   *
+   * @param threads the number of background threads, they are daemons and stop after the list
+   */
+  public void start(final int threads) {
+    final var counter = new AtomicInteger();
+    final var executor = Executors.newFixedThreadPool(threads, runnable -> {
+      final var thread = new Thread(runnable, "javactrl-preinstrument-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (final var name : listed) {
+      final var task = new FutureTask<>(() -> prepare(name));
+      tasks.put(name, task);
+      executor.execute(task);
+    }
+    executor.shutdown();
+  }
+
+  private Prepared prepare(final String name) throws IOException {
+    try (final var stream = loader.getResourceAsStream(name + ".class")) {
+      if (stream == null)
+        return null;
+      final var input = stream.readAllBytes();
+      return new Prepared(input, instrument.apply(loader, input));
+    }
+  }
+
+  /**
+   * Returns the prepared instrumentation's result, or instruments the class
+   *
+   * @param className the class's internal name
+   * @param loader the class's defining loader
+   * @param data input bytecode
+   * @return instrumented bytecode or {@literal null} if nothing is changed there
+   */
+  @SuppressWarnings("CallToPrintStackTrace")
+  public byte[] instrumentClass(final String className, final ClassLoader loader, final byte[] data) {
+    if (loader == this.loader) {
+      final var task = tasks.remove(className);
+      if (task != null) {
+        /* it does nothing if a background thread has already taken the task */
+        task.run();
+        try {
+          final var prepared = task.get();
+          if (prepared != null && Arrays.equals(prepared.input, data)) {
+            hits.incrementAndGet();
+            if (prepared.output != null)
+              instrumented.add(className);
+            return prepared.output;
+          }
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+          e.getCause().printStackTrace();
+        }
+      }
+    }
+    final var ret = instrument.apply(loader, data);
+    if (ret != null && loader == this.loader)
+      instrumented.add(className);
+    return ret;
+  }
+
+  /**
+   * Writes the listed classes and the classes instrumented since the start into the list, sorted
+   *
+   * The listed classes without a class file in the loader's resources are reported and removed.
+   *
+   * @throws IOException on writing errors
+   */
+  public void write() throws IOException {
+    final var ret = new TreeSet<>(instrumented);
+    final var missing = new TreeSet<String>();
+    for (final var name : listed) {
+      if (ret.contains(name) || loader.getResource(name + ".class") != null)
+        ret.add(name);
+      else
+        missing.add(name);
+    }
+    if (!missing.isEmpty())
+      System.err.println(format("javactrl: the classes %s of %s aren't found, they are removed from the list",
+          String.join(", ", missing), file));
+    Files.write(file, ret);
+  }
+
+  /**
+   * The number of classes returned from the background threads' results
+   *
+   * @return the counter's value
+   */
+  public int hits() {
+    return hits.get();
+  }
+}
@@ -0,0 +1,126 @@
+package io.github.javactrl.instrument;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.github.javactrl.rt.CallFrame;
+
+/**
+ * The call sites observed capturing their frames in a training run (see {@link Transform#profile}).
+ *
+ * A site is written as <code>class.method:state</code>, where <code>class</code> is the internal
+ * name of the class, <code>method</code> is the frame's method name (see
+ * {@link CallFrame#methodName}) and <code>state</code> is the number of the suspending call in the
+ * method (see {@link CallFrame#state}). The profile file has a site per line.
+ */
+public final class Profile {
+  /* observed sites */
+  private final Set<String> sites = ConcurrentHashMap.newKeySet();
+  /* the methods with any observed site, as `class.method` */
+  private final Set<String> methods = ConcurrentHashMap.newKeySet();
+  /* the classes instrumented fully after an `Unwind` passed their not instrumented call */
+  private final Set<String> fullClasses = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Constructor
+   *
+   * @param sites observed call sites
+   */
+  public Profile(final Collection<String> sites) {
+    for (final var i : sites)
+      add(i);
+  }
+
+  /**
+   * Reads a profile file
+   *
+   * @param file the file's path
+   * @return the profile, empty if the file doesn't exist
+   * @throws IOException on reading errors
+   */
+  public static Profile read(final Path file) throws IOException {
+    final var ret = new Profile(Set.of());
+    if (!Files.exists(file))
+      return ret;
+    for (final var line : Files.readAllLines(file)) {
+      final var site = line.trim();
+      if (!site.isEmpty() && !site.startsWith("#"))
+        ret.add(site);
+    }
+    return ret;
+  }
+
+  /**
+   * Records the sites of the frames captured from now on, and adds them into the file at exit
+   *
+   * @param file the file's path
+   * @throws IOException on reading the sites recorded in the file before
+   */
+  public static void train(final Path file) throws IOException {
+    final var profile = read(file);
+    CallFrame.unwindListener = frame -> profile.add(format(frame.owner, frame.methodName, frame.state));
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        profile.write(file);
+      } catch (final IOException e) {
+        e.printStackTrace();
+      }
+    }));
+  }
+
+  /**
+   * Writes the observed sites into a file, sorted
+   *
+   * @param file the file's path
+   * @throws IOException on writing errors
+   */
+  public void write(final Path file) throws IOException {
+    Files.write(file, new TreeSet<>(sites));
+  }
+
+  /**
+   * Adds an observed site
+   *
+   * @param site the site as <code>class.method:state</code>
+   */
+  public void add(final String site) {
+    sites.add(site);
+    final var state = site.lastIndexOf(':');
+    methods.add(state < 0 ? site : site.substring(0, state));
+  }
+
+  /**
+   * Checks if the method's frame was captured
+   *
+   * @param className the class's internal name
+   * @param methodName the frame's method name
+   * @return <code>true</code> if the method must be instrumented
+   */
+  public boolean instruments(final String className, final String methodName) {
+    return fullClasses.contains(className) || methods.contains(className + "." + methodName);
+  }
+
+  /**
+   * Makes the next instrumentation of the class ignore the profile
+   *
+   * @param className the class's internal name
+   */
+  public void instrumentFully(final String className) {
+    fullClasses.add(className);
+  }
+
+  /** the sites, sorted, a line for each */
+  @Override
+  public String toString() {
+    return String.join("\n", new TreeSet<>(sites));
+  }
+
+  private static String format(final Class<?> owner, final String methodName, final int state) {
+    return String.format("%s.%s:%d", owner.getName().replace('.', '/'), methodName, state);
+  }
+}
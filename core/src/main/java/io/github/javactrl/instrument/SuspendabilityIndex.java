@@ -0,0 +1,226 @@
+package io.github.javactrl.instrument;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+
+import static org.objectweb.asm.Opcodes.ASM9;
+
+/**
+ * Index of methods which can suspend, i.e. throw {@link io.github.javactrl.rt.CThrowable}.
+ *
+ * Java compiler doesn't allow overriding methods to throw checked exceptions not declared by the
+ * overridden ones, and a method calling a suspending method must declare it too unless it catches
+ * it. So the called method's declaration, resolved in the class hierarchy, is enough to know if
+ * the call can suspend.
+ *
+ * The index only narrows another predicate, the calls it can't resolve (e.g. there is no class
+ * file available) are selected by that predicate. Class files are read on demand and cached, or
+ * all of them in a directory in advance with {@link #addAll(Path)}. Closing the index releases
+ * what the locator reads from, if it's passed to the constructor.
+ */
+public final class SuspendabilityIndex implements CallPredicate, Closeable {
+  /* resolution results, a larger one wins when merging the ancestors results */
+  private static final byte NOT_FOUND = 0;
+  private static final byte NO = 1;
+  private static final byte UNKNOWN = 2;
+  private static final byte YES = 3;
+  /* a placeholder for classes without class files */
+  private static final ClassInfo MISSING = new ClassInfo(null, new String[0]);
+
+  /* what's needed from a class file */
+  private static final class ClassInfo {
+    final String superName;
+    final String[] interfaces;
+    /* thrown exceptions by method name and descriptor */
+    final Map<String, String[]> methods = new HashMap<>();
+
+    ClassInfo(final String superName, final String[] interfaces) {
+      this.superName = superName;
+      this.interfaces = interfaces == null ? new String[0] : interfaces;
+    }
+  }
+
+  private final Function<String, byte[]> locator;
+  private final CallPredicate fallback;
+  private final Closeable resource;
+  private final Map<String, ClassInfo> classes = new ConcurrentHashMap<>();
+  private final Map<String, Byte> calls = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor
+   *
+   * @param locator returns a class file's content by the class's internal name or {@literal null}
+   *                if it's not found
+   * @param fallback the predicate to narrow
+   */
+  public SuspendabilityIndex(final Function<String, byte[]> locator, final CallPredicate fallback) {
+    this(locator, fallback, null);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param locator returns a class file's content by the class's internal name or {@literal null}
+   *                if it's not found
+   * @param fallback the predicate to narrow
+   * @param resource what the locator reads from, closed with the index, or {@literal null}
+   */
+  public SuspendabilityIndex(final Function<String, byte[]> locator, final CallPredicate fallback,
+      final Closeable resource) {
+    this.locator = locator;
+    this.fallback = fallback;
+    this.resource = resource;
+  }
+
+  /**
+   * Creates an index reading class files from a class loader's resources
+   *
+   * @param classLoader the class loader, {@literal null} for the bootstrap one
+   * @param fallback the predicate to narrow
+   * @return the index
+   */
+  public static SuspendabilityIndex forLoader(final ClassLoader classLoader, final CallPredicate fallback) {
+    /* the index may be a value in a map with weak class loader keys */
+    final var loaderRef = new WeakReference<>(classLoader);
+    return new SuspendabilityIndex(name -> {
+      final var resource = name + ".class";
+      final var loader = loaderRef.get();
+      try (final InputStream stream = loader == null
+          ? ClassLoader.getSystemResourceAsStream(resource)
+          : loader.getResourceAsStream(resource)) {
+        return stream == null ? null : stream.readAllBytes();
+      } catch (IOException e) {
+        return null;
+      }
+    }, fallback);
+  }
+
+  /**
+   * Reads all class files in a directory in advance
+   *
+   * @param root the classes root directory
+   * @throws IOException on IO errors
+   */
+  public void addAll(final Path root) throws IOException {
+    try (final var files = Files.walk(root)) {
+      files.filter(i -> i.toString().endsWith(".class") && Files.isRegularFile(i)).forEach(i -> {
+        try {
+          add(Files.readAllBytes(i));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Adds a class file to the index
+   *
+   * @param data the class file's content
+   */
+  public void add(final byte[] data) {
+    final var info = read(data);
+    classes.put(new ClassReader(data).getClassName(), info);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (resource != null)
+      resource.close();
+  }
+
+  @Override
+  public boolean test(final String owner, final String name) {
+    return fallback.test(owner, name);
+  }
+
+  @Override
+  public boolean test(final String owner, final String name, final String descriptor) {
+    if (!fallback.test(owner, name, descriptor))
+      return false;
+    final var key = owner + '.' + name + descriptor;
+    var result = calls.get(key);
+    if (result == null) {
+      result = resolve(owner, name + descriptor);
+      calls.put(key, result);
+    }
+    return result != NO;
+  }
+
+  /* finds the method's declaration in the class or its ancestors */
+  private byte resolve(final String owner, final String method) {
+    final var info = classInfo(owner);
+    if (info == MISSING)
+      return UNKNOWN;
+    final var exceptions = info.methods.get(method);
+    if (exceptions != null) {
+      var result = NO;
+      for (final var i : exceptions)
+        result = (byte) Math.max(result, throwsCThrowable(i));
+      return result;
+    }
+    var result = NOT_FOUND;
+    if (info.superName != null)
+      result = resolve(info.superName, method);
+    for (final var i : info.interfaces)
+      result = (byte) Math.max(result, resolve(i, method));
+    return result;
+  }
+
+  /* checks if the exception class is `CThrowable`, its ancestor or descendant */
+  private byte throwsCThrowable(final String exception) {
+    for (var i = exception; i != null; i = classInfo(i).superName) {
+      if (i.equals(Transform.CTRL_TOKEN) || i.equals("java/lang/Throwable"))
+        return YES;
+      if (i.startsWith("java/"))
+        return NO;
+      if (classInfo(i) == MISSING)
+        return UNKNOWN;
+    }
+    return NO;
+  }
+
+  private ClassInfo classInfo(final String name) {
+    var info = classes.get(name);
+    if (info == null) {
+      final var data = locator.apply(name);
+      info = data == null ? MISSING : read(data);
+      classes.put(name, info);
+    }
+    return info;
+  }
+
+  private static ClassInfo read(final byte[] data) {
+    final var result = new ClassInfo[1];
+    new ClassReader(data).accept(new ClassVisitor(ASM9) {
+      @Override
+      public void visit(final int version, final int access, final String name, final String signature,
+          final String superName, final String[] interfaces) {
+        result[0] = new ClassInfo(superName, interfaces);
+      }
+
+      @Override
+      public MethodVisitor visitMethod(final int access, final String name, final String descriptor,
+          final String signature, final String[] exceptions) {
+        result[0].methods.put(name + descriptor, exceptions == null ? new String[0] : exceptions);
+        return null;
+      }
+    }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    return result[0];
+  }
+}
@@ -1,10 +1,13 @@
 package io.github.javactrl.instrument;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
@@ -20,12 +23,18 @@
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AnalyzerAdapter;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
 import org.objectweb.asm.tree.TryCatchBlockNode;
 import org.objectweb.asm.util.CheckClassAdapter;
 
@@ -41,7 +50,94 @@ private Transform() {
   }
   /** Checks generated IR */
   public static boolean CHECK = false;
-  /** Anotation class to enable this instrumentation for a class */
+  /** 
+   * Generates methods running with plain JVM locals, a {@link io.github.javactrl.rt.CallFrame} is 
+   * allocated and filled only when the call is actually unwound
+   */
+  public static boolean LAZY_FRAMES = false;
+  /**
+   * Keeps an untouched copy of each instrumented method, it's called instead of the instrumented
+   * code if there are no methods able to catch <code>Unwind</code> on the current thread's stack
+   */
+  public static boolean DUAL_BODIES = false;
+  /**
+   * Generates a {@link io.github.javactrl.rt.CallFrame} subclass for each instrumented method, 
+   * suspended frames keep their variables in its typed fields instead of the arrays
+   */
+  public static boolean TYPED_FRAMES = false;
+  /**
+   * Saves only the locals read after the suspended call, constants and copies of other locals 
+   * are recomputed on resume instead
+   */
+  public static boolean SAVE_LIVE_ONLY = true;
+  /**
+   * Unwound methods return the <code>Unwind</code> object instead of throwing it to the calls of
+   * the same class methods, which check it after each such call, it's thrown only to other callers
+   * (ignored with {@link #LAZY_FRAMES})
+   */
+  public static boolean SENTINEL_UNWIND = false;
+  /**
+   * Each state gets a table of the <code>catch (Wind)</code> blocks around its call, resuming
+   * jumps into them directly, outer first, instead of re-running the frame's handler to count
+   * them and then once more for each of them
+   */
+  public static boolean WIND_TABLES = true;
+  /**
+   * Frame handlers return primitive results in the frame, and resuming passes them to the 
+   * callers the same way, instead of boxing them 
+   */
+  public static boolean PRIMITIVE_RESULTS = true;
+  /** 
+   * A suspending call which result is returned right away doesn't capture the caller's frame if
+   * the callee's frame is captured, so recursions in tail positions don't grow the captured chain,
+   * and {@link io.github.javactrl.rt.Unwind#head} chain skips such callers
+   */
+  public static boolean TAIL_CALLS = false;
+  /** 
+   * All the frames of a class use one handler which calls the method's body by the frame's 
+   * <code>methodId</code>, instead of a handler (a hidden class) for each method
+   */
+  public static boolean CLASS_DISPATCH = false;
+  /** 
+   * The blocks saving a suspended state into the frame are moved into separate methods, so the
+   * instrumented body keeps the size closer to the original one for the JIT's inlining heuristics
+   */
+  public static boolean OUTLINE_UNWIND = true;
+  /** 
+   * Small static or private suspendable methods of the same class are inlined into their callers,
+   * their suspending calls become the callers' states, so there are less frames to capture and resume,
+   * but the inlined methods are missing in the captured chains and in the stack traces (only their
+   * line numbers are kept)
+   */
+  public static boolean INLINE_CALLS = false;
+  /** Prints the instrumented methods crossing the JIT's inlining thresholds (see {@link #inlineReport}) */
+  public static boolean INLINE_REPORT = false;
+  /** 
+   * Loops of the instrumented methods count their iterations, and each {@link #YIELD_INTERVAL} 
+   * of them call {@link io.github.javactrl.rt.Preempt#brkTick(int)}, which suspends them when the
+   * thread's budget runs out, so a scheduler can run other continuations
+   */
+  public static boolean YIELD_POINTS = false;
+  /** loop iterations between the checks of the thread's budget (see {@link #YIELD_POINTS}) */
+  public static int YIELD_INTERVAL = 1024;
+  /** 
+   * The call sites observed capturing frames in a training run, the instrumented methods without
+   * them keep their original bodies, where the suspending calls only report an <code>Unwind</code>
+   * passing them (see {@link io.github.javactrl.rt.CallFrame#missedCaptureListener}), the class's
+   * members are the same as if everything was instrumented, so it can be retransformed later;
+   * {@literal null} instruments all the methods
+   */
+  public static Profile profile = null;
+  /** 
+   * Classes without {@link #enablingAnnotation} or {@link #CTRL_TOKEN} in their constant pools 
+   * are skipped before parsing anything else (see {@link #isCandidate})
+   */
+  public static boolean PRESCAN = true;
+  /** HotSpot's default <code>MaxInlineSize</code>, bigger methods are inlined only if they are hot */
+  public static final int MAX_INLINE_SIZE = 35;
+  /** HotSpot's default <code>FreqInlineSize</code>, bigger methods aren't inlined */
+  public static final int FREQ_INLINE_SIZE = 325;
+  /** Anotation class to enable this instrumentation for a class, or only for a method */
   public static String enablingAnnotation = "Lio/github/javactrl/rt/Ctrl;";
   /**  The predicate to select methods to instrument */
   public static CallPredicate callPredicate = (owner, name) -> false;
@@ -59,16 +155,19 @@ private static class FieldDescr {
     final Type type;
     /* name of the variable in `CallFrame` */
     final String varName;
+    /* name and descriptor of the array in `CallFrame` */
+    final String arrayName;
+    final String arrayDescriptor;
     /* how many registers this type occupy */
     final int shift;
     /* storage's size (same as shift except for void it's 0) */
     final int size;
     /* the array where its values are stored */
     final int blockIndex;
-    /* mapping from its variable id to its array's index */
-    final Map<Integer, NavigableMap<Integer, Integer>> regToIndex = new HashMap<>();
-    /* mapping from its array's index to its variable id */
-    final Map<Integer, Integer> indexToReg = new HashMap<>();
+    /* mapping from its variable id to its array's index, {@literal null} for not used registers */
+    RegIndexes[] regToIndex = new RegIndexes[0];
+    /* mapping from its array's index to its variable id, the first `localsCount` items are used */
+    int[] indexToReg = new int[0];
 
     FieldDescr(Type type, int blockIndex) {
       this.type = type;
@@ -76,10 +175,89 @@ private static class FieldDescr {
       if (iname.length() > 1)
         iname = "";
       this.varName = iname;
+      arrayName = "v" + iname;
+      arrayDescriptor = "[" + type.getDescriptor();
       size = type.getSize();
       shift = size == 0 ? 1 : size;
       this.blockIndex = blockIndex;
     }
+
+    /* the register's indexes, they are created on the first request */
+    RegIndexes indexes(final int reg) {
+      if (reg >= regToIndex.length)
+        regToIndex = Arrays.copyOf(regToIndex, Math.max(reg + 1, regToIndex.length * 2));
+      var ret = regToIndex[reg];
+      if (ret == null)
+        ret = regToIndex[reg] = new RegIndexes();
+      return ret;
+    }
+
+    /* adds an index to its array for the register */
+    int addIndex(final int reg) {
+      final var index = localsCount++;
+      if (index >= indexToReg.length)
+        indexToReg = Arrays.copyOf(indexToReg, Math.max(8, indexToReg.length * 2));
+      indexToReg[index] = reg;
+      return index;
+    }
+  }
+
+  /**
+   * A sorted map from label counters to the array's indexes a register uses after them, a register
+   * may have several if it keeps different variables according to debugging info
+   */
+  private static class RegIndexes {
+    int[] keys = new int[1];
+    int[] values = new int[1];
+    int size = 0;
+
+    /* the index for the key or -1 */
+    int get(final int key) {
+      final var i = Arrays.binarySearch(keys, 0, size, key);
+      return i < 0 ? -1 : values[i];
+    }
+
+    void put(final int key, final int value) {
+      var i = Arrays.binarySearch(keys, 0, size, key);
+      if (i >= 0) {
+        values[i] = value;
+        return;
+      }
+      i = -i - 1;
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      System.arraycopy(keys, i, keys, i + 1, size - i);
+      System.arraycopy(values, i, values, i + 1, size - i);
+      keys[i] = key;
+      values[i] = value;
+      ++size;
+    }
+
+    /* the index for the greatest key less than `key` or -1 */
+    int lower(final int key) {
+      /* most registers keep a single variable */
+      if (size == 1)
+        return keys[0] < key ? values[0] : -1;
+      final var i = Arrays.binarySearch(keys, 0, size, key);
+      final var prev = (i < 0 ? -i - 1 : i) - 1;
+      return prev < 0 ? -1 : values[prev];
+    }
+  }
+
+  private static class SavedVar {
+    final FieldDescr fieldDescr;
+    /* the index in the frame's array */
+    final int index;
+    /* the register keeping the value */
+    final int reg;
+
+    SavedVar(final FieldDescr fieldDescr, final int index, final int reg) {
+      this.fieldDescr = fieldDescr;
+      this.index = index;
+      this.reg = reg;
+    }
   }
 
   private static class StateDescr {
@@ -98,9 +276,9 @@ private static class StateDescr {
     /* part of the state's opstack stored in vars blocks */
     final List<FieldDescr> stackFields = new ArrayList<>();
     /* part of the state's opstack stored in locals */
-    final List<FieldDescr> argStackFields = new LinkedList<>();
+    final List<FieldDescr> argStackFields = new ArrayList<>();
     /* part of the state's opstack stored in call frames */
-    final List<FieldDescr> storedStackFields = new LinkedList<>();
+    final List<FieldDescr> storedStackFields = new ArrayList<>();
     /* type of the function currently called */
     final Type type;
     /* the result type */
@@ -117,6 +295,23 @@ private static class StateDescr {
     protected int storedStackSize;
     /* a label's counter to resolve overlapping variables using debugging info */
     final int when;
+    /* the call's index among all the method's calls */
+    int invoke;
+    /* locals read after the call, {@literal null} if unknown (so all of them are saved) */
+    BitSet live;
+    /*
+     * locals with known constant values at the call indexed by registers, they are neither saved
+     * nor restored, {@literal null} if there are no such
+     */
+    AbstractInsnNode[] constants;
+    /* registers of the saved locals the locals are copies of at the call, or -1, {@literal null} if there are no such */
+    int[] copies;
+    /* `catch (Wind)` handlers the winding passes, outer first, {@literal null} if it isn't known statically */
+    List<LabelNode> windHandlers;
+    /* the code after the call may store variables into the frame, which may share them with its copies */
+    boolean stores = true;
+    /* the call's result is returned right away, so the frame isn't captured */
+    boolean tail;
 
     StateDescr(final String descriptor, final int id, final List<Object> stack, final List<Object> local,
         final int labelPosition) {
@@ -132,6 +327,165 @@ private static class StateDescr {
       unwind = new Label();
       cont = new Label();
     }
+
+    /* the local's value isn't needed after the call */
+    boolean isDead(final int reg) {
+      return live != null && !live.get(reg);
+    }
+
+    /* winding the frame doesn't reach any `catch` block before its callees */
+    boolean isWindless() {
+      return windHandlers != null && windHandlers.isEmpty();
+    }
+
+    /* the local's value must be stored in the frame */
+    boolean isSaved(final int reg) {
+      return !isDead(reg) && constant(reg) == null && copyOf(reg) == -1;
+    }
+
+    /* the instruction pushing the local's value, or {@literal null} if it's not a known constant */
+    AbstractInsnNode constant(final int reg) {
+      return constants == null || reg >= constants.length ? null : constants[reg];
+    }
+
+    /* the register of the local this local is a copy of, or -1 */
+    int copyOf(final int reg) {
+      return copies == null || reg >= copies.length ? -1 : copies[reg];
+    }
+  }
+
+  /** 
+   * Maintains the current thread's depth of the methods able to catch <code>Unwind</code> 
+   * (see {@link #DUAL_BODIES})
+   */
+  private static class CaptureScopeAdapter extends MethodVisitor {
+    final Label start = new Label();
+    final Label end = new Label();
+
+    CaptureScopeAdapter(final MethodVisitor mv) {
+      super(ASM9, mv);
+    }
+
+    @Override
+    public void visitCode() {
+      super.visitCode();
+      super.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame", "_enterCapture", "()V", false);
+      super.visitLabel(start);
+    }
+
+    @Override
+    public void visitInsn(final int opcode) {
+      if (opcode >= IRETURN && opcode <= RETURN)
+        super.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame", "_exitCapture", "()V", false);
+      super.visitInsn(opcode);
+    }
+
+    @Override
+    public void visitMaxs(final int maxStack, final int maxLocals) {
+      final var handler = new Label();
+      super.visitLabel(end);
+      super.visitLabel(handler);
+      super.visitFrame(F_NEW, 0, null, 1, new Object[] { "java/lang/Throwable" });
+      super.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame", "_exitCapture", "()V", false);
+      super.visitInsn(ATHROW);
+      /* it's the last one, so it's checked after all the method's own handlers */
+      super.visitTryCatchBlock(start, end, handler, null);
+      super.visitMaxs(maxStack, maxLocals);
+    }
+  }
+
+  /**
+   * Checks if any of the exception handlers can catch <code>Unwind</code>
+   * 
+   * @param tryCatchBlocks the method's exception handlers
+   * @return <code>true</code> if the method is a capture scope
+   */
+  private static boolean catchesUnwind(final List<TryCatchBlockNode> tryCatchBlocks) {
+    if (tryCatchBlocks == null)
+      return false;
+    for (final var i : tryCatchBlocks) {
+      /* `finally` and `Throwable` handlers skip it, and JDK exceptions can't be its descendants */
+      if (i.type != null && !i.type.startsWith("java/"))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Scans only the class's constant pool for the strings the instrumentation needs, the enabling 
+   * annotation's descriptor and {@link #CTRL_TOKEN} (the latter isn't needed with 
+   * {@link #DUAL_BODIES}, where <code>catch</code> blocks are tracked in all the methods), 
+   * the strings are compared as bytes, without decoding them
+   * 
+   * @param data input bytecode
+   * @return {@literal false} if the class can't be instrumented, {@literal true} if it can, or 
+   *         if the constant pool is not recognized
+   */
+  public static boolean isCandidate(final byte[] data) {
+    final var annotation = enablingAnnotation.getBytes(StandardCharsets.UTF_8);
+    final var token = CTRL_TOKEN.getBytes(StandardCharsets.UTF_8);
+    var hasAnnotation = false;
+    var hasToken = DUAL_BODIES;
+    try {
+      final var count = readUnsignedShort(data, 8);
+      var offset = 10;
+      for (var i = 1; i < count; ++i) {
+        switch (data[offset]) {
+          case 1: /* Utf8 */
+            final var length = readUnsignedShort(data, offset + 1);
+            hasAnnotation |= equalBytes(data, offset + 3, length, annotation);
+            hasToken |= equalBytes(data, offset + 3, length, token);
+            if (hasAnnotation && hasToken)
+              return true;
+            offset += 3 + length;
+            break;
+          case 7: /* Class */
+          case 8: /* String */
+          case 16: /* MethodType */
+          case 19: /* Module */
+          case 20: /* Package */
+            offset += 3;
+            break;
+          case 15: /* MethodHandle */
+            offset += 4;
+            break;
+          case 3: /* Integer */
+          case 4: /* Float */
+          case 9: /* Fieldref */
+          case 10: /* Methodref */
+          case 11: /* InterfaceMethodref */
+          case 12: /* NameAndType */
+          case 17: /* Dynamic */
+          case 18: /* InvokeDynamic */
+            offset += 5;
+            break;
+          case 5: /* Long */
+          case 6: /* Double */
+            offset += 9;
+            ++i;
+            break;
+          default:
+            return true;
+        }
+      }
+    } catch (final ArrayIndexOutOfBoundsException e) {
+      return true;
+    }
+    return false;
+  }
+
+  private static int readUnsignedShort(final byte[] data, final int offset) {
+    return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+  }
+
+  private static boolean equalBytes(final byte[] data, final int offset, final int length, final byte[] str) {
+    if (length != str.length)
+      return false;
+    for (var i = 0; i < length; ++i) {
+      if (data[offset + i] != str[i])
+        return false;
+    }
+    return true;
   }
 
   /** 
@@ -141,16 +495,45 @@ private static class StateDescr {
    * @return instrumented bytecode or {@literal null} if nothing is changed there
    */
   public static byte[] instrumentClass(final byte[] data) {
+    return instrumentClass(data, callPredicate);
+  }
+
+  /** 
+   * Instrumets class bytecode
+   * 
+   * @param data input bytecode
+   * @param callPredicate selects calls which can suspend
+   * @return instrumented bytecode or {@literal null} if nothing is changed there
+   */
+  public static byte[] instrumentClass(final byte[] data, final CallPredicate callPredicate) {
+    if (PRESCAN && !isCandidate(data))
+      return null;
     final var cr = new ClassReader(data);
     final var ci = new ClassNode(ASM9);
     final var cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
 
     final var visitor = new ClassVisitor(ASM9, ci) {
       String className;
+      boolean isInterface;
+      ClassNode pristine;
+      ClassNode expanded;
+      /* the expanded class's methods by their names and descriptors */
+      Map<String, MethodNode> expandedMethods;
+      /* the methods which calls can be inlined */
+      Map<String, MethodNode> inlinable;
+      /* the methods' bodies with inlined calls or yield points, analyzed instead of the original ones */
+      final Map<String, MethodNode> rewrittenBodies = new HashMap<>();
       final Map<String, Integer> methodIds = new HashMap<>();
+      /* the instrumented methods' ids by their names and descriptors, in the visiting order */
+      final Map<String, String> ccIds = new LinkedHashMap<>();
+      /* the frame handlers' ids, called by the class's dispatcher (see {@link #CLASS_DISPATCH}) */
+      final List<String> dispatched = new ArrayList<>();
       boolean anythingInstrumented = false;
       boolean innerClassAlreadySet = false;
       boolean classNeedsInstrumentation = false;
+      /* the methods annotated with `enablingAnnotation`, if the class itself isn't */
+      Set<String> ctrlMethods;
+      Set<String> sentinelTargets;
 
       public AnnotationVisitor visitAnnotation(final String descriptor, final boolean visible) {
         if (enablingAnnotation.equals(descriptor))
@@ -167,9 +550,129 @@ public void visit(
           final String superName,
           final String[] interfaces) {
         this.className = name;
+        this.isInterface = (access & ACC_INTERFACE) != 0;
         ci.visit(version, access, name, signature, superName, interfaces);
       }
 
+      Set<String> ctrlMethods() {
+        if (ctrlMethods == null) {
+          ctrlMethods = new HashSet<>();
+          if (!classNeedsInstrumentation) {
+            cr.accept(new ClassVisitor(ASM9) {
+              @Override
+              public MethodVisitor visitMethod(final int access, final String name, final String descriptor,
+                  final String signature, final String[] exceptions) {
+                return new MethodVisitor(ASM9) {
+                  @Override
+                  public AnnotationVisitor visitAnnotation(final String annotation, final boolean visible) {
+                    if (enablingAnnotation.equals(annotation))
+                      ctrlMethods.add(name + descriptor);
+                    return null;
+                  }
+                };
+              }
+            }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+          }
+        }
+        return ctrlMethods;
+      }
+
+      /** Checks if the class or any of its methods is annotated with {@link #enablingAnnotation} */
+      boolean anyEnabled() {
+        return classNeedsInstrumentation || !ctrlMethods().isEmpty();
+      }
+
+      /** Checks if the method's suspending calls are instrumented */
+      boolean isEnabled(final String name, final String descriptor) {
+        return classNeedsInstrumentation || ctrlMethods().contains(name + descriptor);
+      }
+
+      /* the class with expanded frames, for inlining and the dataflow analysis */
+      ClassNode expandedClass() {
+        if (expanded == null) {
+          expanded = new ClassNode(ASM9);
+          cr.accept(expanded, ClassReader.EXPAND_FRAMES);
+          inlinable = Inliner.callees(expanded);
+          expandedMethods = new HashMap<>();
+          for (final var i : expanded.methods)
+            expandedMethods.put(i.name + i.desc, i);
+        }
+        return expanded;
+      }
+
+      /* the method's original body with expanded frames */
+      MethodNode expandedMethod(final String name, final String descriptor) {
+        expandedClass();
+        return expandedMethods.get(name + descriptor);
+      }
+
+      /**
+       * Replaces the method's calls of small suspendable methods of the same class with their 
+       * bodies (see {@link #INLINE_CALLS}), and adds yield points to its loops (see 
+       * {@link #YIELD_POINTS}) before instrumenting it
+       */
+      MethodVisitor rewriteBody(final int access, final String name, final String descriptor,
+          final MethodVisitor next) {
+        if (!(INLINE_CALLS || YIELD_POINTS) || isInterface)
+          return next;
+        final var caller = expandedMethod(name, descriptor);
+        if (caller == null)
+          return next;
+        /* the frames captured by the method's own `catch (Unwind)` blocks must stay */
+        final var inline = INLINE_CALLS && !inlinable.isEmpty() && !catchesUnwind(caller.tryCatchBlocks)
+            && Inliner.calls(className, caller, inlinable);
+        final var yieldPoints = YIELD_POINTS && YieldPoints.loops(caller);
+        if (!inline && !yieldPoints)
+          return next;
+        final var body = new MethodNode(ASM9, access, name, descriptor, null, null) {
+          @Override
+          public void visitEnd() {
+            super.visitEnd();
+            accept(next);
+          }
+        };
+        rewrittenBodies.put(name + descriptor, body);
+        MethodVisitor ret = body;
+        var maxLocals = caller.maxLocals;
+        if (yieldPoints)
+          ret = new YieldPoints(className, access, name, descriptor, maxLocals++, ret);
+        if (inline)
+          ret = new Inliner(className, access, name, descriptor, maxLocals, inlinable, ret);
+        return ret;
+      }
+
+      /* the original class */
+      ClassNode pristineClass() {
+        if (pristine == null) {
+          pristine = new ClassNode(ASM9);
+          cr.accept(pristine, 0);
+        }
+        return pristine;
+      }
+
+      /**
+       * Checks if the method has a variant returning the <code>Unwind</code> object instead of
+       * throwing it (see {@link #SENTINEL_UNWIND}), they are generated for instrumented methods 
+       * which can't be overridden, so the calls of the same class can use it
+       */
+      boolean isSentinelTarget(final String name, final String descriptor) {
+        if (!SENTINEL_UNWIND || LAZY_FRAMES || isInterface || !anyEnabled())
+          return false;
+        if (sentinelTargets == null) {
+          sentinelTargets = new HashSet<>();
+          final var cls = pristineClass();
+          for (final var i : cls.methods) {
+            if (i.name.equals("<init>") || i.name.equals("<clinit>") || !i.exceptions.contains(CTRL_TOKEN)
+                || !isEnabled(i.name, i.desc)
+                || (i.access & (ACC_ABSTRACT | ACC_NATIVE | ACC_BRIDGE)) != 0)
+              continue;
+            if ((i.access & (ACC_STATIC | ACC_PRIVATE | ACC_FINAL)) != 0 || (cls.access & ACC_FINAL) != 0)
+              sentinelTargets.add(i.name + i.desc);
+          }
+        }
+        return sentinelTargets.contains(name + descriptor);
+      }
+
       @Override
       public void visitInnerClass(final String name, final String outerName, final String innerName, final int access) {
         if (name.equals("java/lang/invoke/MethodHandles$Lookup"))
@@ -177,8 +680,194 @@ public void visitInnerClass(final String name, final String outerName, final Str
         super.visitInnerClass(name, outerName, innerName, access);
       }
 
+      void intConst(MethodVisitor dest, int i) {
+        if (i < Short.MAX_VALUE)
+          dest.visitIntInsn(i < Byte.MAX_VALUE ? BIPUSH : SIPUSH, i);
+        else
+          dest.visitLdcInsn(i);
+      }
+
+      /* the only frame handler of the class calling the methods' bodies by the frame's method id */
+      void generateDispatcher() {
+        final var handlerDesc = "(Lio/github/javactrl/rt/CallFrame;[I[J[F[D[Ljava/lang/Object;)Ljava/lang/Object;";
+        final var locals = new Object[] { "io/github/javactrl/rt/CallFrame", "[I", "[J", "[F", "[D",
+            "[Ljava/lang/Object;" };
+        final var dispatch = ci.visitMethod(ACC_SYNTHETIC + ACC_PRIVATE + ACC_STATIC, "$cc$dispatch", handlerDesc,
+            null, null);
+        dispatch.visitCode();
+        final var dflt = new Label();
+        final var labels = new Label[dispatched.size()];
+        for (var i = 0; i < labels.length; ++i)
+          labels[i] = new Label();
+        dispatch.visitVarInsn(ALOAD, 0);
+        dispatch.visitFieldInsn(GETFIELD, "io/github/javactrl/rt/CallFrame", "methodId", "I");
+        dispatch.visitTableSwitchInsn(0, labels.length - 1, dflt, labels);
+        for (var i = 0; i < labels.length; ++i) {
+          dispatch.visitLabel(labels[i]);
+          dispatch.visitFrame(F_NEW, locals.length, locals.clone(), 0, null);
+          for (var j = 0; j < locals.length; ++j)
+            dispatch.visitVarInsn(ALOAD, j);
+          dispatch.visitMethodInsn(INVOKESTATIC, className, format("%s$cc", dispatched.get(i)), handlerDesc, false);
+          dispatch.visitInsn(ARETURN);
+        }
+        dispatch.visitLabel(dflt);
+        dispatch.visitFrame(F_NEW, locals.length, locals.clone(), 0, null);
+        dispatch.visitTypeInsn(NEW, "java/lang/Error");
+        dispatch.visitInsn(DUP);
+        dispatch.visitLdcInsn("INTERNAL: invalid method id");
+        dispatch.visitMethodInsn(INVOKESPECIAL, "java/lang/Error", "<init>", "(Ljava/lang/String;)V", false);
+        dispatch.visitInsn(ATHROW);
+        dispatch.visitMaxs(locals.length, locals.length);
+        dispatch.visitEnd();
+        final var dispatcher = ci.visitMethod(ACC_SYNTHETIC + ACC_PUBLIC + ACC_STATIC, "$cc$dispatcher",
+            "()Lio/github/javactrl/rt/CallFrame$_Handler;", null, null);
+        dispatcher.visitCode();
+        dispatcher.visitInvokeDynamicInsn("run", "()Lio/github/javactrl/rt/CallFrame$_Handler;", new Handle(
+            H_INVOKESTATIC,
+            "java/lang/invoke/LambdaMetafactory", "metafactory",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
+            false),
+            new Object[] { Type.getType(handlerDesc), new Handle(H_INVOKESTATIC, className, "$cc$dispatch", handlerDesc, false),
+                Type.getType(handlerDesc) });
+        dispatcher.visitInsn(ARETURN);
+        dispatcher.visitMaxs(1, 0);
+        dispatcher.visitEnd();
+        /* method names by their ids, for deserialization */
+        final var methods = ci.visitMethod(ACC_SYNTHETIC + ACC_PUBLIC + ACC_STATIC, "$cc$methods",
+            "()[Ljava/lang/String;", null, null);
+        methods.visitCode();
+        intConst(methods, dispatched.size());
+        methods.visitTypeInsn(ANEWARRAY, "java/lang/String");
+        for (var i = 0; i < dispatched.size(); ++i) {
+          methods.visitInsn(DUP);
+          intConst(methods, i);
+          methods.visitLdcInsn(dispatched.get(i));
+          methods.visitInsn(AASTORE);
+        }
+        methods.visitInsn(ARETURN);
+        methods.visitMaxs(4, 0);
+        methods.visitEnd();
+      }
+
+      /**
+       * Puts back the original bodies of the instrumented methods without any site in the profile, 
+       * their suspending calls are replaced with calls of the guards reporting an 
+       * <code>Unwind</code> passing them (see {@link #profile})
+       */
+      void applyProfile() {
+        final var guardIds = new HashMap<String, Integer>();
+        final var guards = new ArrayList<MethodInsnNode>();
+        final var restored = new ArrayList<MethodNode>();
+        expandedClass();
+        for (final var i : ccIds.entrySet()) {
+          final var original = expandedMethods.get(i.getKey());
+          final var site = format("%s.%s", className.replace('/', '.'), original.name);
+          final var body = new MethodNode(ASM9, original.access, original.name, original.desc, null, null);
+          final MethodVisitor dest = DUAL_BODIES && catchesUnwind(original.tryCatchBlocks)
+              ? new CaptureScopeAdapter(body) : body;
+          final var guarded = new MethodVisitor(ASM9, dest) {
+            @Override
+            public void visitMethodInsn(final int opcode, final String owner, final String name,
+                final String descriptor, final boolean isInterface) {
+              if (!isGuarded(opcode, owner, name, descriptor)) {
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                return;
+              }
+              final int guardId = guardIds.computeIfAbsent(format("%d %s.%s%s", opcode, owner, name, descriptor), k -> {
+                guards.add(new MethodInsnNode(opcode, owner, name, descriptor, isInterface));
+                return guards.size() - 1;
+              });
+              super.visitLdcInsn(format("%s calling %s.%s", site, owner.replace('/', '.'), name));
+              super.visitMethodInsn(INVOKESTATIC, className, format("$cc$guard$%d", guardId),
+                  guardDescriptor(guards.get(guardId)), false);
+            }
+          };
+          original.instructions.resetLabels();
+          guarded.visitCode();
+          for (final var j : original.tryCatchBlocks)
+            j.accept(guarded);
+          original.instructions.accept(guarded);
+          if (original.localVariables != null)
+            for (final var j : original.localVariables)
+              j.accept(guarded);
+          guarded.visitMaxs(original.maxStack + 1, original.maxLocals);
+          /* the guards are generated in the same order even if the class is instrumented fully */
+          if (!profile.instruments(className, i.getValue()))
+            restored.add(body);
+        }
+        for (final var body : restored) {
+          for (final var method : ci.methods) {
+            if (!method.name.equals(body.name) || !method.desc.equals(body.desc))
+              continue;
+            method.instructions = body.instructions;
+            method.tryCatchBlocks = body.tryCatchBlocks;
+            method.localVariables = body.localVariables;
+            method.visibleLocalVariableAnnotations = null;
+            method.invisibleLocalVariableAnnotations = null;
+            method.maxStack = body.maxStack;
+            method.maxLocals = body.maxLocals;
+          }
+        }
+        for (var i = 0; i < guards.size(); ++i)
+          generateGuard(format("$cc$guard$%d", i), guards.get(i));
+      }
+
+      /* the calls suspending in the instrumented code, except constructors and super calls */
+      boolean isGuarded(final int opcode, final String owner, final String name, final String descriptor) {
+        return callPredicate.test(owner, name, descriptor) && !name.equals("<init>")
+            && (opcode != INVOKESPECIAL || owner.equals(className));
+      }
+
+      /* the guard's arguments are the receiver, the call's arguments and the site's description */
+      String guardDescriptor(final MethodInsnNode call) {
+        final var args = new ArrayList<Type>();
+        if (call.getOpcode() != INVOKESTATIC)
+          args.add(Type.getObjectType(call.owner));
+        args.addAll(Arrays.asList(Type.getArgumentTypes(call.desc)));
+        args.add(Type.getType(String.class));
+        return Type.getMethodDescriptor(Type.getReturnType(call.desc), args.toArray(new Type[0]));
+      }
+
+      /* the call passing `Unwind` to `CallFrame._missedCapture` */
+      void generateGuard(final String guardName, final MethodInsnNode call) {
+        final var descriptor = guardDescriptor(call);
+        final var args = Type.getArgumentTypes(descriptor);
+        final var retType = Type.getReturnType(descriptor);
+        final var guard = ci.visitMethod(ACC_SYNTHETIC + ACC_PRIVATE + ACC_STATIC, guardName, descriptor, null, null);
+        final var start = new Label();
+        final var end = new Label();
+        final var handler = new Label();
+        guard.visitCode();
+        guard.visitTryCatchBlock(start, end, handler, "io/github/javactrl/rt/Unwind");
+        guard.visitLabel(start);
+        var slot = 0;
+        final var locals = new Object[args.length];
+        for (var i = 0; i < args.length; ++i) {
+          if (i < args.length - 1)
+            guard.visitVarInsn(args[i].getOpcode(ILOAD), slot);
+          locals[i] = Inliner.frameType(args[i]);
+          slot += args[i].getSize();
+        }
+        guard.visitMethodInsn(call.getOpcode(), call.owner, call.name, call.desc, call.itf);
+        guard.visitLabel(end);
+        guard.visitInsn(retType.getOpcode(IRETURN));
+        guard.visitLabel(handler);
+        guard.visitFrame(F_NEW, locals.length, locals, 1, new Object[] { "io/github/javactrl/rt/Unwind" });
+        guard.visitLdcInsn(Type.getObjectType(className));
+        guard.visitVarInsn(ALOAD, slot - 1);
+        guard.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame", "_missedCapture",
+            "(Lio/github/javactrl/rt/Unwind;Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/Throwable;", false);
+        guard.visitInsn(ATHROW);
+        guard.visitMaxs(Math.max(slot, 3), slot);
+        guard.visitEnd();
+      }
+
       @Override
       public void visitEnd() {
+        if (profile != null && !isInterface && !ccIds.isEmpty())
+          applyProfile();
+        if (!dispatched.isEmpty())
+          generateDispatcher();
         if (anythingInstrumented && !innerClassAlreadySet)
           super.visitInnerClass("java/lang/invoke/MethodHandles$Lookup", "java/lang/invoke/MethodHandles", "Lookup",
               ACC_PUBLIC | ACC_FINAL | ACC_STATIC);
@@ -192,9 +881,20 @@ public MethodVisitor visitMethod(final int access,
           final String signature,
           final String[] exceptions) {
         final var method = ci.visitMethod(access, name, descriptor, signature, exceptions);
-        if (!classNeedsInstrumentation || name.equals("<init>") || name.equals("<clinit>")
-            || exceptions == null || !Arrays.asList(exceptions).contains(CTRL_TOKEN))
+        if (name.equals("<init>") || name.equals("<clinit>") || !anyEnabled())
           return method;
+        if (exceptions == null || !Arrays.asList(exceptions).contains(CTRL_TOKEN) || !isEnabled(name, descriptor)) {
+          if (!DUAL_BODIES)
+            return method;
+          /* capture scopes must be tracked even if the method itself can't be suspended */
+          return new MethodNode(ASM9, access, name, descriptor, signature, exceptions) {
+            @Override
+            public void visitEnd() {
+              super.visitEnd();
+              accept(catchesUnwind(tryCatchBlocks) ? new CaptureScopeAdapter(method) : method);
+            }
+          };
+        }
         final var methodType = Type.getType(descriptor);
         final var retType = methodType.getReturnType();
         final var ccInterm = new MethodNode(ASM9);
@@ -210,22 +910,29 @@ public MethodVisitor visitMethod(final int access,
         final int stackStart = stateVarCount++;
         final var paramsFields = new ArrayList<FieldDescr>();
         final var visitedLabels = new HashMap<LabelNode, Integer>();
-        final var visitedVarIns = new ArrayList<Integer>();
         final var frameNodes = new HashSet<FrameNode>();
         final var fixNullTypeLocals = new ArrayList<StateDescr>();
 
-        return new AnalyzerAdapter(ASM9, className, access, name, descriptor, method) {
+        return rewriteBody(access, name, descriptor, new AnalyzerAdapter(ASM9, className, access, name, descriptor, method) {
 
           final List<StateDescr> states = new ArrayList<>();
           Object[] paramsTypes;
+          String frameClassName;
+          String frameClassBytes;
           int maxStackSize = 0;
           int maxLocalsSize = 0;
           int invokeCounter = 0;
+          int methodId = -1;
+          /* label counters at each local's store instruction, read in the same order by the later passes */
+          int[] visitedVarIns = new int[64];
+          int visitedVarInsCount = 0;
+          /* the next store instruction's position in `visitedVarIns` for the current pass */
+          int varInsIter = 0;
           Set<Integer> skipInvoke = new HashSet<>();
 
           class UninitializedDescr {
             final String objType;
-            final List<FieldDescr> fields = new LinkedList<>();
+            final List<FieldDescr> fields = new ArrayList<>();
             final List<Object> types;
             final int count;
 
@@ -285,16 +992,9 @@ FieldDescr getTypeFieldDescr(final Type type) {
             }
           }
 
-          void intConst(MethodVisitor dest, int i) {
-            if (i < Short.MAX_VALUE)
-              dest.visitIntInsn(i < Byte.MAX_VALUE ? BIPUSH : SIPUSH, i);
-            else
-              dest.visitLdcInsn(i);
-          }
-
           List<Object> to1ElemOpTypes(List<Object> ocTypes) {
             final var iter = ocTypes.iterator();
-            final var ret = new ArrayList<>();
+            final var ret = new ArrayList<>(ocTypes.size());
             while (iter.hasNext()) {
               final var code = iter.next();
               if (code == LONG || code == DOUBLE)
@@ -305,7 +1005,14 @@ List<Object> to1ElemOpTypes(List<Object> ocTypes) {
           }
 
           Object[] to1ElemOpTypes(Object[] ocTypes) {
-            return to1ElemOpTypes(List.of(ocTypes)).toArray();
+            final var ret = new ArrayList<>(ocTypes.length);
+            for (var i = 0; i < ocTypes.length; ++i) {
+              final var code = ocTypes[i];
+              if (code == LONG || code == DOUBLE)
+                ++i;
+              ret.add(code);
+            }
+            return ret.toArray();
           }
 
           void getFields(List<FieldDescr> ret, List<Object> vars) {
@@ -372,7 +1079,7 @@ public void visitMethodInsn(final int opcode, final String owner, final String n
               super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
               return;
             }
-            if (!callPredicate.test(owner, name)) {
+            if (!callPredicate.test(owner, name, descriptor) && !YieldPoints.isYield(owner, name, descriptor)) {
               super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
               skipInvoke.add(id);
               return;
@@ -389,6 +1096,7 @@ public void visitMethodInsn(final int opcode, final String owner, final String n
             getFields(state.localFields, locals);
             if (locals.contains(NULL))
               fixNullTypeLocals.add(state);
+            state.invoke = id;
             states.add(state);
             super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
             for (final var i : to1ElemOpTypes(stack)) {
@@ -427,14 +1135,23 @@ public void visitLabel(final Label label) {
             visitedLabels.put((LabelNode) ccInterm.instructions.getLast(), visitedLabels.size());
           }
 
+          int getStoreIndex(FieldDescr fieldDescr, int reg, int when) {
+            final var index = fieldDescr.regToIndex[reg].lower(when);
+            if (index == -1)
+              return reg;
+            return index;
+          }
+
           private void regVar(final FieldDescr fieldDescr, final int regId) {
-            fieldDescr.regToIndex.computeIfAbsent(regId, _i -> {
-              final var ret = new TreeMap<Integer, Integer>();
-              final var index = fieldDescr.localsCount++;
-              ret.put(-1, index);
-              fieldDescr.indexToReg.put(index, regId);
-              return ret;
-            });
+            final var indexes = fieldDescr.indexes(regId);
+            if (indexes.size == 0)
+              indexes.put(-1, fieldDescr.addIndex(regId));
+          }
+
+          void addVisitedVarIns() {
+            if (visitedVarInsCount == visitedVarIns.length)
+              visitedVarIns = Arrays.copyOf(visitedVarIns, visitedVarInsCount * 2);
+            visitedVarIns[visitedVarInsCount++] = visitedLabels.size();
           }
 
           @Override
@@ -443,7 +1160,7 @@ public void visitVarInsn(final int opcode, final int regId) {
             maxLocalsSize = Math.max(maxLocalsSize, regId + 1);
             regVar(opcodeFieldDescr(opcode), regId);
             if (opcode >= ISTORE)
-              visitedVarIns.add(visitedLabels.size());
+              addVisitedVarIns();
           }
 
           @Override
@@ -451,7 +1168,7 @@ public void visitIincInsn(final int regId, final int increment) {
             super.visitIincInsn(regId, increment);
             regVar(intFD, regId);
             maxLocalsSize = Math.max(maxLocalsSize, regId + 1);
-            visitedVarIns.add(visitedLabels.size());
+            addVisitedVarIns();
           }
 
           @Override
@@ -467,185 +1184,1060 @@ public void visitCode() {
             }
           }
 
-          @Override
-          public void visitEnd() {
-            ccInterm.visitEnd();
-            if (states.size() == 0) {
-              ccInterm.accept(method);
+          /* the method's original body */
+          MethodNode pristineMethod() {
+            for (final var i : pristineClass().methods) {
+              if (i.name.equals(name) && i.desc.equals(descriptor))
+                return i;
+            }
+            return null;
+          }
+
+          /**
+           * Copies the original method's body into a private synthetic method, it's called
+           * instead of the instrumented one if nothing on the thread's stack can catch 
+           * <code>Unwind</code> (see {@link #DUAL_BODIES})
+           */
+          void generatePlainBody(final String plainName) {
+            final var i = pristineMethod();
+            if (i != null) {
+              i.visibleAnnotations = i.invisibleAnnotations = null;
+              i.visibleTypeAnnotations = i.invisibleTypeAnnotations = null;
+              i.visibleParameterAnnotations = i.invisibleParameterAnnotations = null;
+              i.visibleLocalVariableAnnotations = i.invisibleLocalVariableAnnotations = null;
+              i.annotationDefault = null;
+              i.parameters = null;
+              i.accept(ci.visitMethod(
+                  (access & ~(ACC_PUBLIC | ACC_PROTECTED | ACC_VARARGS | ACC_BRIDGE)) | ACC_PRIVATE | ACC_SYNTHETIC,
+                  plainName, descriptor, i.signature, i.exceptions.toArray(new String[0])));
+            }
+          }
+
+          /**
+           * Finds the locals which aren't needed after each state's call, and the locals
+           * with values which can be recomputed on resume (see {@link #SAVE_LIVE_ONLY})
+           */
+          void analyzeLiveness() {
+            /* the expanded class has the same instructions, and it's already parsed for inlining */
+            var method = rewrittenBodies.get(name + descriptor);
+            if (method == null)
+              method = expandedMethod(name, descriptor);
+            final var liveness = method == null ? null : Liveness.analyze(method);
+            if (liveness == null)
               return;
+            /* `catch` blocks of `Unwind` can change the locals of the suspended frame */
+            final var recompute = !catchesUnwind(ccInterm.tryCatchBlocks);
+            for (final var state : states) {
+              final var call = (MethodInsnNode) liveness.invoke(state.invoke);
+              if (!call.desc.equals(state.type.getDescriptor()))
+                return;
             }
-            anythingInstrumented = true;
-            /* # handling different locals with the same index */
-            final var num = methodIds.merge(name, 0, (name, prev) -> prev + 1);
-            final var ccId = num == 0 ? name : format("%s$%d", name, num);
-            final var ccName = format("%s$cc", ccId);
-            final var ccLambdaName = format("%s$cc$lambda", ccId);
-            final var localsStart = stackStart + maxStackSize;
-            final var tempVarsStart = localsStart + maxLocalsSize;
-            /* # fixing javac (but not ECJ) generated strange finally block (not needed for ECJ) */
-            /* it seems to be a Sun javac bug */
-            /* https://stackoverflow.com/questions/6386917/strange-exception-table-entry-produced-by-suns-javac */
-            if (ccInterm.tryCatchBlocks != null) {
-              final var toDelete = new ArrayList<TryCatchBlockNode>();
-              for (final var i : ccInterm.tryCatchBlocks) {
-                if (i.type != null)
+            for (final var state : states) {
+              state.live = new BitSet();
+              for (int reg = 0, len = state.localTypes.length; reg < len; ++reg) {
+                final var type = state.localTypes[reg];
+                if (type == TOP || type == NULL || type instanceof Label || type == UNINITIALIZED_THIS)
                   continue;
-                /* if handler is inside the body ignoreing this */
-                final var startIndex = ccInterm.instructions.indexOf(i.start);
-                final var endIndex = ccInterm.instructions.indexOf(i.end);
-                final var handlerIndex = ccInterm.instructions.indexOf(i.handler);
-                if (handlerIndex >= startIndex && handlerIndex < endIndex) {
-                  if (startIndex == endIndex || startIndex == handlerIndex)
-                    toDelete.add(i);
-                  else
-                    i.end = i.handler;
+                if (!liveness.isLive(state.invoke, reg))
+                  continue;
+                state.live.set(reg);
+                if (!recompute)
+                  continue;
+                final var constant = liveness.constant(state.invoke, reg);
+                if (constant != null) {
+                  if (state.constants == null)
+                    state.constants = new AbstractInsnNode[len];
+                  state.constants[reg] = constant;
+                  continue;
+                }
+                final var source = liveness.copyOf(state.invoke, reg);
+                if (source == -1 || source >= len)
+                  continue;
+                final var sourceType = state.localTypes[source];
+                if (sourceType instanceof String ? type instanceof String : sourceType.equals(type)) {
+                  if (state.copies == null) {
+                    state.copies = new int[len];
+                    Arrays.fill(state.copies, -1);
+                  }
+                  state.copies[reg] = source;
                 }
               }
-              for (final var i : toDelete)
-                ccInterm.tryCatchBlocks.remove(i);
-              /* injecting skip/check exception */
-              for (final var i : ccInterm.tryCatchBlocks) {
-                final var handler = i.handler;
-                var iter = handler.getNext();
-                while (iter != null && !(iter instanceof FrameNode) && iter.getOpcode() == -1)
-                  iter = iter.getNext();
-                assert iter instanceof FrameNode;
-                ccInterm.instructions.insert(iter, new MethodInsnNode(INVOKEVIRTUAL, "javactrl:@@@EH@@@",
-                    i.type == null || i.type.equals("java/lang/Throwable") ? "_skipException"
-                        : i.type.equals("io/github/javactrl/rt/CThrowable") ? "_skipWind"
-                            : "_checkException",
-                    "(Ljava/lang/Throwable;)V", false));
+            }
+            for (final var state : states) {
+              if (state.copies == null)
+                continue;
+              var any = false;
+              for (int reg = 0, len = state.copies.length; reg < len; ++reg) {
+                final var source = state.copies[reg];
+                if (source != -1 && !state.isSaved(source))
+                  state.copies[reg] = -1;
+                any |= state.copies[reg] != -1;
               }
+              if (!any)
+                state.copies = null;
             }
-            /* # fixing overlapping variables ids */
-            if (ccInterm.localVariables != null) {
-              final var varTypes = new HashMap<Integer, NavigableMap<Integer, String>>();
-              final var declaredLocals = new HashMap<Integer, LabelNode>();
-              for (final var i : ccInterm.localVariables) {
-                final var regId = i.index;
-                i.index += localsStart;
-                final var fieldDescr = getTypeFieldDescr(Type.getType(i.desc));
-                final var varMap = fieldDescr.regToIndex;
-                /* asm sometimes run vars change before the start label, so we use the previous end label */
-                final var prevEnd = declaredLocals.getOrDefault(regId, null);
-                final var typeMap = varTypes.computeIfAbsent(regId, _i -> new TreeMap<>());
-                final var indexMap = varMap.computeIfAbsent(regId, _i -> new TreeMap<>());
-                int index;
-                if (prevEnd == null) {
-                  typeMap.put(-1, i.desc);
-                  index = indexMap.getOrDefault(-1, -1);
-                  if (index == -1) {
-                    index = fieldDescr.localsCount++;
-                    indexMap.put(-1, index);
+          }
+
+          /* instruction indexes of the method's calls, `StateDescr.invoke` is an index in this list */
+          List<Integer> callPositions() {
+            final var insns = ccInterm.instructions;
+            final var calls = new ArrayList<Integer>();
+            for (var i = 0; i < insns.size(); ++i) {
+              final var insn = insns.get(i);
+              if (insn instanceof MethodInsnNode && !((MethodInsnNode) insn).owner.equals("javactrl:@@@EH@@@"))
+                calls.add(i);
+            }
+            return calls;
+          }
+
+          /**
+           * Follows the path of the winding exception object from each state's call through the 
+           * exception handlers, like the JVM does, to find the <code>catch (Wind)</code> blocks it
+           * reaches (see {@link #WIND_TABLES})
+           */
+          void findWindHandlers() {
+            final var insns = ccInterm.instructions;
+            final var calls = callPositions();
+            final var tryCatchBlocks = ccInterm.tryCatchBlocks == null ? List.<TryCatchBlockNode>of()
+                : ccInterm.tryCatchBlocks;
+            nextState: for (final var state : states) {
+              final var handlers = new ArrayList<LabelNode>();
+              var pos = calls.get(state.invoke);
+              /* each step goes to an outer handler, more steps mean a loop */
+              for (var step = 0; step <= tryCatchBlocks.size(); ++step) {
+                TryCatchBlockNode found = null;
+                for (final var i : tryCatchBlocks) {
+                  if (pos < insns.indexOf(i.start) || pos >= insns.indexOf(i.end))
+                    continue;
+                  final var type = i.type;
+                  if (type == null || type.equals("java/lang/Throwable") || type.equals(CTRL_TOKEN)
+                      || type.equals("io/github/javactrl/rt/Wind")) {
+                    found = i;
+                    break;
                   }
-                } else {
-                  index = fieldDescr.localsCount++;
-                  final var lab = visitedLabels.get(prevEnd);
-                  typeMap.put(lab, i.desc);
-                  indexMap.put(lab, index);
+                  /* a descendant of `Wind` may or may not match it, it's resolved by the old way */
+                  if (!type.startsWith("java/") && !type.equals("io/github/javactrl/rt/Unwind"))
+                    continue nextState;
                 }
-                fieldDescr.indexToReg.put(index, regId);
-                declaredLocals.put(regId, i.end);
-              }
-              for (final var state : fixNullTypeLocals) {
-                for (int i = 0, len = state.localTypes.length; i < len; ++i) {
-                  if (state.localTypes[i] == NULL) {
-                    final var tmap = varTypes.getOrDefault(i, null);
-                    if (tmap == null)
-                      continue;
-                    final var tentry = tmap.lowerEntry(state.when);
-                    if (tentry == null)
-                      continue;
-                    state.localTypes[i] = Type.getType(tentry.getValue()).getInternalName();
-                  }
+                if (found == null) {
+                  state.windHandlers = handlers;
+                  continue nextState;
                 }
+                /* other handlers rethrow it from their beginning */
+                if ("io/github/javactrl/rt/Wind".equals(found.type))
+                  handlers.add(0, found.handler);
+                pos = insns.indexOf(found.handler);
               }
             }
-            /* # generating redirect method */
-            method.visitCode();
-            for (final var i : fieldDescrs)
-              i.count = 0;
-            var regId = 0;
-            method.visitLdcInsn(Type.getObjectType(className));
-            method.visitLdcInsn(ccId);
-            for (final var fieldDescr : fieldDescrs)
-              intConst(method, fieldDescr.stack + fieldDescr.localsCount);
-            method.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame", "_create",
-                "(Ljava/lang/Class;Ljava/lang/String;IIIII)Lio/github/javactrl/rt/CallFrame;", false);
-            for (final var fieldDescr : fieldDescrs)
-              fieldDescr.count = 0;
-            for (final var fieldDescr : paramsFields)
-              fieldDescr.count++;
-            for (final var fieldDescr : fieldDescrs) {
-              if (fieldDescr.count == 0)
+          }
+
+          /**
+           * Finds the states which return the call's result right after the call, outside of any
+           * exception handler (see {@link #TAIL_CALLS})
+           */
+          void findTailCalls() {
+            if ((access & ACC_SYNCHRONIZED) != 0 || catchesUnwind(ccInterm.tryCatchBlocks))
+              return;
+            final var insns = ccInterm.instructions;
+            final var calls = callPositions();
+            final var tryCatchBlocks = ccInterm.tryCatchBlocks == null ? List.<TryCatchBlockNode>of()
+                : ccInterm.tryCatchBlocks;
+            final var retOpcode = retType.getOpcode(IRETURN);
+            nextState: for (final var state : states) {
+              /* the resumed result is passed on as is, e.g. a `char` call's result can't be an `int` method's */
+              if (!state.retType.equals(retType)
+                  && (state.retType.getSort() < Type.ARRAY || retType.getSort() < Type.ARRAY))
                 continue;
-              method.visitInsn(DUP);
-              method.visitFieldInsn(GETFIELD, "io/github/javactrl/rt/CallFrame", format("v%s", fieldDescr.varName),
-                  format("[%s", fieldDescr.type.getDescriptor()));
-              final var vloadOp = fieldDescr.type.getOpcode(ILOAD);
-              final var storeOp = fieldDescr.type.getOpcode(IASTORE);
-              for (int index = 0, last = fieldDescr.count - 1; index <= last; ++index) {
-                if (index != last)
-                  method.visitInsn(DUP);
-                intConst(method, index + fieldDescr.stack);
-                method.visitVarInsn(vloadOp, fieldDescr.indexToReg.get(index));
-                method.visitInsn(storeOp);
+              final int call = calls.get(state.invoke);
+              for (final var i : tryCatchBlocks) {
+                if (call >= insns.indexOf(i.start) && call < insns.indexOf(i.end))
+                  continue nextState;
               }
+              var insn = insns.get(call).getNext();
+              for (var steps = 0; insn != null && steps < insns.size(); ++steps) {
+                if (insn.getOpcode() == GOTO)
+                  insn = ((JumpInsnNode) insn).label;
+                else if (insn.getOpcode() == -1)
+                  insn = insn.getNext();
+                else
+                  break;
+              }
+              state.tail = insn != null && insn.getOpcode() == retOpcode;
             }
-            method.visitInsn(DUP);
-            method.visitVarInsn(ASTORE, 1);
-            method.visitMethodInsn(INVOKESTATIC, className, ccLambdaName,
-                "()Lio/github/javactrl/rt/CallFrame$_Handler;", false);
-            method.visitInsn(DUP_X1);
-            method.visitFieldInsn(PUTFIELD, "io/github/javactrl/rt/CallFrame", "handler",
-                "Lio/github/javactrl/rt/CallFrame$_Handler;");
-            method.visitVarInsn(ALOAD, 1);
-            for (final var fieldDescr : fieldDescrs) {
-              method.visitVarInsn(ALOAD, 1);
-              method.visitFieldInsn(GETFIELD, "io/github/javactrl/rt/CallFrame", format("v%s", fieldDescr.varName),
-                  "[" + fieldDescr.type.getDescriptor());
-            }
-            method.visitMethodInsn(INVOKEINTERFACE, "io/github/javactrl/rt/CallFrame$_Handler", "run",
-                "(Lio/github/javactrl/rt/CallFrame;[I[J[F[D[Ljava/lang/Object;)Ljava/lang/Object;", true);
-            final var retSort = retType.getSort();
-            if (retSort > Type.VOID && retSort < Type.ARRAY) {
-              final var numType = retType == Type.BOOLEAN_TYPE ? "java/lang/Boolean" : "java/lang/Number";
-              method.visitTypeInsn(CHECKCAST, numType);
-              method.visitMethodInsn(INVOKEVIRTUAL, numType, retType.getClassName() + "Value",
-                  "()" + retType.getDescriptor(), false);
-            } else if ((retSort == Type.ARRAY || retSort == Type.OBJECT)
-                && !retType.getInternalName().equals("java/lang/Object"))
-              method.visitTypeInsn(CHECKCAST, retType.getInternalName());
-            method.visitInsn(retType.getOpcode(IRETURN));
-            method.visitMaxs(5, regId);
-            method.visitEnd();
-            final var ccFinal = ci.visitMethod(ACC_SYNTHETIC + ACC_PRIVATE + ACC_STATIC, ccName,
-                "(Lio/github/javactrl/rt/CallFrame;[I[J[F[D[Ljava/lang/Object;)Ljava/lang/Object;",
-                null,
-                null);
-            final var ccLambda = ci.visitMethod(ACC_SYNTHETIC + ACC_PUBLIC + ACC_STATIC, ccLambdaName,
-                "()Lio/github/javactrl/rt/CallFrame$_Handler;",
+          }
+
+          /**
+           * Finds the states which return or throw after the call without storing anything into
+           * the frame, so the frame's copy can keep sharing the variables arrays with the captured
+           * frame on resume, the other states copy them first
+           */
+          void findStores() {
+            final var insns = ccInterm.instructions;
+            final var calls = callPositions();
+            final var stateCalls = new BitSet();
+            for (final var state : states)
+              stateCalls.set(calls.get(state.invoke));
+            final var tryCatchBlocks = ccInterm.tryCatchBlocks == null ? List.<TryCatchBlockNode>of()
+                : ccInterm.tryCatchBlocks;
+            nextState: for (final var state : states) {
+              final var visited = new BitSet();
+              final var queue = new ArrayDeque<Integer>();
+              final var call = calls.get(state.invoke);
+              queue.add(call + 1);
+              /* the callee's exceptions (and `Wind`) */
+              for (final var i : tryCatchBlocks) {
+                if (call >= insns.indexOf(i.start) && call < insns.indexOf(i.end))
+                  queue.add(insns.indexOf(i.handler));
+              }
+              while (!queue.isEmpty()) {
+                final int pos = queue.poll();
+                if (pos >= insns.size() || visited.get(pos))
+                  continue;
+                visited.set(pos);
+                final var insn = insns.get(pos);
+                final var opcode = insn.getOpcode();
+                /* another suspension stores the opstack too */
+                if (opcode >= ISTORE && opcode <= ASTORE || opcode == IINC || stateCalls.get(pos))
+                  continue nextState;
+                for (final var i : tryCatchBlocks) {
+                  if (pos >= insns.indexOf(i.start) && pos < insns.indexOf(i.end))
+                    queue.add(insns.indexOf(i.handler));
+                }
+                if (insn instanceof JumpInsnNode) {
+                  queue.add(insns.indexOf(((JumpInsnNode) insn).label));
+                  if (opcode != GOTO)
+                    queue.add(pos + 1);
+                } else if (insn instanceof TableSwitchInsnNode) {
+                  final var i = (TableSwitchInsnNode) insn;
+                  queue.add(insns.indexOf(i.dflt));
+                  for (final var label : i.labels)
+                    queue.add(insns.indexOf(label));
+                } else if (insn instanceof LookupSwitchInsnNode) {
+                  final var i = (LookupSwitchInsnNode) insn;
+                  queue.add(insns.indexOf(i.dflt));
+                  for (final var label : i.labels)
+                    queue.add(insns.indexOf(label));
+                } else if (opcode == JSR || opcode == RET) {
+                  continue nextState;
+                } else if (!(opcode >= IRETURN && opcode <= RETURN || opcode == ATHROW)) {
+                  queue.add(pos + 1);
+                }
+              }
+              state.stores = false;
+            }
+          }
+
+          /**
+           * Generates a {@link io.github.javactrl.rt.CallFrame} subclass with a typed field for 
+           * each variable, suspended frames move the variables there and drop the arrays
+           * (see {@link #TYPED_FRAMES})
+           * 
+           * @return the class bytes as an ISO-8859-1 string or {@literal null} if it's too large
+           */
+          String generateFrameClass(final String ccId) {
+            final var fw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            fw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, frameClassName, null,
+                "io/github/javactrl/rt/CallFrame", null);
+            for (final var fieldDescr : fieldDescrs) {
+              for (int i = 0, len = fieldDescr.stack + fieldDescr.localsCount; i < len; ++i)
+                fw.visitField(ACC_PUBLIC, format("v%s%d", fieldDescr.varName, i), fieldDescr.type.getDescriptor(),
+                    null, null).visitEnd();
+            }
+            final var init = fw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+            init.visitCode();
+            init.visitVarInsn(ALOAD, 0);
+            init.visitLdcInsn(Type.getObjectType(className));
+            init.visitLdcInsn(ccId);
+            for (final var fieldDescr : fieldDescrs)
+              intConst(init, fieldDescr.stack + fieldDescr.localsCount);
+            init.visitMethodInsn(INVOKESPECIAL, "io/github/javactrl/rt/CallFrame", "<init>",
+                "(Ljava/lang/Class;Ljava/lang/String;IIIII)V", false);
+            init.visitInsn(RETURN);
+            init.visitMaxs(0, 0);
+            init.visitEnd();
+            final var pack = fw.visitMethod(ACC_PROTECTED, "_packFields", "()Z", null, null);
+            final var unpack = fw.visitMethod(ACC_PROTECTED, "_unpackFields", "()V", null, null);
+            pack.visitCode();
+            unpack.visitCode();
+            for (final var fieldDescr : fieldDescrs) {
+              final var len = fieldDescr.stack + fieldDescr.localsCount;
+              if (len == 0)
+                continue;
+              final var arrayName = fieldDescr.arrayName;
+              final var arrayDescr = fieldDescr.arrayDescriptor;
+              unpack.visitVarInsn(ALOAD, 0);
+              intConst(unpack, len);
+              switch (fieldDescr.type.getSort()) {
+                case Type.INT:
+                  unpack.visitIntInsn(NEWARRAY, T_INT);
+                  break;
+                case Type.LONG:
+                  unpack.visitIntInsn(NEWARRAY, T_LONG);
+                  break;
+                case Type.FLOAT:
+                  unpack.visitIntInsn(NEWARRAY, T_FLOAT);
+                  break;
+                case Type.DOUBLE:
+                  unpack.visitIntInsn(NEWARRAY, T_DOUBLE);
+                  break;
+                default:
+                  unpack.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+              }
+              unpack.visitFieldInsn(PUTFIELD, "io/github/javactrl/rt/CallFrame", arrayName, arrayDescr);
+              for (var i = 0; i < len; ++i) {
+                final var fieldName = format("%s%d", arrayName, i);
+                pack.visitVarInsn(ALOAD, 0);
+                pack.visitVarInsn(ALOAD, 0);
+                pack.visitFieldInsn(GETFIELD, "io/github/javactrl/rt/CallFrame", arrayName, arrayDescr);
+                intConst(pack, i);
+                pack.visitInsn(fieldDescr.type.getOpcode(IALOAD));
+                pack.visitFieldInsn(PUTFIELD, frameClassName, fieldName, fieldDescr.type.getDescriptor());
+                unpack.visitVarInsn(ALOAD, 0);
+                unpack.visitFieldInsn(GETFIELD, "io/github/javactrl/rt/CallFrame", arrayName, arrayDescr);
+                intConst(unpack, i);
+                unpack.visitVarInsn(ALOAD, 0);
+                unpack.visitFieldInsn(GETFIELD, frameClassName, fieldName, fieldDescr.type.getDescriptor());
+                unpack.visitInsn(fieldDescr.type.getOpcode(IASTORE));
+                if (fieldDescr == refFD) {
+                  /* the frame is a copy, so this doesn't keep the objects reachable */
+                  unpack.visitVarInsn(ALOAD, 0);
+                  unpack.visitInsn(ACONST_NULL);
+                  unpack.visitFieldInsn(PUTFIELD, frameClassName, fieldName, fieldDescr.type.getDescriptor());
+                }
+              }
+            }
+            pack.visitInsn(ICONST_1);
+            pack.visitInsn(IRETURN);
+            pack.visitMaxs(0, 0);
+            pack.visitEnd();
+            unpack.visitInsn(RETURN);
+            unpack.visitMaxs(0, 0);
+            unpack.visitEnd();
+            fw.visitEnd();
+            final var ret = new String(fw.toByteArray(), StandardCharsets.ISO_8859_1);
+            /* string constants are limited to 65535 bytes of modified UTF-8 */
+            var utfLength = 0;
+            for (var i = 0; i < ret.length(); ++i) {
+              final var c = ret.charAt(i);
+              utfLength += c == 0 || c > 127 ? 2 : 1;
+            }
+            return utfLength <= 65535 ? ret : null;
+          }
+
+          /* emits the frame's construction, the generated subclass is used if there is one */
+          void createFrame(final MethodVisitor dest, final String ccId) {
+            if (frameClassBytes != null) {
+              dest.visitInvokeDynamicInsn("_new", "()Lio/github/javactrl/rt/CallFrame;", new Handle(
+                  H_INVOKESTATIC, "io/github/javactrl/rt/CallFrame", "_frameBootstrap",
+                  "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;Ljava/lang/String;)Ljava/lang/invoke/CallSite;",
+                  false), frameClassName.replace('/', '.'), frameClassBytes);
+              return;
+            }
+            dest.visitLdcInsn(Type.getObjectType(className));
+            dest.visitLdcInsn(ccId);
+            for (final var fieldDescr : fieldDescrs)
+              intConst(dest, fieldDescr.stack + fieldDescr.localsCount);
+            dest.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame", "_create",
+                "(Ljava/lang/Class;Ljava/lang/String;IIIII)Lio/github/javactrl/rt/CallFrame;", false);
+          }
+
+          /**
+           * The arguments of a method with a state's unwind block moved out of the hot body (see 
+           * {@link #OUTLINE_UNWIND}), or {@literal null} if it should stay inline
+           */
+          Type[] outlinedArgs(final List<SavedVar> saved, final int prefix) {
+            if (!OUTLINE_UNWIND)
+              return null;
+            var slots = prefix;
+            for (final var i : saved)
+              slots += i.fieldDescr.shift;
+            if (slots > 255)
+              return null;
+            final var ret = new Type[prefix + saved.size()];
+            ret[0] = Type.getObjectType("io/github/javactrl/rt/Unwind");
+            if (prefix > 1)
+              ret[1] = Type.getObjectType("io/github/javactrl/rt/CallFrame");
+            var index = prefix;
+            for (final var i : saved)
+              ret[index++] = i.fieldDescr.type;
+            return ret;
+          }
+
+          /**
+           * Creates (or reuses) a frame of the lazily instrumented method and saves the variables 
+           * there, expects the <code>Unwind</code> object on the stack's top and keeps it there
+           * 
+           * @param reuseVar the frame to reuse if it's not {@literal null} or -1
+           * @param frameVar stores the frame there if not -1
+           */
+          void saveLazyFrame(final MethodVisitor dest, final String ccId, final String ccLambdaName,
+              final StateDescr state, final List<SavedVar> saved, final BitSet localsToClean,
+              final int reuseVar, final int frameVar) {
+            if (reuseVar >= 0) {
+              dest.visitVarInsn(ALOAD, reuseVar);
+              dest.visitLdcInsn(Type.getObjectType(className));
+              dest.visitLdcInsn(ccId);
+              for (final var fieldDescr : fieldDescrs)
+                intConst(dest, fieldDescr.stack + fieldDescr.localsCount);
+              dest.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame", "_lazyCreate",
+                  "(Lio/github/javactrl/rt/CallFrame;Ljava/lang/Class;Ljava/lang/String;IIIII)Lio/github/javactrl/rt/CallFrame;",
+                  false);
+            } else {
+              createFrame(dest, ccId);
+            }
+            if (frameVar >= 0) {
+              dest.visitInsn(DUP);
+              dest.visitVarInsn(ASTORE, frameVar);
+            }
+            setMethodId(dest);
+            dest.visitInsn(DUP);
+            dest.visitMethodInsn(INVOKESTATIC, className, ccLambdaName,
+                "()Lio/github/javactrl/rt/CallFrame$_Handler;", false);
+            dest.visitFieldInsn(PUTFIELD, "io/github/javactrl/rt/CallFrame", "handler",
+                "Lio/github/javactrl/rt/CallFrame$_Handler;");
+            for (final var i : saved) {
+              dest.visitInsn(DUP);
+              dest.visitFieldInsn(GETFIELD, "io/github/javactrl/rt/CallFrame", i.fieldDescr.arrayName,
+                  i.fieldDescr.arrayDescriptor);
+              intConst(dest, i.index);
+              dest.visitVarInsn(i.fieldDescr.type.getOpcode(ILOAD), i.reg);
+              dest.visitInsn(i.fieldDescr.type.getOpcode(IASTORE));
+            }
+            /* unused locals cleanup (only a reused frame can have them) */
+            if (!localsToClean.isEmpty()) {
+              dest.visitInsn(DUP);
+              dest.visitFieldInsn(GETFIELD, "io/github/javactrl/rt/CallFrame", "v", "[Ljava/lang/Object;");
+              for (var arrIndex = localsToClean.nextSetBit(0); arrIndex >= 0;
+                  arrIndex = localsToClean.nextSetBit(arrIndex + 1)) {
+                dest.visitInsn(DUP);
+                intConst(dest, arrIndex + refFD.stack);
+                dest.visitInsn(ACONST_NULL);
+                dest.visitInsn(AASTORE);
+              }
+              dest.visitInsn(POP);
+            }
+            dest.visitInsn(SWAP);
+            dest.visitInsn(DUP_X1);
+            intConst(dest, state.id);
+            dest.visitInsn(state.isWindless() ? ICONST_1 : ICONST_0);
+            dest.visitMethodInsn(INVOKEVIRTUAL, "io/github/javactrl/rt/CallFrame", "_unwind",
+                "(Lio/github/javactrl/rt/Unwind;IZ)V", false);
+          }
+
+          /* the frame on the top of the stack gets the method's id for the class's dispatcher */
+          void setMethodId(final MethodVisitor dest) {
+            if (methodId < 0)
+              return;
+            dest.visitInsn(DUP);
+            intConst(dest, methodId);
+            dest.visitFieldInsn(PUTFIELD, "io/github/javactrl/rt/CallFrame", "methodId", "I");
+          }
+
+          /**
+           * Generates the method's body creating the frame, copying the arguments there and 
+           * running the frame's handler
+           * 
+           * @param sentinel the <code>Unwind</code> object is returned as is if {@literal true}, 
+           *                 otherwise it's thrown and the result is converted to the method's type
+           */
+          void generateRedirect(final MethodVisitor dest, final String ccId, final String ccLambdaName,
+              final String plainName, final boolean sentinel) {
+            dest.visitCode();
+            if (plainName != null)
+              callPlainBody(dest, plainName);
+            createFrame(dest, ccId);
+            for (final var fieldDescr : fieldDescrs)
+              fieldDescr.count = 0;
+            for (final var fieldDescr : paramsFields)
+              fieldDescr.count++;
+            for (final var fieldDescr : fieldDescrs) {
+              if (fieldDescr.count == 0)
+                continue;
+              dest.visitInsn(DUP);
+              dest.visitFieldInsn(GETFIELD, "io/github/javactrl/rt/CallFrame", fieldDescr.arrayName,
+                  fieldDescr.arrayDescriptor);
+              final var vloadOp = fieldDescr.type.getOpcode(ILOAD);
+              final var storeOp = fieldDescr.type.getOpcode(IASTORE);
+              for (int index = 0, last = fieldDescr.count - 1; index <= last; ++index) {
+                if (index != last)
+                  dest.visitInsn(DUP);
+                intConst(dest, index + fieldDescr.stack);
+                dest.visitVarInsn(vloadOp, fieldDescr.indexToReg[index]);
+                dest.visitInsn(storeOp);
+              }
+            }
+            setMethodId(dest);
+            dest.visitInsn(DUP);
+            dest.visitVarInsn(ASTORE, 1);
+            dest.visitMethodInsn(INVOKESTATIC, className, ccLambdaName,
+                "()Lio/github/javactrl/rt/CallFrame$_Handler;", false);
+            /*
+             * the class's dispatcher chooses the body by the method's id, it's a frame more on the
+             * stack on each nested call, so the body is called directly
+             */
+            if (!CLASS_DISPATCH)
+              dest.visitInsn(DUP_X1);
+            dest.visitFieldInsn(PUTFIELD, "io/github/javactrl/rt/CallFrame", "handler",
+                "Lio/github/javactrl/rt/CallFrame$_Handler;");
+            dest.visitVarInsn(ALOAD, 1);
+            for (final var fieldDescr : fieldDescrs) {
+              dest.visitVarInsn(ALOAD, 1);
+              dest.visitFieldInsn(GETFIELD, "io/github/javactrl/rt/CallFrame", fieldDescr.arrayName,
+                  fieldDescr.arrayDescriptor);
+            }
+            if (CLASS_DISPATCH)
+              dest.visitMethodInsn(INVOKESTATIC, className, format("%s$cc", ccId),
+                  "(Lio/github/javactrl/rt/CallFrame;[I[J[F[D[Ljava/lang/Object;)Ljava/lang/Object;", isInterface);
+            else
+              dest.visitMethodInsn(INVOKEINTERFACE, "io/github/javactrl/rt/CallFrame$_Handler", "run",
+                  "(Lio/github/javactrl/rt/CallFrame;[I[J[F[D[Ljava/lang/Object;)Ljava/lang/Object;", true);
+            if (sentinel) {
+              if (isPrimitiveResult(retType)) {
+                dest.visitVarInsn(ALOAD, 1);
+                dest.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame", "_box",
+                    "(Ljava/lang/Object;Lio/github/javactrl/rt/CallFrame;)Ljava/lang/Object;", false);
+              }
+              dest.visitInsn(ARETURN);
+            } else {
+              if (SENTINEL_UNWIND)
+                dest.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame", "_result",
+                    "(Ljava/lang/Object;)Ljava/lang/Object;", false);
+              if (isPrimitiveResult(retType)) {
+                dest.visitVarInsn(ALOAD, 1);
+                dest.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame",
+                    format("_%sValue", retType.getClassName()),
+                    format("(Ljava/lang/Object;Lio/github/javactrl/rt/CallFrame;)%s", retType.getDescriptor()), false);
+              } else {
+                unbox(dest, retType);
+              }
+              dest.visitInsn(retType.getOpcode(IRETURN));
+            }
+            dest.visitMaxs(5, 0);
+            dest.visitEnd();
+          }
+
+          /* starts a private copy of the method returning `Object` (see `isSentinelTarget`) */
+          MethodVisitor visitSentinelVariant() {
+            return ci.visitMethod(
+                (access & ~(ACC_PUBLIC | ACC_PROTECTED | ACC_VARARGS)) | ACC_PRIVATE | ACC_SYNTHETIC,
+                name + "$ret", Type.getMethodDescriptor(Type.getObjectType("java/lang/Object"),
+                    methodType.getArgumentTypes()),
+                null, exceptions);
+          }
+
+          /* the variant returning `Object` for a method without states just boxes its result */
+          void generateSentinelWrapper() {
+            final var dest = visitSentinelVariant();
+            final var isStatic = (access & ACC_STATIC) != 0;
+            dest.visitCode();
+            var regId = 0;
+            if (!isStatic)
+              dest.visitVarInsn(ALOAD, regId++);
+            for (final var argType : methodType.getArgumentTypes()) {
+              dest.visitVarInsn(argType.getOpcode(ILOAD), regId);
+              regId += argType.getSize();
+            }
+            dest.visitMethodInsn(isStatic ? INVOKESTATIC : INVOKESPECIAL, className, name, descriptor, false);
+            box(dest, retType);
+            dest.visitInsn(ARETURN);
+            dest.visitMaxs(0, 0);
+            dest.visitEnd();
+          }
+
+          /*
+           * rethrows the exception object on the stack's top without capturing the frame if it only
+           * escapes, or if it's a tail call and the callee's frame is already captured, so the callee's
+           * result can be passed to the caller's caller on resume (see {@link #TAIL_CALLS})
+           */
+          void skipEscape(final MethodVisitor dest, final Object[] unwindLocals, final boolean tail) {
+            final var capture = new Label();
+            dest.visitInsn(DUP);
+            dest.visitFieldInsn(GETFIELD, "io/github/javactrl/rt/Unwind", "escape", "Z");
+            if (tail) {
+              final var skip = new Label();
+              dest.visitJumpInsn(IFNE, skip);
+              dest.visitInsn(DUP);
+              dest.visitFieldInsn(GETFIELD, "io/github/javactrl/rt/Unwind", "head", "Lio/github/javactrl/rt/CallFrame;");
+              dest.visitJumpInsn(IFNULL, capture);
+              dest.visitLabel(skip);
+              dest.visitFrame(F_NEW, unwindLocals.length, Arrays.copyOf(unwindLocals, unwindLocals.length), 1,
+                  new Object[] { "io/github/javactrl/rt/Unwind" });
+            } else {
+              dest.visitJumpInsn(IFEQ, capture);
+            }
+            dest.visitInsn(ATHROW);
+            dest.visitLabel(capture);
+            dest.visitFrame(F_NEW, unwindLocals.length, Arrays.copyOf(unwindLocals, unwindLocals.length), 1,
+                new Object[] { "io/github/javactrl/rt/Unwind" });
+          }
+
+          /* the frame's handler returns the value in the frame (see {@link #PRIMITIVE_RESULTS}) */
+          boolean isPrimitiveResult(final Type type) {
+            final var sort = type.getSort();
+            return PRIMITIVE_RESULTS && sort != Type.VOID && sort < Type.ARRAY;
+          }
+
+          /* converts the value on the stack's top into an object, `void` becomes {@literal null} */
+          void box(final MethodVisitor dest, final Type type) {
+            final var sort = type.getSort();
+            if (sort == Type.VOID) {
+              dest.visitInsn(ACONST_NULL);
+            } else if (sort < Type.ARRAY) {
+              final var retClass = type == Type.INT_TYPE ? "Integer"
+                  : type == Type.CHAR_TYPE ? "Character" : type.getClassName();
+              final var clName = format("java/lang/%s%s", retClass.substring(0, 1).toUpperCase(),
+                  retClass.substring(1));
+              dest.visitMethodInsn(INVOKESTATIC, clName, "valueOf",
+                  format("(%s)L%s;", type.getDescriptor(), clName), false);
+            }
+          }
+
+          /* converts the object on the stack's top into the type, it's dropped for `void` */
+          void unbox(final MethodVisitor dest, final Type type) {
+            final var sort = type.getSort();
+            if (sort == Type.VOID) {
+              dest.visitInsn(POP);
+            } else if (sort < Type.ARRAY) {
+              final var numType = type == Type.BOOLEAN_TYPE ? "java/lang/Boolean"
+                  : type == Type.CHAR_TYPE ? "java/lang/Character" : "java/lang/Number";
+              dest.visitTypeInsn(CHECKCAST, numType);
+              dest.visitMethodInsn(INVOKEVIRTUAL, numType, type.getClassName() + "Value",
+                  "()" + type.getDescriptor(), false);
+            } else if (!type.getInternalName().equals("java/lang/Object")) {
+              dest.visitTypeInsn(CHECKCAST, type.getInternalName());
+            }
+          }
+
+          /* jumps to the untouched copy if there are no capture scopes on the thread's stack */
+          void callPlainBody(final MethodVisitor dest, final String plainName) {
+            final var instrumented = new Label();
+            dest.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame", "_captureDepth", "()I", false);
+            dest.visitJumpInsn(IFNE, instrumented);
+            final var isStatic = (access & ACC_STATIC) != 0;
+            var regId = 0;
+            if (!isStatic)
+              dest.visitVarInsn(ALOAD, regId++);
+            for (final var argType : methodType.getArgumentTypes()) {
+              dest.visitVarInsn(argType.getOpcode(ILOAD), regId);
+              regId += argType.getSize();
+            }
+            dest.visitMethodInsn(isStatic ? INVOKESTATIC : INVOKESPECIAL, className, plainName, descriptor,
+                isInterface);
+            dest.visitInsn(retType.getOpcode(IRETURN));
+            dest.visitLabel(instrumented);
+            final var params = to1ElemOpTypes(paramsTypes);
+            dest.visitFrame(F_NEW, params.length, params, 0, null);
+            dest.visitInsn(NOP);
+          }
+
+          /**
+           * Replays the original code into the method itself, it runs with plain locals, and
+           * each suspendable call has an <code>Unwind</code> handler which creates the frame,
+           * stores the opstack and the locals there, and links the frame into the exception.
+           * 
+           * If the method has handlers which can catch <code>Unwind</code>, the frame can be 
+           * resumed by the method itself, so it's kept in a local variable, reused on the next 
+           * unwinds and every variable store is also written into it once it exists.
+           */
+          void generateLazyBody(final String ccId, final String ccLambdaName, final int localsStart,
+              final boolean captureScope, final String plainName) {
+            ccInterm.instructions.resetLabels();
+            final var labelNodes = new HashMap<Label, LabelNode>();
+            for (final var i : ccInterm.instructions) {
+              if (i instanceof LabelNode)
+                labelNodes.put(((LabelNode) i).getLabel(), (LabelNode) i);
+            }
+            final var keepFrame = catchesUnwind(ccInterm.tryCatchBlocks);
+            final var frameVar = ccInterm.maxLocals;
+            final var spillStart = keepFrame ? frameVar + 1 : frameVar;
+            final var tempVarsStart = spillStart + maxStackSize;
+            varInsIter = 0;
+            ccInterm.accept(new MethodVisitor(ASM9, captureScope ? new CaptureScopeAdapter(method) : method) {
+              int stateCount = 0;
+              int invokeCounterInner = 0;
+              final Label[] starts = new Label[states.size()];
+              final Label[] unwinds = new Label[states.size()];
+
+              @Override
+              public void visitCode() {
+                super.visitCode();
+                if (plainName != null)
+                  callPlainBody(mv, plainName);
+                for (var i = 0; i < starts.length; ++i) {
+                  starts[i] = new Label();
+                  unwinds[i] = new Label();
+                  super.visitTryCatchBlock(starts[i], unwinds[i], unwinds[i], "io/github/javactrl/rt/Unwind");
+                }
+                if (keepFrame) {
+                  super.visitInsn(ACONST_NULL);
+                  super.visitVarInsn(ASTORE, frameVar);
+                }
+              }
+
+              /* appends the frame's variable and the opstack copy to the locals types */
+              Object[] frameLocals(final Object[] localTypes, final int localsSize, final Object[] spilled,
+                  final int spilledSize) {
+                var slots = 0;
+                for (var i = 0; i < localsSize; ++i)
+                  slots += localTypes[i] == LONG || localTypes[i] == DOUBLE ? 2 : 1;
+                if (!keepFrame && spilledSize == 0)
+                  return Arrays.copyOf(localTypes, localsSize, Object[].class);
+                final var padding = Math.max(frameVar - slots, 0);
+                final var ret = Arrays.copyOf(localTypes,
+                    localsSize + padding + (keepFrame ? 1 : 0) + spilledSize, Object[].class);
+                var pos = localsSize;
+                for (var i = 0; i < padding; ++i)
+                  ret[pos++] = TOP;
+                if (keepFrame)
+                  ret[pos++] = "io/github/javactrl/rt/CallFrame";
+                for (var i = 0; i < spilledSize; ++i)
+                  ret[pos++] = spilled[i];
+                return ret;
+              }
+
+              @Override
+              public void visitFrame(final int type, final int numLocal, final Object[] local, final int numStack,
+                  final Object[] stack) {
+                final var nstack = new ArrayList<Object>();
+                for (var i = 0; i < numStack; ++i) {
+                  if (!(stack[i] instanceof Label && uninitialized.containsKey(labelNodes.get(stack[i]))))
+                    nstack.add(stack[i]);
+                }
+                final var nlocal = frameLocals(local, numLocal, null, 0);
+                super.visitFrame(type, nlocal.length, nlocal, nstack.size(), nstack.toArray());
+              }
+
+              @Override
+              public void visitLocalVariable(final String name, final String descriptor, final String signature,
+                  final Label start, final Label end, final int index) {
+                super.visitLocalVariable(name, descriptor, signature, start, end, index - localsStart);
+              }
+
+              /* writes the stored variable into the frame if it's already created */
+              void storeFrameVar(final FieldDescr fieldDescr, final int localId, final int when) {
+                super.visitVarInsn(ALOAD, frameVar);
+                intConst(mv, getStoreIndex(fieldDescr, localId, when) + fieldDescr.stack);
+                super.visitVarInsn(fieldDescr.type.getOpcode(ILOAD), localId);
+                super.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame", "_lazyStore",
+                    format("(Lio/github/javactrl/rt/CallFrame;I%s)V",
+                        fieldDescr == refFD ? "Ljava/lang/Object;" : fieldDescr.type.getDescriptor()),
+                    false);
+              }
+
+              @Override
+              public void visitVarInsn(final int opcode, final int localId) {
+                super.visitVarInsn(opcode, localId);
+                if (opcode < ISTORE)
+                  return;
+                final var when = visitedVarIns[varInsIter++];
+                if (keepFrame)
+                  storeFrameVar(opcodeFieldDescr(opcode), localId, when);
+              }
+
+              @Override
+              public void visitIincInsn(final int localId, final int increment) {
+                super.visitIincInsn(localId, increment);
+                final var when = visitedVarIns[varInsIter++];
+                if (keepFrame)
+                  storeFrameVar(intFD, localId, when);
+              }
+
+              @Override
+              public void visitMethodInsn(
+                  final int opcode,
+                  final String owner,
+                  final String name,
+                  final String descriptor,
+                  final boolean isInterface) {
+                if (owner.equals("javactrl:@@@EH@@@")) {
+                  /* there is nothing to wind here, so only the skipping checks are needed */
+                  if (name.equals("_checkException"))
+                    return;
+                  super.visitInsn(DUP);
+                  super.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame",
+                      name.equals("_skipException") ? "_fastSkipException" : "_fastSkipWind", descriptor, false);
+                  return;
+                }
+                final var id = invokeCounterInner++;
+                if (opcode == INVOKESPECIAL && name.equals("<init>")) {
+                  final var descr = toShuffle.getOrDefault(id, null);
+                  if (descr != null) {
+                    var varShift = 0;
+                    for (final var i = descr.fields.listIterator(descr.fields.size()); i.hasPrevious();) {
+                      final var fieldDescr = i.previous();
+                      super.visitVarInsn(fieldDescr.type.getOpcode(ISTORE), tempVarsStart + varShift);
+                      varShift += fieldDescr.shift;
+                    }
+                    super.visitTypeInsn(NEW, descr.objType);
+                    for (var i = 0; i < descr.count; ++i)
+                      super.visitInsn(DUP);
+                    for (final var fieldDescr : descr.fields) {
+                      varShift -= fieldDescr.shift;
+                      super.visitVarInsn(fieldDescr.type.getOpcode(ILOAD), tempVarsStart + varShift);
+                    }
+                  }
+                  super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                  return;
+                }
+                if (skipInvoke.contains(id)) {
+                  super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                  return;
+                }
+                final var start = starts[stateCount];
+                final var unwind = unwinds[stateCount];
+                final var state = states.get(stateCount++);
+                final var cont = new Label();
+                int regId;
+                if (state.storedStackFields.size() > 0) {
+                  /* # opstack to locals */
+                  regId = spillStart + state.stackTypes.length;
+                  for (final var i = state.stackFields.listIterator(state.stackFields.size()); i.hasPrevious();) {
+                    final var fieldDescr = i.previous();
+                    regId -= fieldDescr.shift;
+                    super.visitVarInsn(fieldDescr.type.getOpcode(ISTORE), regId);
+                  }
+                  for (final var fieldDescr : state.stackFields) {
+                    super.visitVarInsn(fieldDescr.type.getOpcode(ILOAD), regId);
+                    regId += fieldDescr.shift;
+                  }
+                }
+                super.visitLabel(start);
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                super.visitJumpInsn(GOTO, cont);
+                /* # unwind handler */
+                super.visitLabel(unwind);
+                final var spilled = to1ElemOpTypes(Arrays.copyOf(state.stackTypes, state.storedStackSize));
+                final var localTypes = to1ElemOpTypes(state.localTypes);
+                final var unwindLocals = frameLocals(localTypes, localTypes.length, spilled, spilled.length);
+                super.visitFrame(F_NEW, unwindLocals.length, unwindLocals, 1,
+                    new Object[] { "io/github/javactrl/rt/Unwind" });
+                skipEscape(mv, unwindLocals, state.tail);
+                /* ## the saved opstack and locals */
+                final var saved = new ArrayList<SavedVar>();
+                for (final var fieldDescr : fieldDescrs)
+                  fieldDescr.count = 0;
+                regId = spillStart;
+                for (final var fieldDescr : state.storedStackFields) {
+                  saved.add(new SavedVar(fieldDescr, fieldDescr.count++, regId));
+                  regId += fieldDescr.shift;
+                }
+                regId = 0;
+                final var localsToClean = new BitSet();
+                localsToClean.set(0, refFD.localsCount);
+                for (final var fieldDescr : state.localFields) {
+                  if (fieldDescr.size > 0) {
+                    final var refType = state.localTypes[regId];
+                    final var index = getStoreIndex(fieldDescr, regId, state.when);
+                    if (state.isSaved(regId)) {
+                      if (fieldDescr == refFD)
+                        localsToClean.clear(index);
+                      if (!(fieldDescr == refFD && (refType == NULL || refType instanceof Label)))
+                        saved.add(new SavedVar(fieldDescr, index + fieldDescr.stack, regId));
+                    }
+                  }
+                  regId += fieldDescr.shift;
+                }
+                if (!keepFrame)
+                  localsToClean.clear();
+                final var helperArgs = outlinedArgs(saved, keepFrame ? 2 : 1);
+                if (helperArgs != null) {
+                  /* ## the block is in a separate method returning the (reused) frame */
+                  final var helperName = format("%s$unwind$%d", ccId, state.id);
+                  final var helperDesc = Type.getMethodDescriptor(
+                      keepFrame ? Type.getObjectType("io/github/javactrl/rt/CallFrame") : Type.VOID_TYPE,
+                      helperArgs);
+                  super.visitInsn(DUP);
+                  if (keepFrame)
+                    super.visitVarInsn(ALOAD, frameVar);
+                  for (final var i : saved)
+                    super.visitVarInsn(i.fieldDescr.type.getOpcode(ILOAD), i.reg);
+                  super.visitMethodInsn(INVOKESTATIC, className, helperName, helperDesc, false);
+                  if (keepFrame)
+                    super.visitVarInsn(ASTORE, frameVar);
+                  final var helper = ci.visitMethod(ACC_SYNTHETIC + ACC_PRIVATE + ACC_STATIC, helperName,
+                      helperDesc, null, null);
+                  helper.visitCode();
+                  helper.visitVarInsn(ALOAD, 0);
+                  var argReg = keepFrame ? 2 : 1;
+                  final var args = new ArrayList<SavedVar>();
+                  for (final var i : saved) {
+                    args.add(new SavedVar(i.fieldDescr, i.index, argReg));
+                    argReg += i.fieldDescr.shift;
+                  }
+                  saveLazyFrame(helper, ccId, ccLambdaName, state, args, localsToClean, keepFrame ? 1 : -1,
+                      keepFrame ? argReg : -1);
+                  if (keepFrame) {
+                    helper.visitVarInsn(ALOAD, argReg);
+                    helper.visitInsn(ARETURN);
+                  } else {
+                    helper.visitInsn(RETURN);
+                  }
+                  helper.visitMaxs(0, 0);
+                  helper.visitEnd();
+                } else {
+                  saveLazyFrame(mv, ccId, ccLambdaName, state, saved, localsToClean, keepFrame ? frameVar : -1,
+                      keepFrame ? frameVar : -1);
+                }
+                super.visitInsn(ATHROW);
+                super.visitLabel(cont);
+                final var contLocals = frameLocals(localTypes, localTypes.length, null, 0);
+                super.visitFrame(F_NEW, contLocals.length, contLocals, state.stackTypesAfter.size(),
+                    state.stackTypesAfter.toArray());
+                /* avoiding double frames if there is any after this point */
+                super.visitInsn(NOP);
+              }
+            });
+            ccInterm.instructions.resetLabels();
+          }
+
+          @Override
+          public void visitEnd() {
+            ccInterm.visitEnd();
+            final var captureScope = DUAL_BODIES && catchesUnwind(ccInterm.tryCatchBlocks);
+            if (states.size() == 0) {
+              ccInterm.accept(captureScope ? new CaptureScopeAdapter(method) : method);
+              if (isSentinelTarget(name, descriptor)) {
+                anythingInstrumented = true;
+                generateSentinelWrapper();
+              }
+              return;
+            }
+            anythingInstrumented = true;
+            /* # handling different locals with the same index */
+            final var num = methodIds.merge(name, 0, (name, prev) -> prev + 1);
+            final var ccId = num == 0 ? name : format("%s$%d", name, num);
+            ccIds.put(name + descriptor, ccId);
+            final var ccName = format("%s$cc", ccId);
+            final var ccLambdaName = CLASS_DISPATCH ? "$cc$dispatcher" : format("%s$cc$lambda", ccId);
+            if (CLASS_DISPATCH) {
+              methodId = dispatched.size();
+              dispatched.add(ccId);
+            }
+            final var plainName = DUAL_BODIES && !captureScope ? format("%s$plain", ccId) : null;
+            if (plainName != null)
+              generatePlainBody(plainName);
+            final var localsStart = stackStart + maxStackSize;
+            final var tempVarsStart = localsStart + maxLocalsSize;
+            /* # fixing javac (but not ECJ) generated strange finally block (not needed for ECJ) */
+            /* it seems to be a Sun javac bug */
+            /* https://stackoverflow.com/questions/6386917/strange-exception-table-entry-produced-by-suns-javac */
+            if (ccInterm.tryCatchBlocks != null) {
+              final var toDelete = new ArrayList<TryCatchBlockNode>();
+              for (final var i : ccInterm.tryCatchBlocks) {
+                if (i.type != null)
+                  continue;
+                /* if handler is inside the body ignoreing this */
+                final var startIndex = ccInterm.instructions.indexOf(i.start);
+                final var endIndex = ccInterm.instructions.indexOf(i.end);
+                final var handlerIndex = ccInterm.instructions.indexOf(i.handler);
+                if (handlerIndex >= startIndex && handlerIndex < endIndex) {
+                  if (startIndex == endIndex || startIndex == handlerIndex)
+                    toDelete.add(i);
+                  else
+                    i.end = i.handler;
+                }
+              }
+              for (final var i : toDelete)
+                ccInterm.tryCatchBlocks.remove(i);
+              /* injecting skip/check exception */
+              for (final var i : ccInterm.tryCatchBlocks) {
+                final var handler = i.handler;
+                var iter = handler.getNext();
+                while (iter != null && !(iter instanceof FrameNode) && iter.getOpcode() == -1)
+                  iter = iter.getNext();
+                assert iter instanceof FrameNode;
+                ccInterm.instructions.insert(iter, new MethodInsnNode(INVOKEVIRTUAL, "javactrl:@@@EH@@@",
+                    i.type == null || i.type.equals("java/lang/Throwable") ? "_skipException"
+                        : i.type.equals("io/github/javactrl/rt/CThrowable") ? "_skipWind"
+                            : "_checkException",
+                    "(Ljava/lang/Throwable;)V", false));
+              }
+            }
+            /* # fixing overlapping variables ids */
+            if (ccInterm.localVariables != null) {
+              final var varTypes = new HashMap<Integer, NavigableMap<Integer, String>>();
+              final var declaredLocals = new HashMap<Integer, LabelNode>();
+              for (final var i : ccInterm.localVariables) {
+                final var regId = i.index;
+                i.index += localsStart;
+                final var fieldDescr = getTypeFieldDescr(Type.getType(i.desc));
+                /* asm sometimes run vars change before the start label, so we use the previous end label */
+                final var prevEnd = declaredLocals.getOrDefault(regId, null);
+                final var typeMap = varTypes.computeIfAbsent(regId, _i -> new TreeMap<>());
+                final var indexMap = fieldDescr.indexes(regId);
+                if (prevEnd == null) {
+                  typeMap.put(-1, i.desc);
+                  if (indexMap.get(-1) == -1)
+                    indexMap.put(-1, fieldDescr.addIndex(regId));
+                } else {
+                  final var lab = visitedLabels.get(prevEnd);
+                  typeMap.put(lab, i.desc);
+                  indexMap.put(lab, fieldDescr.addIndex(regId));
+                }
+                declaredLocals.put(regId, i.end);
+              }
+              for (final var state : fixNullTypeLocals) {
+                for (int i = 0, len = state.localTypes.length; i < len; ++i) {
+                  if (state.localTypes[i] == NULL) {
+                    final var tmap = varTypes.getOrDefault(i, null);
+                    if (tmap == null)
+                      continue;
+                    final var tentry = tmap.lowerEntry(state.when);
+                    if (tentry == null)
+                      continue;
+                    state.localTypes[i] = Type.getType(tentry.getValue()).getInternalName();
+                  }
+                }
+              }
+            }
+            if (SAVE_LIVE_ONLY)
+              analyzeLiveness();
+            if (WIND_TABLES)
+              findWindHandlers();
+            findStores();
+            if (TAIL_CALLS)
+              findTailCalls();
+            if (TYPED_FRAMES && !catchesUnwind(ccInterm.tryCatchBlocks)) {
+              frameClassName = format("%s$%s$Frame", className, ccId);
+              frameClassBytes = generateFrameClass(ccId);
+            }
+            if (LAZY_FRAMES) {
+              generateLazyBody(ccId, ccLambdaName, localsStart, captureScope, plainName);
+            } else {
+              generateRedirect(method, ccId, ccLambdaName, plainName, false);
+              if (isSentinelTarget(name, descriptor))
+                generateRedirect(visitSentinelVariant(), ccId, ccLambdaName, null, true);
+            }
+            final var ccNode = ci.visitMethod(ACC_SYNTHETIC + ACC_PRIVATE + ACC_STATIC, ccName,
+                "(Lio/github/javactrl/rt/CallFrame;[I[J[F[D[Ljava/lang/Object;)Ljava/lang/Object;",
                 null,
                 null);
-            ccLambda.visitCode();
-            ccLambda.visitInvokeDynamicInsn("run", "()Lio/github/javactrl/rt/CallFrame$_Handler;", new Handle(
-                H_INVOKESTATIC,
-                "java/lang/invoke/LambdaMetafactory", "metafactory",
-                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
-                false),
-                new Object[] {
-                    Type.getType("(Lio/github/javactrl/rt/CallFrame;[I[J[F[D[Ljava/lang/Object;)Ljava/lang/Object;"),
-                    new Handle(H_INVOKESTATIC, className, ccName,
-                        "(Lio/github/javactrl/rt/CallFrame;[I[J[F[D[Ljava/lang/Object;)Ljava/lang/Object;", false),
-                    Type.getType("(Lio/github/javactrl/rt/CallFrame;[I[J[F[D[Ljava/lang/Object;)Ljava/lang/Object;") });
-            ccLambda.visitInsn(ARETURN);
-            ccLambda.visitMaxs(1, 0);
-            ccLambda.visitEnd();
+            final var ccFinal = captureScope ? new CaptureScopeAdapter(ccNode) : ccNode;
+            if (!CLASS_DISPATCH) {
+              final var ccLambda = ci.visitMethod(ACC_SYNTHETIC + ACC_PUBLIC + ACC_STATIC, ccLambdaName,
+                  "()Lio/github/javactrl/rt/CallFrame$_Handler;",
+                  null,
+                  null);
+              ccLambda.visitCode();
+              ccLambda.visitInvokeDynamicInsn("run", "()Lio/github/javactrl/rt/CallFrame$_Handler;", new Handle(
+                  H_INVOKESTATIC,
+                  "java/lang/invoke/LambdaMetafactory", "metafactory",
+                  "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
+                  false),
+                  new Object[] {
+                      Type.getType("(Lio/github/javactrl/rt/CallFrame;[I[J[F[D[Ljava/lang/Object;)Ljava/lang/Object;"),
+                      new Handle(H_INVOKESTATIC, className, ccName,
+                          "(Lio/github/javactrl/rt/CallFrame;[I[J[F[D[Ljava/lang/Object;)Ljava/lang/Object;", false),
+                      Type.getType("(Lio/github/javactrl/rt/CallFrame;[I[J[F[D[Ljava/lang/Object;)Ljava/lang/Object;") });
+              ccLambda.visitInsn(ARETURN);
+              ccLambda.visitMaxs(1, 0);
+              ccLambda.visitEnd();
+            }
             final var prefixFrameLocals = new Object[stackStart];
             var prefixFrameLocalsIndex = 0;
             prefixFrameLocals[prefixFrameLocalsIndex++] = "io/github/javactrl/rt/CallFrame";
             for (final var fieldDescr : fieldDescrs)
-              prefixFrameLocals[prefixFrameLocalsIndex++] = format("[%s", fieldDescr.type.getDescriptor());
+              prefixFrameLocals[prefixFrameLocalsIndex++] = fieldDescr.arrayDescriptor;
             /* recalculating frames info */
             for (final var frameNode : frameNodes) {
               final var flocal = frameNode.local == null ? new Object[0] : frameNode.local.toArray();
@@ -664,43 +2256,102 @@ public void visitEnd() {
               }
             }
 
-            final var varInsIter = visitedVarIns.iterator();
+            varInsIter = 0;
             ccInterm.accept(new MethodVisitor(ASM9, ccFinal) {
               int stateCount = 0;
+              /* invalid state handler */
+              final Label dflt = new Label();
+              /* the original body's start and end */
+              final Label bodyStart = new Label();
+              final Label bodyEnd = new Label();
 
-              int getStoreIndex(FieldDescr fieldDescr, int reg, int when) {
-                final var entry = fieldDescr.regToIndex.get(reg).lowerEntry(when);
-                if (entry == null)
-                  return reg;
-                return entry.getValue();
-              }
-
-              void restoreLocals(List<FieldDescr> fields, Object[] types, int when) {
+              void restoreLocals(List<FieldDescr> fields, Object[] types, int when, StateDescr state) {
                 int regIndex = 0;
                 for (final var fieldDescr : fields) {
                   if (fieldDescr.size > 0) {
                     var refType = types[regIndex];
+                    final var index = getStoreIndex(fieldDescr, regIndex, when) + fieldDescr.stack;
                     if (fieldDescr == refFD && (refType == NULL || refType instanceof Label)) {
                       ccFinal.visitInsn(ACONST_NULL);
+                    } else if (state != null && state.isDead(regIndex)) {
+                      /* any value of the same type, it's overwritten before read */
+                      pushDefault(fieldDescr);
+                    } else if (state != null && state.constant(regIndex) != null) {
+                      pushConstant(state.constant(regIndex));
+                    } else if (state != null && state.copyOf(regIndex) != -1) {
+                      regIndex += fieldDescr.shift;
+                      continue;
                     } else {
                       ccFinal.visitVarInsn(ALOAD, fieldDescr.blockIndex);
-                      intConst(ccFinal, getStoreIndex(fieldDescr, regIndex, when) + fieldDescr.stack);
+                      intConst(ccFinal, index);
                       ccFinal.visitInsn(fieldDescr.type.getOpcode(IALOAD));
                       if (fieldDescr == refFD && refType instanceof String && !refType.equals("java/lang/Object"))
                         ccFinal.visitTypeInsn(CHECKCAST, (String) refType);
                     }
                     ccFinal.visitVarInsn(fieldDescr.type.getOpcode(ISTORE), regIndex + localsStart);
+                    if (state != null && state.constant(regIndex) != null)
+                      writeBack(fieldDescr, index, regIndex);
                   }
                   regIndex += fieldDescr.shift;
                 }
+                if (state == null || state.copies == null)
+                  return;
+                regIndex = 0;
+                for (final var fieldDescr : fields) {
+                  final var source = state.copyOf(regIndex);
+                  if (source != -1) {
+                    final var refType = types[regIndex];
+                    ccFinal.visitVarInsn(fieldDescr.type.getOpcode(ILOAD), source + localsStart);
+                    if (fieldDescr == refFD && !refType.equals(types[source]) && !refType.equals("java/lang/Object"))
+                      ccFinal.visitTypeInsn(CHECKCAST, (String) refType);
+                    ccFinal.visitVarInsn(fieldDescr.type.getOpcode(ISTORE), regIndex + localsStart);
+                    writeBack(fieldDescr, getStoreIndex(fieldDescr, regIndex, when) + fieldDescr.stack, regIndex);
+                  }
+                  regIndex += fieldDescr.shift;
+                }
+              }
+
+              /* recomputed values are stored back, the frame can be suspended again without saving them */
+              void writeBack(final FieldDescr fieldDescr, final int index, final int regIndex) {
+                ccFinal.visitVarInsn(ALOAD, fieldDescr.blockIndex);
+                intConst(ccFinal, index);
+                ccFinal.visitVarInsn(fieldDescr.type.getOpcode(ILOAD), regIndex + localsStart);
+                ccFinal.visitInsn(fieldDescr.type.getOpcode(IASTORE));
+              }
+
+              void pushDefault(final FieldDescr fieldDescr) {
+                switch (fieldDescr.type.getSort()) {
+                  case Type.INT:
+                    ccFinal.visitInsn(ICONST_0);
+                    break;
+                  case Type.LONG:
+                    ccFinal.visitInsn(LCONST_0);
+                    break;
+                  case Type.FLOAT:
+                    ccFinal.visitInsn(FCONST_0);
+                    break;
+                  case Type.DOUBLE:
+                    ccFinal.visitInsn(DCONST_0);
+                    break;
+                  default:
+                    ccFinal.visitInsn(ACONST_NULL);
+                }
+              }
+
+              void pushConstant(final AbstractInsnNode insn) {
+                if (insn instanceof LdcInsnNode)
+                  ccFinal.visitLdcInsn(((LdcInsnNode) insn).cst);
+                else if (insn instanceof IntInsnNode)
+                  ccFinal.visitIntInsn(insn.getOpcode(), ((IntInsnNode) insn).operand);
+                else
+                  ccFinal.visitInsn(insn.getOpcode());
               }
 
               @Override
               public void visitCode() {
                 ccFinal.visitCode();
-                final var dflt = new Label();
                 final var labelsArr = new Label[states.size() + 1];
-                labelsArr[0] = new Label();
+                labelsArr[0] = bodyStart;
                 for (final var state : states)
                   ccFinal.visitTryCatchBlock(state.start, state.unwind, state.unwind, "io/github/javactrl/rt/Unwind");
                 var stateIndex = 0;
@@ -719,7 +2370,22 @@ public void visitCode() {
                 ccFinal.visitLabel(labelsArr[0]);
                 ccFinal.visitFrame(F_NEW, prefixFrameLocals.length,
                     Arrays.copyOf(prefixFrameLocals, prefixFrameLocals.length), 0, null);
-                restoreLocals(paramsFields, paramsTypes, 0);
+                restoreLocals(paramsFields, paramsTypes, 0, null);
+                ownFrame();
+              }
+
+              /* copies the frame's arrays if they are shared, and reloads them */
+              void ownFrame() {
+                ccFinal.visitVarInsn(ALOAD, FRAME_VAR_INDEX);
+                ccFinal.visitMethodInsn(INVOKEVIRTUAL, "io/github/javactrl/rt/CallFrame", "_own", "()V", false);
+                for (final var fieldDescr : fieldDescrs) {
+                  if (fieldDescr.stack + fieldDescr.localsCount == 0)
+                    continue;
+                  ccFinal.visitVarInsn(ALOAD, FRAME_VAR_INDEX);
+                  ccFinal.visitFieldInsn(GETFIELD, "io/github/javactrl/rt/CallFrame", fieldDescr.arrayName,
+                      fieldDescr.arrayDescriptor);
+                  ccFinal.visitVarInsn(ASTORE, fieldDescr.blockIndex);
+                }
               }
 
               @Override
@@ -730,7 +2396,7 @@ public void visitVarInsn(final int opcode, final int localId) {
                   return;
                 final var fieldDescr = opcodeFieldDescr(opcode);
                 ccFinal.visitVarInsn(ALOAD, fieldDescr.blockIndex);
-                intConst(ccFinal, getStoreIndex(fieldDescr, localId, varInsIter.next()) + fieldDescr.stack);
+                intConst(ccFinal, getStoreIndex(fieldDescr, localId, visitedVarIns[varInsIter++]) + fieldDescr.stack);
                 ccFinal.visitVarInsn(fieldDescr.type.getOpcode(ILOAD), index);
                 ccFinal.visitInsn(fieldDescr.type.getOpcode(IASTORE));
               }
@@ -740,7 +2406,7 @@ public void visitIincInsn(final int localId, final int increment) {
                 final var index = localsStart + localId;
                 ccFinal.visitIincInsn(index, increment);
                 ccFinal.visitVarInsn(ALOAD, intFD.blockIndex);
-                intConst(ccFinal, getStoreIndex(intFD, localId, varInsIter.next()) + intFD.stack);
+                intConst(ccFinal, getStoreIndex(intFD, localId, visitedVarIns[varInsIter++]) + intFD.stack);
                 ccFinal.visitVarInsn(ILOAD, index);
                 ccFinal.visitInsn(IASTORE);
               }
@@ -801,71 +2467,190 @@ public void visitMethodInsn(
                     regId += fieldDescr.shift;
                   }
                 }
+                final var retSort = state.retType.getSort();
+                var resumeStack = state.stackTypesAfter.toArray();
+                if (retSort != Type.VOID)
+                  resumeStack = Arrays.copyOf(resumeStack, resumeStack.length - 1);
+                Object[] contLocals;
+                if (state.localTypes.length == 0) {
+                  contLocals = prefixFrameLocals;
+                } else {
+                  contLocals = new Object[localsStart + state.localTypes.length];
+                  System.arraycopy(prefixFrameLocals, 0, contLocals, 0, stackStart);
+                  Arrays.fill(contLocals, stackStart, localsStart, TOP);
+                  System.arraycopy(state.localTypes, 0, contLocals, localsStart, state.localTypes.length);
+                  contLocals = to1ElemOpTypes(contLocals);
+                }
+                var unwindLocals = new Object[localsStart + state.localTypes.length];
+                System.arraycopy(prefixFrameLocals, 0, unwindLocals, 0, stackStart);
+                System.arraycopy(state.stackTypes, 0, unwindLocals, stackStart, state.storedStackSize);
+                Arrays.fill(unwindLocals, stackStart + state.storedStackSize, localsStart, TOP);
+                System.arraycopy(state.localTypes, 0, unwindLocals, localsStart, state.localTypes.length);
+                unwindLocals = to1ElemOpTypes(unwindLocals);
                 ccFinal.visitLabel(state.start);
-                ccFinal.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                if (owner.equals(className) && opcode != INVOKEINTERFACE && isSentinelTarget(name, descriptor)
+                    && !catchesUnwind(ccInterm.tryCatchBlocks)) {
+                  /* ## the callee returns `Unwind` instead of throwing it */
+                  final var returned = new Label();
+                  ccFinal.visitMethodInsn(opcode == INVOKESTATIC ? INVOKESTATIC : INVOKESPECIAL, className,
+                      name + "$ret", Type.getMethodDescriptor(Type.getObjectType("java/lang/Object"),
+                          state.type.getArgumentTypes()),
+                      false);
+                  ccFinal.visitInsn(DUP);
+                  ccFinal.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame", "_isSuspended",
+                      "(Ljava/lang/Object;)Z", false);
+                  ccFinal.visitJumpInsn(IFEQ, returned);
+                  ccFinal.visitVarInsn(ASTORE, tempVarsStart);
+                  popStoredStack(state);
+                  ccFinal.visitVarInsn(ALOAD, tempVarsStart);
+                  ccFinal.visitTypeInsn(CHECKCAST, "io/github/javactrl/rt/Unwind");
+                  ccFinal.visitJumpInsn(GOTO, state.unwind);
+                  ccFinal.visitLabel(returned);
+                  final var returnedStack = Arrays.copyOf(resumeStack, resumeStack.length + 1);
+                  returnedStack[resumeStack.length] = "java/lang/Object";
+                  ccFinal.visitFrame(F_NEW, unwindLocals.length, Arrays.copyOf(unwindLocals, unwindLocals.length),
+                      returnedStack.length, returnedStack);
+                  unbox(ccFinal, state.retType);
+                } else {
+                  ccFinal.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                }
                 ccFinal.visitJumpInsn(GOTO, state.cont);
                 /* # unwind handler */
                 ccFinal.visitLabel(state.unwind);
                 /* ## save opstack */
                 for (final var fieldDescr : fieldDescrs)
                   fieldDescr.count = 0;
-                var unwindLocals = new Object[localsStart + state.localTypes.length];
-                System.arraycopy(prefixFrameLocals, 0, unwindLocals, 0, stackStart);
-                System.arraycopy(state.stackTypes, 0, unwindLocals, stackStart, state.storedStackSize);
-                Arrays.fill(unwindLocals, stackStart + state.storedStackSize, localsStart, TOP);
-                System.arraycopy(state.localTypes, 0, unwindLocals, localsStart, state.localTypes.length);
-                unwindLocals = to1ElemOpTypes(unwindLocals);
-                ccFinal.visitFrame(F_NEW, unwindLocals.length, unwindLocals, 1,
+                ccFinal.visitFrame(F_NEW, unwindLocals.length, Arrays.copyOf(unwindLocals, unwindLocals.length), 1,
                     new Object[] { "io/github/javactrl/rt/Unwind" });
+                skipEscape(ccFinal, unwindLocals, state.tail);
+                final var saved = new ArrayList<SavedVar>();
                 regId = stackStart;
-                /* # save opstack */
                 for (final var fieldDescr : state.storedStackFields) {
-                  ccFinal.visitVarInsn(ALOAD, fieldDescr.blockIndex);
-                  intConst(ccFinal, fieldDescr.count++);
-                  ccFinal.visitVarInsn(fieldDescr.type.getOpcode(ILOAD), regId);
+                  saved.add(new SavedVar(fieldDescr, fieldDescr.count++, regId));
                   regId += fieldDescr.shift;
-                  ccFinal.visitInsn(fieldDescr.type.getOpcode(IASTORE));
                 }
                 /* ## unused locals cleanup (to avoid leaks) */
                 regId = 0;
-                final var localsToClean = new HashMap<>(refFD.indexToReg);
+                final var localsToClean = new BitSet();
+                localsToClean.set(0, refFD.localsCount);
                 for (final var fieldDescr : state.localFields) {
-                  if (fieldDescr == refFD)
-                    localsToClean.remove(getStoreIndex(refFD, regId, state.when));
+                  if (fieldDescr == refFD && state.isSaved(regId))
+                    localsToClean.clear(getStoreIndex(refFD, regId, state.when));
                   regId += fieldDescr.shift;
                 }
-                for (final var arrIndex : localsToClean.keySet()) {
-                  ccFinal.visitVarInsn(ALOAD, refFD.blockIndex);
-                  intConst(ccFinal, arrIndex + refFD.stack);
-                  ccFinal.visitInsn(ACONST_NULL);
-                  ccFinal.visitInsn(AASTORE);
+                /* only the blocks storing something are worth a call */
+                final var helperArgs = saved.isEmpty() && localsToClean.isEmpty() ? null
+                    : outlinedArgs(saved, 2);
+                if (helperArgs != null) {
+                  /* ## the block is in a separate method reading the arrays from the frame */
+                  final var helperName = format("%s$unwind$%d", ccId, state.id);
+                  final var helperDesc = Type.getMethodDescriptor(Type.VOID_TYPE, helperArgs);
+                  ccFinal.visitInsn(DUP);
+                  ccFinal.visitVarInsn(ALOAD, FRAME_VAR_INDEX);
+                  for (final var i : saved)
+                    ccFinal.visitVarInsn(i.fieldDescr.type.getOpcode(ILOAD), i.reg);
+                  ccFinal.visitMethodInsn(INVOKESTATIC, className, helperName, helperDesc, false);
+                  final var helper = ci.visitMethod(ACC_SYNTHETIC + ACC_PRIVATE + ACC_STATIC, helperName,
+                      helperDesc, null, null);
+                  helper.visitCode();
+                  var argReg = 2;
+                  for (final var i : saved) {
+                    helper.visitVarInsn(ALOAD, 1);
+                    helper.visitFieldInsn(GETFIELD, "io/github/javactrl/rt/CallFrame",
+                        i.fieldDescr.arrayName, i.fieldDescr.arrayDescriptor);
+                    intConst(helper, i.index);
+                    helper.visitVarInsn(i.fieldDescr.type.getOpcode(ILOAD), argReg);
+                    helper.visitInsn(i.fieldDescr.type.getOpcode(IASTORE));
+                    argReg += i.fieldDescr.shift;
+                  }
+                  if (!localsToClean.isEmpty()) {
+                    helper.visitVarInsn(ALOAD, 1);
+                    helper.visitFieldInsn(GETFIELD, "io/github/javactrl/rt/CallFrame", "v", "[Ljava/lang/Object;");
+                    for (var arrIndex = localsToClean.nextSetBit(0); arrIndex >= 0;
+                        arrIndex = localsToClean.nextSetBit(arrIndex + 1)) {
+                      helper.visitInsn(DUP);
+                      intConst(helper, arrIndex + refFD.stack);
+                      helper.visitInsn(ACONST_NULL);
+                      helper.visitInsn(AASTORE);
+                    }
+                    helper.visitInsn(POP);
+                  }
+                  helper.visitVarInsn(ALOAD, 1);
+                  helper.visitVarInsn(ALOAD, 0);
+                  intConst(helper, state.id);
+                  helper.visitInsn(state.isWindless() ? ICONST_1 : ICONST_0);
+                  helper.visitMethodInsn(INVOKEVIRTUAL, "io/github/javactrl/rt/CallFrame", "_unwind",
+                      "(Lio/github/javactrl/rt/Unwind;IZ)V", false);
+                  helper.visitInsn(RETURN);
+                  helper.visitMaxs(0, 0);
+                  helper.visitEnd();
+                } else {
+                  for (final var i : saved) {
+                    ccFinal.visitVarInsn(ALOAD, i.fieldDescr.blockIndex);
+                    intConst(ccFinal, i.index);
+                    ccFinal.visitVarInsn(i.fieldDescr.type.getOpcode(ILOAD), i.reg);
+                    ccFinal.visitInsn(i.fieldDescr.type.getOpcode(IASTORE));
+                  }
+                  for (var arrIndex = localsToClean.nextSetBit(0); arrIndex >= 0;
+                      arrIndex = localsToClean.nextSetBit(arrIndex + 1)) {
+                    ccFinal.visitVarInsn(ALOAD, refFD.blockIndex);
+                    intConst(ccFinal, arrIndex + refFD.stack);
+                    ccFinal.visitInsn(ACONST_NULL);
+                    ccFinal.visitInsn(AASTORE);
+                  }
+                  ccFinal.visitInsn(DUP);
+                  ccFinal.visitVarInsn(ALOAD, FRAME_VAR_INDEX);
+                  ccFinal.visitInsn(SWAP);
+                  intConst(ccFinal, state.id);
+                  ccFinal.visitInsn(state.isWindless() ? ICONST_1 : ICONST_0);
+                  ccFinal.visitMethodInsn(INVOKEVIRTUAL, "io/github/javactrl/rt/CallFrame", "_unwind",
+                      "(Lio/github/javactrl/rt/Unwind;IZ)V", false);
+                }
+                if (SENTINEL_UNWIND && !LAZY_FRAMES && !catchesUnwind(ccInterm.tryCatchBlocks)) {
+                  /* all the callers of the handler check the result, but a capture scope must throw into its own handlers */
+                  ccFinal.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame", "_suspended",
+                      "(Lio/github/javactrl/rt/Unwind;)Ljava/lang/Object;", false);
+                  ccFinal.visitInsn(ARETURN);
+                } else {
+                  ccFinal.visitInsn(ATHROW);
                 }
-                ccFinal.visitInsn(DUP);
-                ccFinal.visitVarInsn(ALOAD, FRAME_VAR_INDEX);
-                ccFinal.visitInsn(SWAP);
-                intConst(ccFinal, state.id);
-                ccFinal.visitMethodInsn(INVOKEVIRTUAL, "io/github/javactrl/rt/CallFrame", "_unwind",
-                    "(Lio/github/javactrl/rt/Unwind;I)V", false);
-                ccFinal.visitInsn(ATHROW);
                 /* # resume and a normal continuation join */
                 /* # resume handler */
                 ccFinal.visitLabel(state.resume);
-                final var retSort = state.retType.getSort();
-                var resumeStack = state.stackTypesAfter.toArray();
-                if (retSort != Type.VOID)
-                  resumeStack = Arrays.copyOf(resumeStack, resumeStack.length - 1);
-                Object[] contLocals;
-                if (state.localTypes.length == 0) {
-                  contLocals = prefixFrameLocals;
-                } else {
-                  contLocals = new Object[localsStart + state.localTypes.length];
-                  System.arraycopy(prefixFrameLocals, 0, contLocals, 0, stackStart);
-                  Arrays.fill(contLocals, stackStart, localsStart, TOP);
-                  System.arraycopy(state.localTypes, 0, contLocals, localsStart, state.localTypes.length);
-                  contLocals = to1ElemOpTypes(contLocals);
-                }
                 ccFinal.visitFrame(F_NEW, contLocals.length, Arrays.copyOf(contLocals, contLocals.length),
                     resumeStack.length, resumeStack);
+                if (state.stores)
+                  ownFrame();
+                if (state.windHandlers != null) {
+                  /* ## jump into the next `catch (Wind)` block if any */
+                  final var count = state.windHandlers.size();
+                  ccFinal.visitVarInsn(ALOAD, FRAME_VAR_INDEX);
+                  intConst(ccFinal, count);
+                  ccFinal.visitMethodInsn(INVOKEVIRTUAL, "io/github/javactrl/rt/CallFrame", "_windDispatch",
+                      "(I)I", false);
+                  if (count == 0) {
+                    ccFinal.visitInsn(POP);
+                  } else {
+                    final var proceed = new Label();
+                    final var entries = new Label[count];
+                    for (var i = 0; i < count; ++i)
+                      entries[i] = new Label();
+                    ccFinal.visitTableSwitchInsn(0, count - 1, proceed, entries);
+                    for (var i = 0; i < count; ++i) {
+                      ccFinal.visitLabel(entries[i]);
+                      ccFinal.visitFrame(F_NEW, contLocals.length, Arrays.copyOf(contLocals, contLocals.length),
+                          resumeStack.length, Arrays.copyOf(resumeStack, resumeStack.length));
+                      popStoredStack(state);
+                      ccFinal.visitVarInsn(ALOAD, FRAME_VAR_INDEX);
+                      ccFinal.visitMethodInsn(INVOKEVIRTUAL, "io/github/javactrl/rt/CallFrame", "_windToken",
+                          "()Lio/github/javactrl/rt/Wind;", false);
+                      ccFinal.visitJumpInsn(GOTO, state.windHandlers.get(i).getLabel());
+                    }
+                    ccFinal.visitLabel(proceed);
+                    ccFinal.visitFrame(F_NEW, contLocals.length, Arrays.copyOf(contLocals, contLocals.length),
+                        resumeStack.length, Arrays.copyOf(resumeStack, resumeStack.length));
+                  }
+                }
                 ccFinal.visitVarInsn(ALOAD, FRAME_VAR_INDEX);
                 if (retSort == Type.ARRAY || retSort == Type.OBJECT || retSort == Type.METHOD) {
                   ccFinal.visitMethodInsn(INVOKEVIRTUAL, "io/github/javactrl/rt/CallFrame",
@@ -877,10 +2662,10 @@ public void visitMethodInsn(
                   ccFinal.visitMethodInsn(INVOKEVIRTUAL, "io/github/javactrl/rt/CallFrame",
                       format("_%sResult", state.retType.getClassName()),
                       format("()%s", state.retType.getDescriptor()), false);
-                /* ## cleanup opstack */
+                /* ## cleanup opstack (unless the arrays may be shared) */
                 var fieldCount = 0;
                 for (final var fieldDescr : state.storedStackFields) {
-                  if (fieldDescr != refFD)
+                  if (fieldDescr != refFD || !state.stores)
                     continue;
                   ccFinal.visitVarInsn(ALOAD, refFD.blockIndex);
                   intConst(ccFinal, fieldCount++);
@@ -902,16 +2687,15 @@ public void visitInsn(final int opcode) {
                   case LRETURN:
                   case FRETURN:
                   case DRETURN:
-                    final var retClass = retType == Type.INT_TYPE ? "Integer"
-                        : retType == Type.CHAR_TYPE ? "Character" : retType.getClassName();
-                    final var clName = format("java/lang/%s%s", retClass.substring(0, 1).toUpperCase(),
-                        retClass.substring(1));
-                    ccFinal.visitMethodInsn(INVOKESTATIC, clName, "valueOf",
-                        format("(%s)L%s;", retType.getInternalName(), clName), false);
-                    ccFinal.visitInsn(ARETURN);
-                    break;
                   case RETURN:
-                    ccFinal.visitInsn(ACONST_NULL);
+                    if (isPrimitiveResult(retType)) {
+                      ccFinal.visitVarInsn(ALOAD, FRAME_VAR_INDEX);
+                      ccFinal.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/CallFrame", "_return",
+                          format("(%sLio/github/javactrl/rt/CallFrame;)Ljava/lang/Object;", retType.getDescriptor()),
+                          false);
+                    } else {
+                      box(ccFinal, retType);
+                    }
                     ccFinal.visitInsn(ARETURN);
                     break;
                   default:
@@ -919,8 +2703,40 @@ public void visitInsn(final int opcode) {
                 }
               }
 
+              /* drops the part of the opstack which is stored in the frame on unwind */
+              void popStoredStack(final StateDescr state) {
+                for (final var i = state.storedStackFields.listIterator(state.storedStackFields.size()); i
+                    .hasPrevious();) {
+                  final var fieldDescr = i.previous();
+                  if (fieldDescr.size > 0)
+                    ccFinal.visitInsn(fieldDescr.size == 2 ? POP2 : POP);
+                }
+              }
+
               @Override
               public void visitMaxs(final int maxStack, final int maxLocals) {
+                ccFinal.visitLabel(bodyEnd);
+                if (states.stream().anyMatch(i -> i.windHandlers != null && !i.windHandlers.isEmpty())) {
+                  /* # a `catch (Wind)` block rethrew the winding object, the next one is selected on resume */
+                  final var rewind = new Label();
+                  final var labelsArr = new Label[states.size() + 1];
+                  labelsArr[0] = dflt;
+                  for (final var state : states)
+                    labelsArr[state.id] = state.windHandlers != null ? state.init : dflt;
+                  ccFinal.visitLabel(rewind);
+                  ccFinal.visitFrame(F_NEW, prefixFrameLocals.length,
+                      Arrays.copyOf(prefixFrameLocals, prefixFrameLocals.length), 1,
+                      new Object[] { "io/github/javactrl/rt/Wind" });
+                  ccFinal.visitVarInsn(ALOAD, FRAME_VAR_INDEX);
+                  ccFinal.visitInsn(SWAP);
+                  ccFinal.visitMethodInsn(INVOKEVIRTUAL, "io/github/javactrl/rt/CallFrame", "_rewind",
+                      "(Lio/github/javactrl/rt/Wind;)V", false);
+                  ccFinal.visitVarInsn(ALOAD, FRAME_VAR_INDEX);
+                  ccFinal.visitFieldInsn(GETFIELD, "io/github/javactrl/rt/CallFrame", "state", "I");
+                  ccFinal.visitTableSwitchInsn(0, states.size(), dflt, labelsArr);
+                  /* it's after the method's own handlers, so it gets only what they rethrow */
+                  ccFinal.visitTryCatchBlock(bodyStart, bodyEnd, rewind, "io/github/javactrl/rt/Wind");
+                }
                 for (final var state : states) {
                   /* # restore vars */
                   ccFinal.visitLabel(state.init);
@@ -945,21 +2761,76 @@ public void visitMaxs(final int maxStack, final int maxLocals) {
                       }
                     }
                   }
-                  restoreLocals(state.localFields, state.localTypes, state.when);
+                  restoreLocals(state.localFields, state.localTypes, state.when, state);
                   ccFinal.visitJumpInsn(GOTO, state.resume);
                 }
                 ccFinal.visitMaxs(maxStack, maxLocals);
               }
             });
-            assert !varInsIter.hasNext();
+            assert varInsIter == visitedVarInsCount;
           }
-        };
+        });
       };
     };
     cr.accept(visitor, ClassReader.EXPAND_FRAMES);
     if (!visitor.anythingInstrumented)
       return null;
     ci.accept(CHECK ? new CheckClassAdapter(cw, true) : cw);
-    return cw.toByteArray();
+    final var ret = cw.toByteArray();
+    if (INLINE_REPORT)
+      for (final var i : inlineReport(data, ret))
+        System.err.println(i);
+    return ret;
+  }
+
+  /**
+   * Lists the methods which crossed {@link #MAX_INLINE_SIZE} or {@link #FREQ_INLINE_SIZE} after
+   * the instrumentation, these are the methods callers invoke (the instrumented ones and the 
+   * frame handlers' bodies), if their original version wasn't over the same threshold
+   * 
+   * @param original the class's bytecode before instrumentation
+   * @param instrumented the class's bytecode after instrumentation
+   * @return the report's lines, one for each method
+   */
+  public static List<String> inlineReport(final byte[] original, final byte[] instrumented) {
+    final var before = codeSizes(original);
+    final var after = codeSizes(instrumented);
+    final var className = new ClassReader(instrumented).getClassName().replace('/', '.');
+    final var ret = new ArrayList<String>();
+    for (final var i : after.entrySet()) {
+      final var method = i.getKey();
+      final int size = i.getValue();
+      final var name = method.substring(0, method.indexOf('('));
+      final var prev = before.get(method);
+      if (prev == null && !name.endsWith("$cc") && !name.endsWith("$ret"))
+        continue;
+      final var threshold = size > FREQ_INLINE_SIZE ? FREQ_INLINE_SIZE : size > MAX_INLINE_SIZE ? MAX_INLINE_SIZE : 0;
+      if (threshold == 0 || prev != null && prev > threshold)
+        continue;
+      ret.add(format("%s.%s: %d bytes%s, over %s (%d)", className, method, size,
+          prev == null ? "" : format(" (originally %d)", prev),
+          threshold == FREQ_INLINE_SIZE ? "FreqInlineSize" : "MaxInlineSize", threshold));
+    }
+    ret.sort(null);
+    return ret;
+  }
+
+  /* the methods' bytecode sizes by their names and descriptors */
+  private static Map<String, Integer> codeSizes(final byte[] data) {
+    final var ret = new HashMap<String, Integer>();
+    new ClassReader(data).accept(new ClassVisitor(ASM9) {
+      @Override
+      public MethodVisitor visitMethod(final int access, final String name, final String descriptor,
+          final String signature, final String[] exceptions) {
+        return new CodeSizeEvaluator(null) {
+          @Override
+          public void visitEnd() {
+            if (getMinSize() > 0)
+              ret.put(name + descriptor, getMinSize());
+          }
+        };
+      }
+    }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    return ret;
   }
 }
@@ -0,0 +1,181 @@
+package io.github.javactrl.instrument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.commons.AnalyzerAdapter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Inserts a budget check before each backward jump (see {@link Transform#YIELD_POINTS}).
+ *
+ * The check decrements a counter kept in an additional register, and only when it reaches zero,
+ * it calls {@link io.github.javactrl.rt.Preempt#brkTick(int)}, which is a suspending call, and
+ * resets the counter. The counter is a usual local of the method, so it's saved and restored with
+ * the other locals if the method is suspended. Each activation starts its own counter, so a few
+ * iterations of loops in the methods returning before it reaches zero aren't counted.
+ *
+ * The input must have expanded frames.
+ */
+final class YieldPoints extends AnalyzerAdapter {
+  /** the yield method's owner */
+  static final String OWNER = "io/github/javactrl/rt/Preempt";
+  /** the yield method's name */
+  static final String NAME = "brkTick";
+  /** the yield method's descriptor */
+  static final String DESCRIPTOR = "(I)V";
+
+  /* the counter's register */
+  private final int counter;
+  /* the labels visited so far, jumps to them are backward */
+  private final Set<Label> visited = new HashSet<>();
+
+  /**
+   * Constructor
+   *
+   * @param owner the class's internal name
+   * @param access the method's access flags
+   * @param name the method's name
+   * @param descriptor the method's descriptor
+   * @param counter the register for the counter, after the method's locals
+   * @param methodVisitor the next visitor
+   */
+  YieldPoints(final String owner, final int access, final String name, final String descriptor, final int counter,
+      final MethodVisitor methodVisitor) {
+    super(ASM9, owner, access, name, descriptor, methodVisitor);
+    this.counter = counter;
+  }
+
+  /**
+   * Checks if the method has any backward jumps
+   *
+   * @param method the method to check
+   * @return {@literal true} if there is a loop
+   */
+  static boolean loops(final MethodNode method) {
+    final var visited = new HashSet<LabelNode>();
+    for (final AbstractInsnNode insn : method.instructions) {
+      if (insn instanceof LabelNode) {
+        visited.add((LabelNode) insn);
+      } else if (insn instanceof JumpInsnNode) {
+        if (visited.contains(((JumpInsnNode) insn).label))
+          return true;
+      } else if (insn instanceof TableSwitchInsnNode) {
+        final var switchInsn = (TableSwitchInsnNode) insn;
+        if (visited.contains(switchInsn.dflt) || switchInsn.labels.stream().anyMatch(visited::contains))
+          return true;
+      } else if (insn instanceof LookupSwitchInsnNode) {
+        final var switchInsn = (LookupSwitchInsnNode) insn;
+        if (visited.contains(switchInsn.dflt) || switchInsn.labels.stream().anyMatch(visited::contains))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks if the call is the inserted yield point, it's suspending regardless of the call predicate
+   *
+   * @param owner the called method's owner
+   * @param name the called method's name
+   * @param descriptor the called method's descriptor
+   * @return {@literal true} for {@link io.github.javactrl.rt.Preempt#brkTick(int)}
+   */
+  static boolean isYield(final String owner, final String name, final String descriptor) {
+    return owner.equals(OWNER) && name.equals(NAME) && descriptor.equals(DESCRIPTOR);
+  }
+
+  @Override
+  public void visitCode() {
+    super.visitCode();
+    intConst(Transform.YIELD_INTERVAL);
+    super.visitVarInsn(ISTORE, counter);
+  }
+
+  @Override
+  public void visitFrame(final int type, final int numLocal, final Object[] local, final int numStack,
+      final Object[] stack) {
+    /* the counter is an `int` everywhere after the method's start */
+    final var slots = new ArrayList<>();
+    for (var i = 0; i < numLocal; ++i) {
+      slots.add(local[i]);
+      if (local[i] == LONG || local[i] == DOUBLE)
+        slots.add(TOP);
+    }
+    while (slots.size() <= counter)
+      slots.add(TOP);
+    slots.set(counter, INTEGER);
+    final var frameLocals = Inliner.compress(slots).toArray();
+    super.visitFrame(type, frameLocals.length, frameLocals, numStack, stack);
+  }
+
+  @Override
+  public void visitLabel(final Label label) {
+    visited.add(label);
+    super.visitLabel(label);
+  }
+
+  @Override
+  public void visitJumpInsn(final int opcode, final Label label) {
+    if (visited.contains(label))
+      yieldPoint();
+    super.visitJumpInsn(opcode, label);
+  }
+
+  @Override
+  public void visitTableSwitchInsn(final int min, final int max, final Label dflt, final Label... labels) {
+    if (visited.contains(dflt) || Arrays.stream(labels).anyMatch(visited::contains))
+      yieldPoint();
+    super.visitTableSwitchInsn(min, max, dflt, labels);
+  }
+
+  @Override
+  public void visitLookupSwitchInsn(final Label dflt, final int[] keys, final Label[] labels) {
+    if (visited.contains(dflt) || Arrays.stream(labels).anyMatch(visited::contains))
+      yieldPoint();
+    super.visitLookupSwitchInsn(dflt, keys, labels);
+  }
+
+  @Override
+  public void visitMaxs(final int maxStack, final int maxLocals) {
+    super.visitMaxs(maxStack + 1, Math.max(maxLocals, counter + 1));
+  }
+
+  /* the counter's decrement, and the rarely taken yield */
+  private void yieldPoint() {
+    /* unreachable code, or uninitialized objects which can't be saved across the call */
+    if (locals == null || stack.stream().anyMatch(i -> i instanceof Label || i == UNINITIALIZED_THIS))
+      return;
+    final var frameLocals = Inliner.compress(locals).toArray();
+    final var frameStack = Inliner.compress(stack).toArray();
+    final var skip = new Label();
+    super.visitIincInsn(counter, -1);
+    super.visitVarInsn(ILOAD, counter);
+    super.visitJumpInsn(IFGT, skip);
+    intConst(Transform.YIELD_INTERVAL);
+    super.visitMethodInsn(INVOKESTATIC, OWNER, NAME, DESCRIPTOR, false);
+    intConst(Transform.YIELD_INTERVAL);
+    super.visitVarInsn(ISTORE, counter);
+    super.visitLabel(skip);
+    super.visitFrame(F_NEW, frameLocals.length, frameLocals, frameStack.length, frameStack);
+  }
+
+  private void intConst(final int value) {
+    if (value <= Short.MAX_VALUE)
+      super.visitIntInsn(value <= Byte.MAX_VALUE ? BIPUSH : SIPUSH, value);
+    else
+      super.visitLdcInsn(value);
+  }
+}
@@ -5,6 +5,14 @@
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
 import static java.lang.String.format;
 
 /**
@@ -52,6 +60,8 @@ Object run(CallFrame frame, int[] ints, long[] longs, float[] floats, double[] d
   public int state = 0;
   /** the body of the function */
   public _Handler handler;
+  /** the method's id for the owner's dispatcher handler if the owner is instrumented with one */
+  public int methodId;
   /** <code>int</code> local and stack variables */
   public int[] vI;
   /** <code>long</code> local and stack variables */
@@ -65,16 +75,110 @@ Object run(CallFrame frame, int[] ints, long[] longs, float[] floats, double[] d
 
   /** currently processing winding exception object  */
   private Wind token;
-  /** current stage 0, 1 or 2 */
+  /** 
+   * current stage 0, 1 or 2, or 3 if the state's <code>catch</code> handlers are invoked 
+   * directly (see {@link #_windDispatch(int)}), 4 if they all rethrew the exception object,
+   * or 5 when the frame continues with its callee's result
+   */
   private int windStage;
   /** calculating current wind <code>catch</code> handlers number */
   private int windCount;
   /** currently invoking wind <code>catch</code> handlers position */
   private int windIter;
+  /** the generated code jumps into a wind <code>catch</code> handler, which must not skip it */
+  private boolean windDirect;
+  /** the suspended call isn't in any <code>catch</code> handler which can get {@link Wind} */
+  private boolean windless;
+  /** the callee's (or the frame's own if a wind handler stopped winding) result */
+  private Object windValue;
+  /** the primitive value if {@link #windValue} is a {@link Primitive} marker */
+  private long windBits;
+  /** the callee's exception */
+  private Throwable windError;
+  /** the caller's copy while winding, it continues after this frame */
+  private CallFrame windCaller;
+  /** the frame is resumed in place (see {@link #windOnce(Wind)}) and isn't suspended again yet */
+  private boolean consumed;
+  /** the variables are moved from the arrays into the fields of a generated subclass */
+  private boolean packed;
+  /** the arrays may be shared with other copies of the frame, they are copied before the first store */
+  private boolean shared;
+
+  /** 
+   * A marker returned by the frame's handler (or set by {@link Wind#createIntReturn(int)} and 
+   * the like) instead of a boxed primitive value, the value is in {@link #windBits} of the frame
+   */
+  static final class Primitive implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Primitive[] all = new Primitive[8];
+    static final Primitive BOOLEAN = new Primitive(0);
+    static final Primitive CHAR = new Primitive(1);
+    static final Primitive BYTE = new Primitive(2);
+    static final Primitive SHORT = new Primitive(3);
+    static final Primitive INT = new Primitive(4);
+    static final Primitive LONG = new Primitive(5);
+    static final Primitive FLOAT = new Primitive(6);
+    static final Primitive DOUBLE = new Primitive(7);
+
+    private final int id;
+
+    private Primitive(final int id) {
+      this.id = id;
+      all[id] = this;
+    }
+
+    private Object readResolve() {
+      return all[id];
+    }
+
+    long asLong(final long bits) {
+      if (this == FLOAT)
+        return (long) Float.intBitsToFloat((int) bits);
+      if (this == DOUBLE)
+        return (long) Double.longBitsToDouble(bits);
+      return bits;
+    }
+
+    double asDouble(final long bits) {
+      if (this == FLOAT)
+        return Float.intBitsToFloat((int) bits);
+      if (this == DOUBLE)
+        return Double.longBitsToDouble(bits);
+      return bits;
+    }
+
+    Object box(final long bits) {
+      if (this == BOOLEAN)
+        return bits != 0;
+      if (this == CHAR)
+        return (char) bits;
+      if (this == BYTE)
+        return (byte) bits;
+      if (this == SHORT)
+        return (short) bits;
+      if (this == INT)
+        return (int) bits;
+      if (this == LONG)
+        return bits;
+      return asDouble(bits);
+    }
+  }
 
   /** set this to `true` for serialization debugging */
   public static boolean TRACE_SERIALIZATION = false;
 
+  /** if it's set, it's called with each frame captured on unwinding (e.g. to record a profile) */
+  public static Consumer<CallFrame> unwindListener = null;
+
+  /** 
+   * if it's set, it's called with the classes where an {@link Unwind} passed a call which isn't
+   * instrumented because the profile didn't have it (e.g. to instrument them fully)
+   */
+  public static Consumer<Class<?>> missedCaptureListener = null;
+
+  /** number of active methods able to catch {@link Unwind} on the current thread's stack */
+  private static final ThreadLocal<int[]> captureDepth = ThreadLocal.withInitial(() -> new int[1]);
+
   /**
    * Call frame constructor
    * 
@@ -119,6 +223,116 @@ public static CallFrame _create(final Class<?> owner, final String methodName, f
     return new CallFrame(owner, methodName, intMax, longMax, floatMax, doubleMax, refMax);
   }
 
+  /**
+   * used by the generated code to create a frame on the first unwind or to reuse it on the next ones
+   *
+   * @param frame the frame created on a previous unwind or {@literal null}
+   * @param owner the method's owner class
+   * @param methodName method's name
+   * @param intMax number of <code>int</code> variables
+   * @param longMax number of <code>long</code> variables
+   * @param floatMax number of <code>float</code> variables
+   * @param doubleMax number of <code>double</code> variables
+   * @param refMax number of reference variables
+   * @return a call frame instance
+   */
+  public static CallFrame _lazyCreate(final CallFrame frame, final Class<?> owner, final String methodName,
+      final int intMax, final int longMax, final int floatMax, final int doubleMax, final int refMax) {
+    if (frame != null) {
+      frame._own();
+      return frame;
+    }
+    return new CallFrame(owner, methodName, intMax, longMax, floatMax, doubleMax, refMax);
+  }
+
+  /**
+   * used by the generated code to store an <code>int</code> variable if the frame is already created
+   *
+   * @param frame the frame or {@literal null} if it isn't created yet
+   * @param index the variable's index
+   * @param value the variable's value
+   */
+  public static void _lazyStore(final CallFrame frame, final int index, final int value) {
+    if (frame != null) {
+      frame._own();
+      frame.vI[index] = value;
+    }
+  }
+
+  /**
+   * used by the generated code to store a <code>long</code> variable if the frame is already created
+   *
+   * @param frame the frame or {@literal null} if it isn't created yet
+   * @param index the variable's index
+   * @param value the variable's value
+   */
+  public static void _lazyStore(final CallFrame frame, final int index, final long value) {
+    if (frame != null) {
+      frame._own();
+      frame.vJ[index] = value;
+    }
+  }
+
+  /**
+   * used by the generated code to store a <code>float</code> variable if the frame is already created
+   *
+   * @param frame the frame or {@literal null} if it isn't created yet
+   * @param index the variable's index
+   * @param value the variable's value
+   */
+  public static void _lazyStore(final CallFrame frame, final int index, final float value) {
+    if (frame != null) {
+      frame._own();
+      frame.vF[index] = value;
+    }
+  }
+
+  /**
+   * used by the generated code to store a <code>double</code> variable if the frame is already created
+   *
+   * @param frame the frame or {@literal null} if it isn't created yet
+   * @param index the variable's index
+   * @param value the variable's value
+   */
+  public static void _lazyStore(final CallFrame frame, final int index, final double value) {
+    if (frame != null) {
+      frame._own();
+      frame.vD[index] = value;
+    }
+  }
+
+  /**
+   * used by the generated code to store a reference variable if the frame is already created
+   *
+   * @param frame the frame or {@literal null} if it isn't created yet
+   * @param index the variable's index
+   * @param value the variable's value
+   */
+  public static void _lazyStore(final CallFrame frame, final int index, final Object value) {
+    if (frame != null) {
+      frame._own();
+      frame.v[index] = value;
+    }
+  }
+
+  /* the owners' dispatcher handlers with their method names by ids, `null` if there is a handler per method */
+  private static final ClassValue<Object[]> dispatchers = new ClassValue<>() {
+    @Override
+    protected Object[] computeValue(final Class<?> type) {
+      try {
+        final var dispatcher = type.getDeclaredMethod("$cc$dispatcher");
+        final var methods = type.getDeclaredMethod("$cc$methods");
+        dispatcher.setAccessible(true);
+        methods.setAccessible(true);
+        return new Object[] { dispatcher.invoke(null), Arrays.asList((String[]) methods.invoke(null)) };
+      } catch (NoSuchMethodException e) {
+        return null;
+      } catch (Throwable e) {
+        throw new RuntimeException("couldn't read CC dispatcher", e);
+      }
+    }
+  };
+
   /**
    * Serializable read implementation
    * 
@@ -142,6 +356,14 @@ private void readObject(final ObjectInputStream stream) throws ClassNotFoundExce
      * instrumentation stage, so we have to use an own one, but the method name is
      * enough to recover it
      */
+    final var dispatcher = dispatchers.get(owner);
+    if (dispatcher != null) {
+      handler = (_Handler) dispatcher[0];
+      methodId = ((List<?>) dispatcher[1]).indexOf(methodName);
+      if (methodId < 0)
+        throw new RuntimeException(format("couldn't read CC handler of %s.%s", owner.getName(), methodName));
+      return;
+    }
     try {
       final var method = owner.getDeclaredMethod(methodName + "$cc$lambda");
       method.setAccessible(true);
@@ -151,6 +373,28 @@ private void readObject(final ObjectInputStream stream) throws ClassNotFoundExce
     }
   }
 
+  /**
+   * The generated subclasses are defined at runtime, so they are serialized as plain frames
+   * 
+   * @return the object to serialize instead of this
+   */
+  protected Object writeReplace() {
+    if (getClass() == CallFrame.class)
+      return this;
+    final var src = packed ? copy().unpack() : this;
+    final var ret = new CallFrame(owner, methodName, 0, 0, 0, 0, 0);
+    ret.state = state;
+    ret.next = next;
+    ret.handler = handler;
+    ret.methodId = methodId;
+    ret.vI = src.vI;
+    ret.vJ = src.vJ;
+    ret.vF = src.vF;
+    ret.vD = src.vD;
+    ret.v = src.v;
+    return ret;
+  }
+
   /**
    * Serializable write implementation
    * 
@@ -175,28 +419,53 @@ private void writeObject(final ObjectOutputStream stream) throws IOException {
     stream.writeObject(next);
   }
 
-  @SuppressWarnings("unchecked")
-  private <R> R windSelf(Wind wind) throws CThrowable {
-    token = wind;
+  /**
+   * Runs the frame's wind <code>catch</code> handlers, outer first, until one of them doesn't 
+   * rethrow the exception object, the frame's result is stored in {@link #windValue} then
+   * 
+   * @return <code>true</code> if all the handlers rethrew the exception object
+   * @throws Throwable if the frame throws another exception
+   */
+  private boolean windHandlers() throws Throwable {
     windStage = 0;
     windCount = 0;
     try {
-      return (R) handler.run(this, vI, vJ, vF, vD, v);
+      windValue = _result(handler.run(this, vI, vJ, vF, vD, v));
+      return false;
     } catch (final Wind otherWind) {
-      assert wind == otherWind;
+      /* the state's handlers are invoked directly, so there are no other passes */
+      if (otherWind != token || windStage != 0) {
+        if (otherWind == token && windStage == 4)
+          return true;
+        throw otherWind;
+      }
     }
     windStage = 1;
     for (var i = windCount; i > 0; --i) {
       windIter = i;
       try {
-        return (R) handler.run(this, vI, vJ, vF, vD, v);
-      } catch (Wind otherWind) {
-        if (wind != otherWind)
+        windValue = _result(handler.run(this, vI, vJ, vF, vD, v));
+        return false;
+      } catch (final Wind otherWind) {
+        if (otherWind != token)
           throw otherWind;
       }
     }
     windStage = 2;
-    return (R) handler.run(this, vI, vJ, vF, vD, v);
+    try {
+      windValue = _result(handler.run(this, vI, vJ, vF, vD, v));
+      return false;
+    } catch (final Wind otherWind) {
+      if (otherWind == token && windStage == 4)
+        return true;
+      throw otherWind;
+    }
+  }
+
+  /* rethrows an exception from the handlers, they are declared to throw only `CThrowable` */
+  @SuppressWarnings("unchecked")
+  private static <T extends Throwable> T rethrow(final Throwable e) throws T {
+    throw (T) e;
   }
 
   /** 
@@ -212,6 +481,67 @@ public <R, T> R resume(final T val) throws CThrowable {
     return wind(Wind.createReturn(val));
   }
 
+  /** 
+   * like {@link #resume(Object)} but the value isn't boxed (see {@link Wind#createIntReturn(int)})
+   * 
+   * @param <R> result type
+   * @param val value the suspended expression will return on resume
+   * @return this call frame return value
+   * @throws CThrowable if suspended again
+   */
+  public <R> R resumeInt(final int val) throws CThrowable {
+    return wind(Wind.createIntReturn(val));
+  }
+
+  /** 
+   * like {@link #resume(Object)} but the value isn't boxed (see {@link Wind#createLongReturn(long)})
+   * 
+   * @param <R> result type
+   * @param val value the suspended expression will return on resume
+   * @return this call frame return value
+   * @throws CThrowable if suspended again
+   */
+  public <R> R resumeLong(final long val) throws CThrowable {
+    return wind(Wind.createLongReturn(val));
+  }
+
+  /** 
+   * like {@link #resume(Object)} but the value isn't boxed (see {@link Wind#createFloatReturn(float)})
+   * 
+   * @param <R> result type
+   * @param val value the suspended expression will return on resume
+   * @return this call frame return value
+   * @throws CThrowable if suspended again
+   */
+  public <R> R resumeFloat(final float val) throws CThrowable {
+    return wind(Wind.createFloatReturn(val));
+  }
+
+  /** 
+   * like {@link #resume(Object)} but the value isn't boxed (see {@link Wind#createDoubleReturn(double)})
+   * 
+   * @param <R> result type
+   * @param val value the suspended expression will return on resume
+   * @return this call frame return value
+   * @throws CThrowable if suspended again
+   */
+  public <R> R resumeDouble(final double val) throws CThrowable {
+    return wind(Wind.createDoubleReturn(val));
+  }
+
+  /** 
+   * like {@link #resume(Object)} but resumes the frames in place (see {@link #windOnce(Wind)})
+   * 
+   * @param <R> result type
+   * @param <T> argument type
+   * @param val value the suspended expression will return on resume
+   * @return this call frame return value
+   * @throws CThrowable if suspended again
+   */
+  public <R, T> R resumeOnce(final T val) throws CThrowable {
+    return windOnce(Wind.createReturn(val));
+  }
+
   /** 
    * like {@link #wind(Wind)} but isn't supposed to be suspended again, 
    * and converts each {@link CThrowable} into <code>RuntimeException</code> 
@@ -221,10 +551,13 @@ public <R, T> R resume(final T val) throws CThrowable {
    * @return this call frame return value
    */
   public <R> R windTop(final Wind token) {
+    _enterCapture();
     try {
       return wind(token);
     } catch (CThrowable e) {
       throw new RuntimeException("shouldn't be suspended", token);
+    } finally {
+      _exitCapture();
     }
   }
 
@@ -240,6 +573,25 @@ public <R, T> R resumeTop(final T val) {
     return windTop(Wind.createReturn(val));
   }
 
+  /** 
+   * like {@link #resumeTop(Object)} but resumes the frames in place (see {@link #windOnce(Wind)})
+   * 
+   * @param <T> argument type
+   * @param <R> resulting type
+   * @param val value the suspended expression will return on resume
+   * @return this call frame return value
+   */
+  public <R, T> R resumeTopOnce(final T val) {
+    _enterCapture();
+    try {
+      return windOnce(Wind.createReturn(val));
+    } catch (CThrowable e) {
+      throw new RuntimeException("shouldn't be suspended", e);
+    } finally {
+      _exitCapture();
+    }
+  }
+
   /** 
    * like {@link #resumeThrow(Throwable)} but isn't supposed to be suspended after 
    * 
@@ -264,6 +616,18 @@ public <R> R resumeThrow(final Throwable e) throws CThrowable {
     return wind(Wind.createThrow(e));
   }
 
+  /** 
+   * like {@link #resumeThrow(Throwable)} but resumes the frames in place (see {@link #windOnce(Wind)})
+   * 
+   * @param <R> resulting type
+   * @param e an exception to throw at the suspended point
+   * @return this call frame return value
+   * @throws CThrowable if suspended again
+   */
+  public <R> R resumeThrowOnce(final Throwable e) throws CThrowable {
+    return windOnce(Wind.createThrow(e));
+  }
+
   /** 
    * This is called from the generated code on unwinding
    * 
@@ -271,9 +635,411 @@ public <R> R resumeThrow(final Throwable e) throws CThrowable {
    * @param state a pointer into a code where it was suspended
    */
   public void _unwind(final Unwind e, final int state) {
+    _unwind(e, state, false);
+  }
+
+  /** 
+   * This is called from the generated code on unwinding
+   * 
+   * @param e the exception object
+   * @param state a pointer into a code where it was suspended
+   * @param windless <code>true</code> if no <code>catch</code> handler around the suspended call
+   *                 can get {@link Wind}, so winding doesn't run the frame before its callees
+   */
+  public void _unwind(final Unwind e, final int state, final boolean windless) {
     this.state = state;
+    this.windless = windless;
+    consumed = false;
     this.next = e.head;
     e.head = this;
+    pack();
+    final var listener = unwindListener;
+    if (listener != null)
+      listener.accept(this);
+  }
+
+  /**
+   * This is called from the generated code (see <code>Transform.SENTINEL_UNWIND</code>) after 
+   * {@link #_unwind(Unwind, int)} to return the exception object instead of throwing it
+   * 
+   * @param e the exception object
+   * @return the value to return from the frame's handler
+   */
+  public static Object _suspended(final Unwind e) {
+    e.returned = true;
+    return e;
+  }
+
+  /**
+   * This is called from the generated code to check if the called method returned instead of throwing
+   * 
+   * @param value the called method's result
+   * @return <code>true</code> if it's an exception object from {@link #_suspended(Unwind)}
+   */
+  public static boolean _isSuspended(final Object value) {
+    return value instanceof Unwind && ((Unwind) value).returned;
+  }
+
+  /**
+   * This is called from the generated code on the frame handler's result, the returned exception 
+   * object is thrown here because the caller doesn't check it
+   * 
+   * @param value the handler's result
+   * @return the same value if it isn't a returned exception object
+   * @throws CThrowable if the value is a returned exception object
+   */
+  public static Object _result(final Object value) throws CThrowable {
+    if (_isSuspended(value)) {
+      final var e = (Unwind) value;
+      e.returned = false;
+      throw e;
+    }
+    return value;
+  }
+
+  /**
+   * This is called from the generated code (see <code>Transform.PRIMITIVE_RESULTS</code>) to return 
+   * a <code>boolean</code> from the frame's handler without boxing it
+   * 
+   * @param value the result
+   * @param frame the current frame
+   * @return the result's marker
+   */
+  public static Object _return(final boolean value, final CallFrame frame) {
+    frame.windBits = value ? 1 : 0;
+    return Primitive.BOOLEAN;
+  }
+
+  /**
+   * This is called from the generated code to get a <code>boolean</code> result of the frame's handler
+   * 
+   * @param value the handler's result, it's either boxed or a marker from {@link #_return(boolean, CallFrame)}
+   * @param frame the frame
+   * @return the result
+   */
+  public static boolean _booleanValue(final Object value, final CallFrame frame) {
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return p.asLong(frame.windBits) != 0;
+    }
+    return (Boolean) value;
+  }
+
+  /**
+   * This is called from the generated code (see <code>Transform.PRIMITIVE_RESULTS</code>) to return 
+   * a <code>char</code> from the frame's handler without boxing it
+   * 
+   * @param value the result
+   * @param frame the current frame
+   * @return the result's marker
+   */
+  public static Object _return(final char value, final CallFrame frame) {
+    frame.windBits = value;
+    return Primitive.CHAR;
+  }
+
+  /**
+   * This is called from the generated code to get a <code>char</code> result of the frame's handler
+   * 
+   * @param value the handler's result, it's either boxed or a marker from {@link #_return(char, CallFrame)}
+   * @param frame the frame
+   * @return the result
+   */
+  public static char _charValue(final Object value, final CallFrame frame) {
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return (char) p.asLong(frame.windBits);
+    }
+    return (Character) value;
+  }
+
+  /**
+   * This is called from the generated code (see <code>Transform.PRIMITIVE_RESULTS</code>) to return 
+   * a <code>byte</code> from the frame's handler without boxing it
+   * 
+   * @param value the result
+   * @param frame the current frame
+   * @return the result's marker
+   */
+  public static Object _return(final byte value, final CallFrame frame) {
+    frame.windBits = value;
+    return Primitive.BYTE;
+  }
+
+  /**
+   * This is called from the generated code to get a <code>byte</code> result of the frame's handler
+   * 
+   * @param value the handler's result, it's either boxed or a marker from {@link #_return(byte, CallFrame)}
+   * @param frame the frame
+   * @return the result
+   */
+  public static byte _byteValue(final Object value, final CallFrame frame) {
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return (byte) p.asLong(frame.windBits);
+    }
+    return ((Number) value).byteValue();
+  }
+
+  /**
+   * This is called from the generated code (see <code>Transform.PRIMITIVE_RESULTS</code>) to return 
+   * a <code>short</code> from the frame's handler without boxing it
+   * 
+   * @param value the result
+   * @param frame the current frame
+   * @return the result's marker
+   */
+  public static Object _return(final short value, final CallFrame frame) {
+    frame.windBits = value;
+    return Primitive.SHORT;
+  }
+
+  /**
+   * This is called from the generated code to get a <code>short</code> result of the frame's handler
+   * 
+   * @param value the handler's result, it's either boxed or a marker from {@link #_return(short, CallFrame)}
+   * @param frame the frame
+   * @return the result
+   */
+  public static short _shortValue(final Object value, final CallFrame frame) {
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return (short) p.asLong(frame.windBits);
+    }
+    return ((Number) value).shortValue();
+  }
+
+  /**
+   * This is called from the generated code (see <code>Transform.PRIMITIVE_RESULTS</code>) to return 
+   * a <code>int</code> from the frame's handler without boxing it
+   * 
+   * @param value the result
+   * @param frame the current frame
+   * @return the result's marker
+   */
+  public static Object _return(final int value, final CallFrame frame) {
+    frame.windBits = value;
+    return Primitive.INT;
+  }
+
+  /**
+   * This is called from the generated code to get a <code>int</code> result of the frame's handler
+   * 
+   * @param value the handler's result, it's either boxed or a marker from {@link #_return(int, CallFrame)}
+   * @param frame the frame
+   * @return the result
+   */
+  public static int _intValue(final Object value, final CallFrame frame) {
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return (int) p.asLong(frame.windBits);
+    }
+    return ((Number) value).intValue();
+  }
+
+  /**
+   * This is called from the generated code (see <code>Transform.PRIMITIVE_RESULTS</code>) to return 
+   * a <code>long</code> from the frame's handler without boxing it
+   * 
+   * @param value the result
+   * @param frame the current frame
+   * @return the result's marker
+   */
+  public static Object _return(final long value, final CallFrame frame) {
+    frame.windBits = value;
+    return Primitive.LONG;
+  }
+
+  /**
+   * This is called from the generated code to get a <code>long</code> result of the frame's handler
+   * 
+   * @param value the handler's result, it's either boxed or a marker from {@link #_return(long, CallFrame)}
+   * @param frame the frame
+   * @return the result
+   */
+  public static long _longValue(final Object value, final CallFrame frame) {
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return p.asLong(frame.windBits);
+    }
+    return ((Number) value).longValue();
+  }
+
+  /**
+   * This is called from the generated code (see <code>Transform.PRIMITIVE_RESULTS</code>) to return 
+   * a <code>float</code> from the frame's handler without boxing it
+   * 
+   * @param value the result
+   * @param frame the current frame
+   * @return the result's marker
+   */
+  public static Object _return(final float value, final CallFrame frame) {
+    frame.windBits = Float.floatToRawIntBits(value);
+    return Primitive.FLOAT;
+  }
+
+  /**
+   * This is called from the generated code to get a <code>float</code> result of the frame's handler
+   * 
+   * @param value the handler's result, it's either boxed or a marker from {@link #_return(float, CallFrame)}
+   * @param frame the frame
+   * @return the result
+   */
+  public static float _floatValue(final Object value, final CallFrame frame) {
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return (float) p.asDouble(frame.windBits);
+    }
+    return ((Number) value).floatValue();
+  }
+
+  /**
+   * This is called from the generated code (see <code>Transform.PRIMITIVE_RESULTS</code>) to return 
+   * a <code>double</code> from the frame's handler without boxing it
+   * 
+   * @param value the result
+   * @param frame the current frame
+   * @return the result's marker
+   */
+  public static Object _return(final double value, final CallFrame frame) {
+    frame.windBits = Double.doubleToRawLongBits(value);
+    return Primitive.DOUBLE;
+  }
+
+  /**
+   * This is called from the generated code to get a <code>double</code> result of the frame's handler
+   * 
+   * @param value the handler's result, it's either boxed or a marker from {@link #_return(double, CallFrame)}
+   * @param frame the frame
+   * @return the result
+   */
+  public static double _doubleValue(final Object value, final CallFrame frame) {
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return p.asDouble(frame.windBits);
+    }
+    return ((Number) value).doubleValue();
+  }
+
+  /**
+   * This is called from the generated code to box a result of the frame's handler if it's a marker 
+   * from <code>_return</code> functions
+   * 
+   * @param value the handler's result
+   * @param frame the frame
+   * @return the boxed result
+   */
+  public static Object _box(final Object value, final CallFrame frame) {
+    if (value instanceof Primitive)
+      return ((Primitive) value).box(frame.windBits);
+    return value;
+  }
+
+  /**
+   * Frames of the generated subclasses (see <code>Transform.TYPED_FRAMES</code>) override this 
+   * to move the variables from the arrays into their own typed fields
+   * 
+   * @return <code>false</code> if the frame doesn't have such fields
+   */
+  protected boolean _packFields() {
+    return false;
+  }
+
+  /**
+   * Frames of the generated subclasses override this to allocate the arrays and to 
+   * move the variables there from their own typed fields
+   */
+  protected void _unpackFields() {
+  }
+
+  /** drops the arrays of the suspended frame if it can store the variables in its own fields */
+  private void pack() {
+    if (packed || !_packFields())
+      return;
+    packed = true;
+    vI = null;
+    vJ = null;
+    vF = null;
+    vD = null;
+    v = null;
+  }
+
+  /**
+   * A suspended frame may keep its variables in the typed fields of a generated subclass, 
+   * this moves them back into the arrays (e.g. to inspect or modify them)
+   * 
+   * @return this frame
+   */
+  public CallFrame unpack() {
+    unpackShared();
+    _own();
+    return this;
+  }
+
+  /* same as `unpack` but the arrays can still be shared with other copies */
+  private void unpackShared() {
+    if (packed) {
+      packed = false;
+      /* the arrays are allocated for this frame */
+      shared = false;
+      _unpackFields();
+    }
+  }
+
+  /**
+   * This is called from the generated code before it stores a variable into the arrays, 
+   * which may be shared with other copies of the frame, so they are copied once here
+   */
+  public void _own() {
+    if (!shared)
+      return;
+    shared = false;
+    if (vI != null)
+      vI = vI.clone();
+    if (vJ != null)
+      vJ = vJ.clone();
+    if (vF != null)
+      vF = vF.clone();
+    if (vD != null)
+      vD = vD.clone();
+    if (v != null)
+      v = v.clone();
+  }
+
+  /* a copy of the frame sharing the arrays with it until either of them stores a variable */
+  private CallFrame share() {
+    try {
+      final var ret = (CallFrame) super.clone();
+      shared = ret.shared = true;
+      return ret;
+    } catch (CloneNotSupportedException e) {
+      throw new RuntimeException("couldn't clone a call frame", e);
+    }
+  }
+
+  /**
+   * Bootstrap method for the generated code creating frames of the generated subclasses,
+   * the subclass is defined on the first call 
+   * 
+   * @param lookup the owner method's class lookup
+   * @param name the call site's name
+   * @param type the call site's type
+   * @param frameClassName the generated subclass name 
+   * @param frameClassBytes the generated subclass bytecode as an ISO-8859-1 string
+   * @return a call site constructing the frame 
+   * @throws Throwable if the class can't be defined
+   */
+  public static CallSite _frameBootstrap(final MethodHandles.Lookup lookup, final String name, final MethodType type,
+      final String frameClassName, final String frameClassBytes) throws Throwable {
+    Class<?> frameClass;
+    synchronized (CallFrame.class) {
+      try {
+        frameClass = Class.forName(frameClassName, false, lookup.lookupClass().getClassLoader());
+      } catch (ClassNotFoundException e) {
+        frameClass = lookup.defineClass(frameClassBytes.getBytes(StandardCharsets.ISO_8859_1));
+      }
+    }
+    return new ConstantCallSite(lookup.findConstructor(frameClass, MethodType.methodType(void.class)).asType(type));
   }
 
   /**
@@ -283,13 +1049,107 @@ public void _unwind(final Unwind e, final int state) {
    * are no more frames. And after this it either throws an exception 
    * or returns value specified in <code>wind</code>.
    * 
+   * The frames are run one by one, not on top of each other, so the Java stack 
+   * doesn't grow with the number of frames. First the wind <code>catch</code> handlers
+   * are run from this frame down to the top one, then each frame continues with its
+   * callee's result up to this one.
+   * 
    * @param <R> resulting value
    * @param wind an exception object for <code>catch</code> handlers
    * @return resulting value of the frame this winds
    * @throws CThrowable if wind is suspended again 
    */
   public <R> R wind(final Wind wind) throws CThrowable {
-    return copy().windSelf(wind);
+    return wind(wind, false);
+  }
+
+  /**
+   * Same as {@link #wind(Wind)} but the frames aren't copied, so it's cheaper, but the continuation
+   * can be resumed only once, e.g. by async code or generators. The frames can be resumed again 
+   * only after they are suspended again, till then resuming them throws 
+   * <code>IllegalStateException</code>.
+   * 
+   * @param <R> resulting value
+   * @param wind an exception object for <code>catch</code> handlers
+   * @return resulting value of the frame this winds
+   * @throws CThrowable if wind is suspended again 
+   */
+  public <R> R windOnce(final Wind wind) throws CThrowable {
+    return wind(wind, true);
+  }
+
+  /* the frame to run, it's either a copy or the frame itself if it's resumed only once */
+  private static CallFrame windFrame(final CallFrame frame, final boolean once) {
+    if (frame.consumed)
+      throw new IllegalStateException(format("%s.%s is already resumed", frame.owner.getName(), frame.methodName));
+    if (!once)
+      return frame.share();
+    frame.consumed = true;
+    return frame;
+  }
+
+  @SuppressWarnings("unchecked")
+  private <R> R wind(final Wind wind, final boolean once) throws CThrowable {
+    CallFrame passed = null;
+    Object value = null;
+    long bits = 0;
+    Throwable error = null;
+    /* # the handlers, one of them may stop winding the next frames */
+    for (var frame = windFrame(this, once);; frame = windFrame(frame.next, once)) {
+      frame.unpackShared();
+      frame.token = wind;
+      if (!frame.windless) {
+        try {
+          if (!frame.windHandlers()) {
+            value = frame.windValue;
+            bits = frame.windBits;
+            frame.windValue = null;
+            break;
+          }
+        } catch (final Throwable e) {
+          error = e;
+          break;
+        }
+      }
+      frame.windCaller = passed;
+      passed = frame;
+      if (frame.next == null) {
+        if (wind.primitive != null && wind.tvalue == null) {
+          value = wind.primitive;
+          bits = wind.bits;
+          break;
+        }
+        try {
+          value = wind.result();
+        } catch (final Throwable e) {
+          error = e;
+        }
+        break;
+      }
+    }
+    /* # the results */
+    while (passed != null) {
+      final var frame = passed;
+      passed = frame.windCaller;
+      frame.windCaller = null;
+      frame.windStage = 5;
+      frame.windValue = value;
+      frame.windBits = bits;
+      frame.windError = error;
+      try {
+        value = _result(frame.handler.run(frame, frame.vI, frame.vJ, frame.vF, frame.vD, frame.v));
+        bits = frame.windBits;
+        error = null;
+      } catch (final Throwable e) {
+        value = null;
+        error = e;
+      }
+    }
+    if (error != null)
+      throw CallFrame.<CThrowable>rethrow(error);
+    if (value instanceof Primitive)
+      return (R) ((Primitive) value).box(bits);
+    return (R) value;
   }
 
   /**
@@ -312,23 +1172,41 @@ public CallFrame copy() {
    * @throws Throwable if the call throws an exception
    */
   public Object _refResult() throws Throwable {
+    final var value = windResult();
+    if (value instanceof Primitive)
+      return ((Primitive) value).box(windBits);
+    return value;
+  }
+
+  /* the callee's result, a primitive one may be a marker */
+  private Object windResult() throws Throwable {
     if (windStage < 2)
       throw token;
-    if (next == null)
-      return token.result();
-    try {
-      final var ret = next.wind(token);
-      return ret;
-    } catch (Unwind e) {
+    if (windStage != 5) {
+      /* the handlers are done, the callees are wound after this */
+      windStage = 4;
+      throw token;
+    }
+    final var value = windValue;
+    final var error = windError;
+    windValue = null;
+    windError = null;
+    if (error == null)
+      return value;
+    if (error instanceof Unwind && !((Unwind) error).escape) {
+      final var e = (Unwind) error;
       this.next = e.head;
       e.head = this;
-      throw e;
+      consumed = false;
+      pack();
     }
+    throw error;
   }
 
   @Override
   protected Object clone() throws CloneNotSupportedException {
     final var ret = (CallFrame) super.clone();
+    ret.shared = false;
     if (vI != null)
       ret.vI = vI.clone();
     if (vJ != null)
@@ -366,6 +1244,71 @@ public void _skipWind(final Throwable e) throws Throwable {
       throw e;
   }
 
+  /**
+   * same as {@link #_skipException(Throwable)} but for the code running without a frame
+   *
+   * @param e the exception to skip if needed
+   * @throws Throwable if the <code>catch</code> handler must be skipped
+   */
+  public static void _fastSkipException(final Throwable e) throws Throwable {
+    if (e instanceof CThrowable)
+      throw e;
+  }
+
+  /**
+   * same as {@link #_skipWind(Throwable)} but for the code running without a frame
+   *
+   * @param e the exception to skip if needed
+   * @throws Throwable if the <code>catch</code> handler must be skipped
+   */
+  public static void _fastSkipWind(final Throwable e) throws Throwable {
+    if (e instanceof Wind)
+      throw e;
+  }
+
+  /**
+   * This function is called from the generated code to check if there are any active 
+   * methods able to catch {@link Unwind} on the current thread's stack
+   *
+   * @return the number of such methods, if it's 0 untouched method bodies are used
+   */
+  public static int _captureDepth() {
+    return captureDepth.get()[0];
+  }
+
+  /**
+   * This function is called from the generated code on entering a method able to catch {@link Unwind}
+   */
+  public static void _enterCapture() {
+    ++captureDepth.get()[0];
+  }
+
+  /**
+   * This function is called from the generated code on exiting a method able to catch {@link Unwind}
+   */
+  public static void _exitCapture() {
+    --captureDepth.get()[0];
+  }
+
+  /**
+   * This function is called from the generated code when an {@link Unwind} passes a call which
+   * isn't instrumented because the profile didn't have it, so its frame can't be captured
+   *
+   * @param e the exception object
+   * @param owner the class of the method calling it
+   * @param site the call's description for the diagnostic
+   * @return the exception to throw instead, or <code>e</code> itself if it only escapes
+   */
+  public static Throwable _missedCapture(final Unwind e, final Class<?> owner, final String site) {
+    if (e.escape)
+      return e;
+    final var listener = missedCaptureListener;
+    if (listener != null)
+      listener.accept(owner);
+    return new IllegalStateException(format("%s isn't instrumented by the profile, its frame can't be captured",
+        site), e);
+  }
+
   /**
    * This function is called from the generated code, running {@link Wind} handlers in reverse order
    * 
@@ -382,10 +1325,64 @@ public void _checkException(final Throwable e) throws Throwable {
         if (windIter == 0)
           return;
         throw e;
+      } else if (windStage == 3) {
+        if (windDirect) {
+          windDirect = false;
+          return;
+        }
+        throw e;
+      } else if (windStage == 4) {
+        throw e;
       }
     }
   }
 
+  /**
+   * This function is called from the generated code on resume if the instrumenter knows the wind 
+   * <code>catch</code> handlers of the suspended call, so they are invoked in a single pass, 
+   * outer first, instead of running the frame's handler for each of them
+   * 
+   * @param count the number of the handlers
+   * @return the index of the handler to jump into or -1 to continue with the call's result
+   */
+  public int _windDispatch(final int count) {
+    if (windStage == 0) {
+      windStage = 3;
+      windCount = count;
+      windIter = 0;
+    } else if (windStage != 3) {
+      return -1;
+    }
+    if (windIter < windCount) {
+      windDirect = true;
+      return windIter++;
+    }
+    windStage = 2;
+    return -1;
+  }
+
+  /**
+   * This function is called from the generated code to pass the winding exception object
+   * into a <code>catch</code> handler selected by {@link #_windDispatch(int)}
+   * 
+   * @return the exception object
+   */
+  public Wind _windToken() {
+    return token;
+  }
+
+  /**
+   * This function is called from the generated code if a <code>catch</code> handler selected by
+   * {@link #_windDispatch(int)} rethrows the exception object, so the next one is invoked
+   * 
+   * @param e the exception object
+   * @throws Wind if it's another exception or the handlers aren't invoked directly
+   */
+  public void _rewind(final Wind e) throws Wind {
+    if (e != token || windStage != 3)
+      throw e;
+  }
+
   /** 
    * This function is called from generated code to get <code>byte</code> result 
    * 
@@ -393,7 +1390,12 @@ public void _checkException(final Throwable e) throws Throwable {
    * @throws Throwable if the call throws an exception
    */
   public byte _byteResult() throws Throwable {
-    return (byte) _refResult();
+    final var value = windResult();
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return (byte) p.asLong(windBits);
+    }
+    return (byte) value;
   }
 
   /** 
@@ -403,7 +1405,12 @@ public byte _byteResult() throws Throwable {
    * @throws Throwable if the call throws an exception
    */
   public short _shortResult() throws Throwable {
-    return (short) _refResult();
+    final var value = windResult();
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return (short) p.asLong(windBits);
+    }
+    return (short) value;
   }
 
   /** 
@@ -413,7 +1420,12 @@ public short _shortResult() throws Throwable {
    * @throws Throwable if the call throws an exception
    */
   public int _intResult() throws Throwable {
-    return (int) _refResult();
+    final var value = windResult();
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return (int) p.asLong(windBits);
+    }
+    return (int) value;
   }
 
   /** 
@@ -423,7 +1435,12 @@ public int _intResult() throws Throwable {
    * @throws Throwable if the call throws an exception
    */
   public long _longResult() throws Throwable {
-    return (long) _refResult();
+    final var value = windResult();
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return p.asLong(windBits);
+    }
+    return (long) value;
   }
 
   /** 
@@ -433,7 +1450,12 @@ public long _longResult() throws Throwable {
    * @throws Throwable if the call throws an exception
    */
   public float _floatResult() throws Throwable {
-    return (float) _refResult();
+    final var value = windResult();
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return (float) p.asDouble(windBits);
+    }
+    return (float) value;
   }
 
   /** 
@@ -443,7 +1465,12 @@ public float _floatResult() throws Throwable {
    * @throws Throwable if the call throws an exception
    */
   public double _doubleResult() throws Throwable {
-    return (double) _refResult();
+    final var value = windResult();
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return p.asDouble(windBits);
+    }
+    return (double) value;
   }
 
   /** 
@@ -453,7 +1480,12 @@ public double _doubleResult() throws Throwable {
    * @throws Throwable if the call throws an exception
    */
   public boolean _booleanResult() throws Throwable {
-    return (boolean) _refResult();
+    final var value = windResult();
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return p.asLong(windBits) != 0;
+    }
+    return (boolean) value;
   }
 
   /** 
@@ -463,7 +1495,12 @@ public boolean _booleanResult() throws Throwable {
    * @throws Throwable if the call throws an exception
    */
   public char _charResult() throws Throwable {
-    return (char) _refResult();
+    final var value = windResult();
+    if (value instanceof Primitive) {
+      final var p = (Primitive) value;
+      return (char) p.asLong(windBits);
+    }
+    return (char) value;
   }
 
   /** 
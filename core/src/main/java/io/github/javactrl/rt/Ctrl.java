@@ -4,8 +4,11 @@
 import java.lang.annotation.Target;
 import java.lang.annotation.ElementType;
 
-/** Marks classes for instrumentation */
+/**
+ * Marks classes for instrumentation, or only some methods if their class isn't marked, so the
+ * other methods throwing {@link CThrowable} keep their original bodies
+ */
 @Documented
-@Target({ElementType.TYPE, ElementType.FIELD})
+@Target({ElementType.TYPE, ElementType.FIELD, ElementType.METHOD})
 public @interface Ctrl {
 }
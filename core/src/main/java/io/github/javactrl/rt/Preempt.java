@@ -0,0 +1,56 @@
+package io.github.javactrl.rt;
+
+/**
+ * This is thrown from the loops of the methods instrumented with yield points (see
+ * <code>yield</code> agent option) when the current thread's budget runs out.
+ *
+ * A scheduler sets the budget before resuming a continuation, catches this exception, and puts
+ * its {@link #head} back into its queue, so the next continuation can run. Resuming it with any
+ * value continues the interrupted loop. The budget is unlimited by default, so the loops are never
+ * preempted unless something calls {@link #budget(long)}.
+ */
+public class Preempt extends Unwind {
+
+  /* the current thread's loop iterations left before preempting */
+  private static final ThreadLocal<long[]> budget = ThreadLocal.withInitial(() -> new long[] { Long.MAX_VALUE });
+
+  /** constructor with {@literal null} payload */
+  public Preempt() {
+    super(null);
+  }
+
+  /**
+   * Sets how many loop iterations the current thread runs before the next preemption
+   *
+   * @param iterations the loops' back-edges number, {@link Long#MAX_VALUE} disables preempting
+   */
+  public static void budget(final long iterations) {
+    budget.get()[0] = iterations;
+  }
+
+  /**
+   * The current thread's budget left
+   *
+   * @return the loops' back-edges number before the next preemption
+   */
+  public static long budget() {
+    return budget.get()[0];
+  }
+
+  /**
+   * This is called by the instrumented code after each <code>iterations</code> back-edges of a
+   * loop, it only decrements the budget until it runs out, and then throws a new {@link Preempt}
+   * with the budget set to unlimited, so the code running after the catching side isn't preempted
+   * again until the scheduler sets a budget for the next slice.
+   *
+   * @param iterations the back-edges number since the previous call in the same method's activation
+   * @throws CThrowable when the budget runs out
+   */
+  public static void brkTick(final int iterations) throws CThrowable {
+    final var left = budget.get();
+    if ((left[0] -= iterations) > 0)
+      return;
+    left[0] = Long.MAX_VALUE;
+    throw new Preempt();
+  }
+}
@@ -12,6 +12,15 @@ public class Unwind extends CThrowable {
   /** last current captured call frame */
   public CallFrame head;
 
+  /** 
+   * the exception object only jumps out, the frames it passes don't save their variables 
+   * and aren't linked into {@link #head}, so it can't be resumed (see {@link #escape(Object)})
+   */
+  public boolean escape;
+
+  /** it's returned by the unwound methods instead of throwing (see {@link CallFrame#_suspended(Unwind)}) */
+  transient boolean returned;
+
   /** constructor with {@literal null} payload */
   public Unwind() {
     this(null);
@@ -60,6 +69,23 @@ public static <R, T> R brkValue(T payload) throws CThrowable {
     throw new Unwind(payload);
   }
 
+  /** 
+   * Same as {@link #brkValue(Object)} but the exception object only escapes, so it doesn't cost 
+   * more than a usual exception. This is for aborting, e.g. cancellation, where the captured 
+   * frames would be thrown away anyway.
+   * 
+   * @param <R> never returns
+   * @param <T> type of payload value to be used somehow by some <code>catch</code> handler
+   * @param payload value to be used somehow by some <code>catch</code> handler
+   * @throws CThrowable always when called
+   * @return never returns
+   */
+  public static <R, T> R escape(T payload) throws CThrowable {
+    final var u = new Unwind(payload);
+    u.escape = true;
+    throw u;
+  }
+
   /** 
    * This is just a function to override if needed, it can be used to convey some data back 
    * to the throw point without winding. It's responsibility of the <code>catch</code>
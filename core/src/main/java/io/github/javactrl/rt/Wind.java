@@ -15,9 +15,14 @@
 public class Wind extends CThrowable {
   /** 
    * the value to be returned by the suspended function on the stack's top 
-   * if {@link tvalue} is {@literal null}
+   * if {@link tvalue} is {@literal null}, it's {@literal null} for primitive values
+   * (see {@link #createIntReturn(int)})
    */
   public Object value;
+  /** the type of the primitive value or {@literal null} if it's {@link value} */
+  CallFrame.Primitive primitive;
+  /** the primitive value */
+  long bits;
   /**
    * an exception to throw by the suspended function on the stack's top, 
    * if it isn't {@literal null}
@@ -47,6 +52,54 @@ public static <T> Wind createReturn(T value) {
     return new Wind(value, null);
   }
 
+  /** 
+   * Same as {@link #createReturn(Object)} but the value isn't boxed, if the suspended function 
+   * returns a primitive value it doesn't box it either
+   * 
+   * @param value value the suspended function will return on successful winding
+   * @return exception instance
+   */
+  public static Wind createIntReturn(int value) {
+    return createPrimitiveReturn(CallFrame.Primitive.INT, value);
+  }
+
+  /** 
+   * Same as {@link #createIntReturn(int)} but for <code>long</code>
+   * 
+   * @param value value the suspended function will return on successful winding
+   * @return exception instance
+   */
+  public static Wind createLongReturn(long value) {
+    return createPrimitiveReturn(CallFrame.Primitive.LONG, value);
+  }
+
+  /** 
+   * Same as {@link #createIntReturn(int)} but for <code>float</code>
+   * 
+   * @param value value the suspended function will return on successful winding
+   * @return exception instance
+   */
+  public static Wind createFloatReturn(float value) {
+    return createPrimitiveReturn(CallFrame.Primitive.FLOAT, Float.floatToRawIntBits(value));
+  }
+
+  /** 
+   * Same as {@link #createIntReturn(int)} but for <code>double</code>
+   * 
+   * @param value value the suspended function will return on successful winding
+   * @return exception instance
+   */
+  public static Wind createDoubleReturn(double value) {
+    return createPrimitiveReturn(CallFrame.Primitive.DOUBLE, Double.doubleToRawLongBits(value));
+  }
+
+  private static Wind createPrimitiveReturn(final CallFrame.Primitive primitive, final long bits) {
+    final var ret = new Wind(null, null);
+    ret.primitive = primitive;
+    ret.bits = bits;
+    return ret;
+  }
+
   /** 
    * This creates a token to make the suspended function on the stack's top return 
    * the <code>value</code>
@@ -69,6 +122,8 @@ public static Wind createThrow(Throwable value) {
   public <R> R result() throws Throwable {
     if (tvalue != null)
       throw tvalue;
+    if (primitive != null)
+      return (R) primitive.box(bits);
     return (R)value;
   }
 
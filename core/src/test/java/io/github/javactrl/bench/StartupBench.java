@@ -0,0 +1,130 @@
+package io.github.javactrl.bench;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+
+import static org.objectweb.asm.Opcodes.*;
+import static java.lang.String.format;
+
+/**
+ * Loading time of a big generated jar where only a few classes are instrumented, it's run by
+ * `benchStartup` gradle task with and without `noprescan` agent option
+ */
+public class StartupBench {
+
+  /* each `CTRL_EACH`-th class is annotated with `Ctrl` and has a suspendable method */
+  private static final int CTRL_EACH = 100;
+
+  private static byte[] generateClass(final int id, final int count) {
+    final var name = format("gen/p%d/C%d", id % 64, id);
+    final var cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+    cw.visit(V11, ACC_PUBLIC, name, null, "java/lang/Object", null);
+    final var ctrl = id % CTRL_EACH == 0;
+    if (ctrl)
+      cw.visitAnnotation("Lio/github/javactrl/rt/Ctrl;", true).visitEnd();
+    cw.visitField(ACC_PRIVATE, "value", "I", null, null).visitEnd();
+    final var init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+    init.visitCode();
+    init.visitVarInsn(ALOAD, 0);
+    init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+    init.visitInsn(RETURN);
+    init.visitMaxs(0, 0);
+    init.visitEnd();
+    for (var i = 0; i < 8; ++i) {
+      final var method = cw.visitMethod(ACC_PUBLIC, format("m%d", i), "(I)I", null, null);
+      method.visitCode();
+      final var loop = new Label();
+      final var exit = new Label();
+      method.visitInsn(ICONST_0);
+      method.visitVarInsn(ISTORE, 2);
+      method.visitLabel(loop);
+      method.visitVarInsn(ILOAD, 2);
+      method.visitVarInsn(ILOAD, 1);
+      method.visitJumpInsn(IF_ICMPGE, exit);
+      method.visitVarInsn(ALOAD, 0);
+      method.visitInsn(DUP);
+      method.visitFieldInsn(GETFIELD, name, "value", "I");
+      method.visitLdcInsn(format("constant %d of %d", i, id));
+      method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "length", "()I", false);
+      method.visitInsn(IADD);
+      method.visitFieldInsn(PUTFIELD, name, "value", "I");
+      method.visitIincInsn(2, 1);
+      method.visitJumpInsn(GOTO, loop);
+      method.visitLabel(exit);
+      method.visitTypeInsn(NEW, format("gen/p%d/C%d", (id + 1) % count % 64, (id + 1) % count));
+      method.visitInsn(POP);
+      method.visitVarInsn(ALOAD, 0);
+      method.visitFieldInsn(GETFIELD, name, "value", "I");
+      method.visitInsn(IRETURN);
+      method.visitMaxs(0, 0);
+      method.visitEnd();
+    }
+    if (ctrl) {
+      final var method = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "ask", "(I)I", null,
+          new String[] { "io/github/javactrl/rt/CThrowable" });
+      method.visitCode();
+      method.visitVarInsn(ILOAD, 0);
+      method.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;", false);
+      method.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/Unwind", "brkValue",
+          "(Ljava/lang/Object;)Ljava/lang/Object;", false);
+      method.visitTypeInsn(CHECKCAST, "java/lang/Integer");
+      method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I", false);
+      method.visitInsn(ICONST_1);
+      method.visitInsn(IADD);
+      method.visitInsn(IRETURN);
+      method.visitMaxs(0, 0);
+      method.visitEnd();
+    }
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  private static Path generateJar(final int count) throws IOException {
+    final var jar = Files.createTempFile("javactrl-startup-bench", ".jar");
+    jar.toFile().deleteOnExit();
+    try (final var out = new JarOutputStream(Files.newOutputStream(jar))) {
+      for (var i = 0; i < count; ++i) {
+        out.putNextEntry(new JarEntry(format("gen/p%d/C%d.class", i % 64, i)));
+        out.write(generateClass(i, count));
+        out.closeEntry();
+      }
+    }
+    return jar;
+  }
+
+  /* loads (without initializing) all the classes with a new class loader */
+  private static long measure(final Path jar, final int count) throws IOException, ClassNotFoundException {
+    final var start = System.nanoTime();
+    try (final var loader = new URLClassLoader(new URL[] { jar.toUri().toURL() }, StartupBench.class.getClassLoader())) {
+      for (var i = 0; i < count; ++i)
+        Class.forName(format("gen.p%d.C%d", i % 64, i), false, loader);
+    }
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Entry point
+   *
+   * @param args optional number of classes
+   * @throws Exception on generating or loading errors
+   */
+  public static void main(final String[] args) throws Exception {
+    final var count = args.length == 0 ? 20_000 : Integer.parseInt(args[0]);
+    System.out.println(format("prescan mode: %s", System.getProperty("bench.mode", "default")));
+    final var jar = generateJar(count);
+    final var first = measure(jar, count);
+    var best = Long.MAX_VALUE;
+    for (var i = 0; i < 5; ++i)
+      best = Math.min(best, measure(jar, count));
+    System.out.println(format("%d classes (%d instrumented): first load %d ms, best reload %d ms (%d ns/class)",
+        count, (count + CTRL_EACH - 1) / CTRL_EACH, first / 1_000_000, best / 1_000_000, best / count));
+  }
+}
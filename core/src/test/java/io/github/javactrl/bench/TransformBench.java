@@ -0,0 +1,144 @@
+package io.github.javactrl.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import io.github.javactrl.instrument.Main;
+import io.github.javactrl.instrument.Transform;
+
+import static org.objectweb.asm.Opcodes.*;
+import static java.lang.String.format;
+
+/**
+ * Instrumentation throughput on a corpus of large generated classes with hundreds of suspending
+ * calls per method, it's run by `benchTransform` gradle task, the arguments are the agent's options
+ */
+public class TransformBench {
+
+  private static final int CLASSES = 40;
+  private static final int METHODS = 4;
+  /* suspending calls in each method */
+  private static final int CALLS = 120;
+  /* int locals live across the calls */
+  private static final int LOCALS = 24;
+
+  private static byte[] generateClass(final int id) {
+    final var name = format("gen/Large%d", id);
+    final var cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+    cw.visit(V11, ACC_PUBLIC, name, null, "java/lang/Object", null);
+    cw.visitAnnotation("Lio/github/javactrl/rt/Ctrl;", false).visitEnd();
+    final var init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+    init.visitCode();
+    init.visitVarInsn(ALOAD, 0);
+    init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+    init.visitInsn(RETURN);
+    init.visitMaxs(0, 0);
+    init.visitEnd();
+    final var exceptions = new String[] { "io/github/javactrl/rt/CThrowable" };
+    final var step = cw.visitMethod(ACC_PUBLIC, "step", "(I)I", null, exceptions);
+    step.visitCode();
+    step.visitVarInsn(ILOAD, 1);
+    step.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;", false);
+    step.visitMethodInsn(INVOKESTATIC, "io/github/javactrl/rt/Unwind", "brkValue",
+        "(Ljava/lang/Object;)Ljava/lang/Object;", false);
+    step.visitTypeInsn(CHECKCAST, "java/lang/Integer");
+    step.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I", false);
+    step.visitInsn(IRETURN);
+    step.visitMaxs(0, 0);
+    step.visitEnd();
+    for (var i = 0; i < METHODS; ++i)
+      generateMethod(cw.visitMethod(ACC_PUBLIC, format("m%d", i), "(IJLjava/lang/Object;)I", null, exceptions),
+          name, i);
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  /* `v[k] = v[k + 1] + step(v[k])` for each call, with a loop and long and reference locals */
+  private static void generateMethod(final MethodVisitor mv, final String owner, final int seed) {
+    /* 0 - this, 1 - int, 2 - long, 4 - Object, 5.. - ints */
+    final var first = 5;
+    mv.visitCode();
+    for (var i = 0; i < LOCALS; ++i) {
+      mv.visitVarInsn(ILOAD, 1);
+      mv.visitLdcInsn(i + seed);
+      mv.visitInsn(IADD);
+      mv.visitVarInsn(ISTORE, first + i);
+    }
+    final var loop = new Label();
+    final var exit = new Label();
+    mv.visitLabel(loop);
+    mv.visitVarInsn(LLOAD, 2);
+    mv.visitInsn(LCONST_0);
+    mv.visitInsn(LCMP);
+    mv.visitJumpInsn(IFLE, exit);
+    for (var k = 0; k < CALLS; ++k) {
+      final var target = first + k % LOCALS;
+      mv.visitVarInsn(ILOAD, first + (k + 1) % LOCALS);
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitVarInsn(ILOAD, target);
+      mv.visitMethodInsn(INVOKEVIRTUAL, owner, "step", "(I)I", false);
+      mv.visitInsn(IADD);
+      mv.visitVarInsn(ISTORE, target);
+      if (k % 50 == 0) {
+        mv.visitVarInsn(ALOAD, 4);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "toString", "()Ljava/lang/String;", false);
+        mv.visitVarInsn(ASTORE, 4);
+      }
+    }
+    mv.visitVarInsn(LLOAD, 2);
+    mv.visitInsn(LCONST_1);
+    mv.visitInsn(LSUB);
+    mv.visitVarInsn(LSTORE, 2);
+    mv.visitJumpInsn(GOTO, loop);
+    mv.visitLabel(exit);
+    mv.visitVarInsn(ALOAD, 4);
+    mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "hashCode", "()I", false);
+    for (var i = 0; i < LOCALS; ++i) {
+      mv.visitVarInsn(ILOAD, first + i);
+      mv.visitInsn(IADD);
+    }
+    mv.visitInsn(IRETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+  }
+
+  private static long measure(final List<byte[]> corpus) {
+    final var start = System.nanoTime();
+    for (final var i : corpus) {
+      if (Transform.instrumentClass(i, Main.defaultCallPredicate) == null)
+        throw new IllegalStateException("a class isn't instrumented");
+    }
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Entry point
+   *
+   * @param args the agent's options
+   * @throws Exception on instrumentation errors
+   */
+  public static void main(final String[] args) throws Exception {
+    Main.configure(Arrays.asList(args));
+    System.out.println(format("transform mode: %s", args.length == 0 ? "default" : String.join(",", args)));
+    final var corpus = new ArrayList<byte[]>();
+    var size = 0L;
+    for (var i = 0; i < CLASSES; ++i) {
+      final var data = generateClass(i);
+      size += data.length;
+      corpus.add(data);
+    }
+    /* warm-up, it's long enough for the JIT on a single core */
+    for (var i = 0; i < 15; ++i)
+      measure(corpus);
+    var best = Long.MAX_VALUE;
+    for (var i = 0; i < 10; ++i)
+      best = Math.min(best, measure(corpus));
+    System.out.println(format("%d classes (%d KB, %d suspending calls each): %.1f classes/s, %.2f ms/class",
+        CLASSES, size / 1024, METHODS * CALLS, CLASSES * 1e9 / best, best / 1e6 / CLASSES));
+  }
+}
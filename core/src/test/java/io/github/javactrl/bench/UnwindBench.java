@@ -0,0 +1,79 @@
+package io.github.javactrl.bench;
+
+import io.github.javactrl.rt.CThrowable;
+import io.github.javactrl.rt.CallFrame;
+import io.github.javactrl.rt.Ctrl;
+import io.github.javactrl.rt.Unwind;
+import static java.lang.String.format;
+
+/**
+ * Capture and resume latency of deep recursions, it's run by `benchUnwind` gradle task with and
+ * without `sentinel` agent option
+ */
+@Ctrl
+public class UnwindBench {
+
+  static int countDown(final int depth) throws CThrowable {
+    if (depth == 0)
+      return Unwind.<Integer, Integer>brkValue(depth);
+    return countDown(depth - 1) + 1;
+  }
+
+  static CallFrame capture(final int depth) throws CThrowable {
+    try {
+      countDown(depth);
+      return null;
+    } catch (final Unwind u) {
+      return u.head.next;
+    }
+  }
+
+  static long measure(final int depth, final int iterations) throws CThrowable {
+    var result = 0L;
+    final var start = System.nanoTime();
+    for (var i = 0; i < iterations; ++i) {
+      final var frame = capture(depth);
+      result += frame.state;
+    }
+    final var time = System.nanoTime() - start;
+    if (result == 42)
+      System.out.println();
+    return time / iterations;
+  }
+
+  static long measureResume(final CallFrame frame, final int iterations) {
+    var result = 0L;
+    final var start = System.nanoTime();
+    for (var i = 0; i < iterations; ++i) {
+      final int resumed = frame.resumeTop(i);
+      result += resumed;
+    }
+    final var time = System.nanoTime() - start;
+    if (result == 42)
+      System.out.println();
+    return time / iterations;
+  }
+
+  /**
+   * Entry point
+   *
+   * @param args optional depths list
+   * @throws CThrowable never
+   */
+  public static void main(final String[] args) throws CThrowable {
+    final var depths = args.length == 0 ? new String[] { "10", "100", "1000" } : args;
+    System.out.println(format("unwinding mode: %s", System.getProperty("bench.mode", "default")));
+    for (final var i : depths) {
+      final var depth = Integer.parseInt(i);
+      final var iterations = Math.max(100, 2_000_000 / depth);
+      final var frame = capture(depth);
+      for (var j = 0; j < 5; ++j) {
+        measure(depth, iterations);
+        measureResume(frame, iterations);
+      }
+      final int resumed = frame.resumeTop(0);
+      System.out.println(format("depth %5d: %8d ns/capture, %8d ns/resume (resumed: %d)", depth,
+          measure(depth, iterations), measureResume(frame, iterations), resumed));
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package io.github.javactrl.coreTest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipFile;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static io.github.javactrl.coreTest.ClassFiles.classBytes;
+
+import io.github.javactrl.instrument.BatchTransform;
+import io.github.javactrl.instrument.Main;
+import io.github.javactrl.instrument.Transform;
+
+class BatchTransformTest {
+
+  private static final String CLASS = "io/github/javactrl/coreTest/UnwindTest.class";
+  private static final String PLAIN_CLASS = "io/github/javactrl/coreTest/BatchTransformTest.class";
+  private static final String RESOURCE = "META-INF/notes.txt";
+
+  static byte[] resource() {
+    return "unchanged resource ".repeat(100).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void instrumentsJar(@TempDir final Path dir) throws IOException {
+    final var input = dir.resolve("in.jar");
+    final var output = dir.resolve("out/out.jar");
+    try (final var out = new JarOutputStream(Files.newOutputStream(input))) {
+      out.setComment("the input's comment");
+      out.putNextEntry(new JarEntry(CLASS));
+      out.write(classBytes(UnwindTest.class));
+      out.putNextEntry(new JarEntry(PLAIN_CLASS));
+      out.write(classBytes(BatchTransformTest.class));
+      out.putNextEntry(new JarEntry(RESOURCE));
+      out.write(resource());
+    }
+    final var batch = new BatchTransform(Main.defaultCallPredicate);
+    batch.instrument(input, output);
+    assertFalse(batch.upToDate());
+    assertEquals(1, batch.instrumented());
+    assertEquals(2, batch.copied());
+    try (final var in = new ZipFile(input.toFile()); final var out = new ZipFile(output.toFile())) {
+      assertArrayEquals(Transform.instrumentClass(classBytes(UnwindTest.class), Main.defaultCallPredicate),
+          out.getInputStream(out.getEntry(CLASS)).readAllBytes());
+      assertArrayEquals(classBytes(BatchTransformTest.class), out.getInputStream(out.getEntry(PLAIN_CLASS)).readAllBytes());
+      assertArrayEquals(resource(), out.getInputStream(out.getEntry(RESOURCE)).readAllBytes());
+      /* copied without decompressing */
+      assertEquals(in.getEntry(RESOURCE).getCompressedSize(), out.getEntry(RESOURCE).getCompressedSize());
+      assertEquals("the input's comment", out.getComment());
+    }
+    final var modified = Files.getLastModifiedTime(output);
+    final var again = new BatchTransform(Main.defaultCallPredicate);
+    again.instrument(input, output);
+    assertTrue(again.upToDate());
+    assertEquals(0, again.instrumented());
+    assertEquals(modified, Files.getLastModifiedTime(output));
+  }
+
+  @Test
+  void stripsSignatures(@TempDir final Path dir) throws IOException {
+    final var input = dir.resolve("in.jar");
+    final var output = dir.resolve("out.jar");
+    try (final var out = new JarOutputStream(Files.newOutputStream(input))) {
+      for (final var i : List.of("META-INF/SIGNER.SF", "META-INF/SIGNER.RSA", RESOURCE)) {
+        out.putNextEntry(new JarEntry(i));
+        out.write(resource());
+      }
+      out.putNextEntry(new JarEntry(CLASS));
+      out.write(classBytes(UnwindTest.class));
+    }
+    new BatchTransform(Main.defaultCallPredicate).instrument(input, output);
+    try (final var out = new ZipFile(output.toFile())) {
+      assertNull(out.getEntry("META-INF/SIGNER.SF"));
+      assertNull(out.getEntry("META-INF/SIGNER.RSA"));
+      assertNotNull(out.getEntry(RESOURCE));
+    }
+  }
+
+  @Test
+  void instrumentsDirectory(@TempDir final Path dir) throws IOException {
+    final var input = dir.resolve("in");
+    final var output = dir.resolve("out");
+    Files.createDirectories(input.resolve(CLASS).getParent());
+    Files.createDirectories(input.resolve(RESOURCE).getParent());
+    Files.write(input.resolve(CLASS), classBytes(UnwindTest.class));
+    Files.write(input.resolve(PLAIN_CLASS), classBytes(BatchTransformTest.class));
+    Files.write(input.resolve(RESOURCE), resource());
+    final var batch = new BatchTransform(Main.defaultCallPredicate);
+    batch.instrument(input, output);
+    assertEquals(1, batch.instrumented());
+    assertEquals(2, batch.copied());
+    assertArrayEquals(Transform.instrumentClass(classBytes(UnwindTest.class), Main.defaultCallPredicate),
+        Files.readAllBytes(output.resolve(CLASS)));
+    assertArrayEquals(resource(), Files.readAllBytes(output.resolve(RESOURCE)));
+    final var again = new BatchTransform(Main.defaultCallPredicate);
+    again.instrument(input, output);
+    assertTrue(again.upToDate());
+    /* any change makes it run again */
+    Files.write(input.resolve(RESOURCE), "changed".getBytes(StandardCharsets.UTF_8));
+    final var changed = new BatchTransform(Main.defaultCallPredicate);
+    changed.instrument(input, output);
+    assertFalse(changed.upToDate());
+    assertEquals("changed", Files.readString(output.resolve(RESOURCE)));
+    /* the deleted class's output is removed */
+    Files.delete(input.resolve(PLAIN_CLASS));
+    new BatchTransform(Main.defaultCallPredicate).instrument(input, output);
+    assertFalse(Files.exists(output.resolve(PLAIN_CLASS)));
+    assertTrue(Files.exists(output.resolve(CLASS)));
+  }
+}
@@ -0,0 +1,86 @@
+package io.github.javactrl.coreTest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static io.github.javactrl.coreTest.ClassFiles.classBytes;
+
+import io.github.javactrl.instrument.BytecodeCache;
+import io.github.javactrl.instrument.Main;
+import io.github.javactrl.instrument.PrefixRules;
+
+class BytecodeCacheTest {
+
+  @Test
+  void reusesEntries(@TempDir final Path dir) throws IOException {
+    final var original = classBytes(UnwindTest.class);
+    final var cache = new BytecodeCache(dir);
+    final var instrumented = cache.instrumentClass(original, Main.defaultCallPredicate);
+    assertNotNull(instrumented);
+    assertArrayEquals(instrumented, cache.instrumentClass(original, Main.defaultCallPredicate));
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+    try (final var entries = Files.list(dir)) {
+      assertEquals(1, entries.count());
+    }
+    /* the next JVM start */
+    final var restarted = new BytecodeCache(dir);
+    assertArrayEquals(instrumented, restarted.instrumentClass(original, Main.defaultCallPredicate));
+    assertEquals(1, restarted.hits());
+    assertEquals(0, restarted.misses());
+  }
+
+  @Test
+  void checksCallPredicate(@TempDir final Path dir) throws IOException {
+    final var original = classBytes(UnwindTest.class);
+    final var cache = new BytecodeCache(dir);
+    cache.instrumentClass(original, Main.defaultCallPredicate);
+    /* the same class, but the calls it makes don't suspend anymore */
+    cache.instrumentClass(original, (owner, name) -> false);
+    assertEquals(0, cache.hits());
+    assertEquals(2, cache.misses());
+  }
+
+  @Test
+  void evictsEntries(@TempDir final Path dir) throws IOException {
+    final var cache = new BytecodeCache(dir);
+    cache.instrumentClass(classBytes(UnwindTest.class), Main.defaultCallPredicate);
+    cache.instrumentClass(classBytes(WindTest.class), Main.defaultCallPredicate);
+    final List<Path> entries;
+    try (final var list = Files.list(dir)) {
+      entries = list.sorted().collect(Collectors.toList());
+    }
+    assertEquals(2, entries.size());
+    Files.setLastModifiedTime(entries.get(0), FileTime.from(Instant.now().minus(Duration.ofDays(2))));
+    /* unused for too long */
+    new BytecodeCache(dir, Long.MAX_VALUE, Duration.ofDays(1));
+    assertFalse(Files.exists(entries.get(0)));
+    assertTrue(Files.exists(entries.get(1)));
+    /* too large */
+    new BytecodeCache(dir, 0, Duration.ofDays(1));
+    assertFalse(Files.exists(entries.get(1)));
+  }
+
+  @Test
+  void refusesUnkeyedPredicate(@TempDir final Path dir) throws IOException {
+    final var predicate = Main.predicate;
+    try {
+      Main.predicate = name -> name.startsWith("java/");
+      assertThrows(IllegalStateException.class, () -> new BytecodeCache(dir));
+      Main.predicate = new PrefixRules(predicate).exclude("com/acme/");
+      new BytecodeCache(dir);
+    } finally {
+      Main.predicate = predicate;
+    }
+  }
+}
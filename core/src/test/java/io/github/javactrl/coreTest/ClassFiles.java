@@ -0,0 +1,15 @@
+package io.github.javactrl.coreTest;
+
+import java.io.IOException;
+
+final class ClassFiles {
+
+  private ClassFiles() {}
+
+  /* the class file's content, as the class was compiled */
+  static byte[] classBytes(final Class<?> cls) throws IOException {
+    try (final var stream = cls.getResourceAsStream("/" + cls.getName().replace('.', '/') + ".class")) {
+      return stream.readAllBytes();
+    }
+  }
+}
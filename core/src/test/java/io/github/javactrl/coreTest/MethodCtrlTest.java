@@ -0,0 +1,69 @@
+package io.github.javactrl.coreTest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.github.javactrl.instrument.PrefixRules;
+import io.github.javactrl.rt.CThrowable;
+import io.github.javactrl.rt.Ctrl;
+import io.github.javactrl.rt.Unwind;
+import io.github.javactrl.rt.Wind;
+
+/* only the annotated methods of the class are instrumented */
+class MethodCtrlTest {
+
+  @Ctrl
+  String ask(final String question) throws CThrowable {
+    final String answer = Unwind.brkValue(question);
+    return question + " " + answer;
+  }
+
+  String askPlain(final String question) throws CThrowable {
+    final String answer = Unwind.brkValue(question);
+    return question + " " + answer;
+  }
+
+  @Test
+  void annotatedMethod() throws CThrowable {
+    try {
+      ask("who?");
+      fail("not unwound");
+    } catch (final Unwind e) {
+      assertEquals("ask", e.head.methodName, "the method isn't instrumented");
+      assertEquals("who? me", e.head.wind(Wind.createReturn("me")));
+    }
+  }
+
+  @Test
+  void notAnnotatedMethod() {
+    final var e = assertThrows(Unwind.class, () -> askPlain("who?"));
+    assertNull(e.head);
+  }
+
+  @Test
+  void prefixRules(@TempDir final Path dir) throws IOException {
+    final var rules = PrefixRules.defaults().exclude("com.acme.").include("com.acme.app.").exclude("com.acme.app.Hot");
+    assertTrue(rules.test("java/lang/String"));
+    assertTrue(rules.test("io/github/javactrl/rt/Unwind"));
+    assertFalse(rules.test("io/github/javactrl/coreTest/UnwindTest"));
+    assertTrue(rules.test("com/acme/util/Strings"));
+    assertFalse(rules.test("com/acme/app/Main"));
+    assertTrue(rules.test("com/acme/app/Hot"));
+    assertTrue(rules.test("com/acme/app/Hot$1"));
+    assertFalse(rules.test("com/acme"));
+    final var file = dir.resolve("rules.txt");
+    Files.write(file, List.of("# the application only", "-", "+com/acme/app/", "-com/acme/app/Hot"));
+    final var read = new PrefixRules(name -> false).read(file);
+    assertTrue(read.test("org/other/Lib"));
+    assertFalse(read.test("com/acme/app/Main"));
+    assertTrue(read.test("com/acme/app/Hot"));
+    assertEquals("-\n+com/acme/app/\n-com/acme/app/Hot\n", read.toString());
+  }
+}
@@ -0,0 +1,63 @@
+package io.github.javactrl.coreTest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static io.github.javactrl.coreTest.ClassFiles.classBytes;
+
+import io.github.javactrl.instrument.Main;
+import io.github.javactrl.instrument.Preinstrumenter;
+import io.github.javactrl.instrument.Transform;
+
+class PreinstrumenterTest {
+
+  private static final String NAME = "io/github/javactrl/coreTest/UnwindTest";
+
+  @Test
+  void usesPreparedClasses(@TempDir final Path dir) throws IOException {
+    final var list = dir.resolve("classes.txt");
+    Files.write(list, List.of(NAME, "io/github/javactrl/coreTest/Missing"));
+    final var calls = new AtomicInteger();
+    final var loader = getClass().getClassLoader();
+    final var preinstrumenter = new Preinstrumenter(list, loader, (l, data) -> {
+      calls.incrementAndGet();
+      return Transform.instrumentClass(data, Main.defaultCallPredicate);
+    });
+    preinstrumenter.start(2);
+    final var original = classBytes(UnwindTest.class);
+    final var expected = Transform.instrumentClass(original, Main.defaultCallPredicate);
+    assertArrayEquals(expected, preinstrumenter.instrumentClass(NAME, loader, original));
+    assertEquals(1, preinstrumenter.hits());
+    assertEquals(1, calls.get());
+    /* the prepared result is taken once */
+    assertArrayEquals(expected, preinstrumenter.instrumentClass(NAME, loader, original));
+    assertEquals(1, preinstrumenter.hits());
+    assertEquals(2, calls.get());
+    preinstrumenter.instrumentClass("io/github/javactrl/coreTest/MethodCtrlTest", loader, classBytes(MethodCtrlTest.class));
+    preinstrumenter.write();
+    assertEquals(List.of("io/github/javactrl/coreTest/MethodCtrlTest", NAME),
+        Files.readAllLines(list));
+  }
+
+  @Test
+  void checksContent(@TempDir final Path dir) throws IOException {
+    final var list = dir.resolve("classes.txt");
+    Files.write(list, List.of(NAME));
+    final var loader = getClass().getClassLoader();
+    final var preinstrumenter = new Preinstrumenter(list, loader,
+        (l, data) -> Transform.instrumentClass(data, Main.defaultCallPredicate));
+    preinstrumenter.start(1);
+    final var other = classBytes(MethodCtrlTest.class);
+    /* another loader, or another class file with the same name */
+    assertArrayEquals(Transform.instrumentClass(other, Main.defaultCallPredicate),
+        preinstrumenter.instrumentClass(NAME, loader, other));
+    assertEquals(0, preinstrumenter.hits());
+  }
+}
@@ -38,6 +38,7 @@ PrintStream getOut(SerializationTest t) {
 
   void prepareWrite(CallFrame frame) {
     for (var i = frame; i != null; i = i.next) {
+      i.unpack();
       for (var j = 0; j < i.v.length; ++j) {
         if (i.v[j] == out)
           i.v[j] = outPlaceholder;
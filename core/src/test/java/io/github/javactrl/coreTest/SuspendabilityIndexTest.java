@@ -0,0 +1,73 @@
+package io.github.javactrl.coreTest;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.github.javactrl.ext.CSupplier;
+import io.github.javactrl.instrument.SuspendabilityIndex;
+import io.github.javactrl.rt.CThrowable;
+import io.github.javactrl.rt.Unwind;
+
+class SuspendabilityIndexTest {
+
+  static final String OWNER = "io/github/javactrl/coreTest/SuspendabilityIndexTest";
+
+  static int plain(final int i) {
+    return i + 1;
+  }
+
+  static int suspending(final int i) throws CThrowable {
+    return Unwind.brkValue(i);
+  }
+
+  static int suspendingUnwind() throws IOException, Unwind {
+    throw new Unwind(null);
+  }
+
+  static int anything() throws Throwable {
+    return 0;
+  }
+
+  static int io() throws IOException {
+    return 0;
+  }
+
+  interface Source extends CSupplier<Object> {
+  }
+
+  static abstract class Base {
+    abstract void run() throws CThrowable;
+
+    void stop() {
+    }
+  }
+
+  static abstract class Derived extends Base {
+  }
+
+  @Test
+  void resolvesDeclarations() {
+    final var index = SuspendabilityIndex.forLoader(getClass().getClassLoader(), (owner, name) -> true);
+    assertFalse(index.test(OWNER, "plain", "(I)I"));
+    assertTrue(index.test(OWNER, "suspending", "(I)I"));
+    assertTrue(index.test(OWNER, "suspendingUnwind", "()I"));
+    assertTrue(index.test(OWNER, "anything", "()I"));
+    assertFalse(index.test(OWNER, "io", "()I"));
+    assertTrue(index.test(OWNER + "$Source", "get", "()Ljava/lang/Object;"));
+    assertFalse(index.test(OWNER + "$Source", "hashCode", "()I"));
+    assertTrue(index.test(OWNER + "$Derived", "run", "()V"));
+    assertFalse(index.test(OWNER + "$Derived", "stop", "()V"));
+    assertTrue(index.test("io/github/javactrl/coreTest/NoSuchClass", "run", "()V"));
+  }
+
+  @Test
+  void narrowsFallback() {
+    final var index = SuspendabilityIndex.forLoader(getClass().getClassLoader(),
+        (owner, name) -> !name.equals("suspending"));
+    assertFalse(index.test(OWNER, "suspending", "(I)I"));
+    assertTrue(index.test(OWNER, "anything", "()I"));
+  }
+}
@@ -2,17 +2,32 @@
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.stream.Stream;
 
 import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.util.CheckClassAdapter;
 import org.opentest4j.AssertionFailedError;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static io.github.javactrl.coreTest.ClassFiles.classBytes;
 
 import io.github.javactrl.ext.CFunction;
+import io.github.javactrl.instrument.Main;
+import io.github.javactrl.instrument.Profile;
+import io.github.javactrl.instrument.Transform;
 import io.github.javactrl.rt.CThrowable;
 import io.github.javactrl.rt.CallFrame;
 import io.github.javactrl.rt.Ctrl;
+import io.github.javactrl.rt.Preempt;
 import io.github.javactrl.rt.Unwind;
 import io.github.javactrl.rt.Wind;
 import io.github.javactrl.test.kit.Snapshot;
@@ -138,6 +153,408 @@ void unusedVarsCleanup() throws CThrowable {
     }
   }
 
+  static String deadVarsBody(final Object obj, final String str) throws CThrowable {
+    final var dead = obj.toString();
+    final var constant = 42;
+    final var copy = str;
+    final String ret = Unwind.brkValue(dead);
+    return format("%s,%s,%s,%s", ret, constant, copy, str);
+  }
+
+  @Test
+  void deadVarsCleanup() throws CThrowable {
+    final var obj = new Object();
+    try {
+      deadVarsBody(obj, "str");
+    } catch (final Unwind u) {
+      final var frame = u.head.next.unpack();
+      assertEquals(frame.methodName, "deadVarsBody", "the test isn't instrumented");
+      assertTrue(!Transform.SAVE_LIVE_ONLY || !Arrays.asList(frame.v).contains(obj));
+      out.println(format("resume1: %s", frame.<String, String>resume("ret")));
+      out.println(format("resume2: %s", frame.<String, String>resume("ret2")));
+    }
+  }
+
+  static long sumDown(final int n) throws CThrowable {
+    if (n == 0)
+      return Unwind.<Long, Integer>brkValue(n);
+    return n + sumDown(n - 1);
+  }
+
+  private String concatDown(final double scale, final int n) throws CThrowable {
+    if (n == 0)
+      return Unwind.brkValue(scale);
+    return n * scale + "," + concatDown(scale, n - 1);
+  }
+
+  @Test
+  void deepSameClassCalls() throws CThrowable {
+    try {
+      sumDown(100);
+      fail("not unwound");
+    } catch (final Unwind u) {
+      assertEquals(u.payload, 0);
+      out.println(format("sum1: %d", u.head.next.<Long, Long>resumeTop(1000L)));
+      out.println(format("sum2: %d", u.head.next.<Long, Long>resumeTop(0L)));
+    }
+    try {
+      concatDown(0.5, 3);
+      fail("not unwound");
+    } catch (final Unwind u) {
+      assertEquals(u.payload, 0.5);
+      out.println(format("concat: %s", u.head.next.<String, String>resumeTop("end")));
+    }
+  }
+
+  /* runs the action on a new thread with the stack's size */
+  static <T> T onStack(final long size, final Callable<T> action) throws Throwable {
+    final var result = new ArrayList<T>();
+    final var error = new Throwable[1];
+    final var thread = new Thread(null, () -> {
+      try {
+        result.add(action.call());
+      } catch (final Throwable e) {
+        error[0] = e;
+      }
+    }, "deepResume", size);
+    thread.start();
+    thread.join();
+    if (error[0] != null)
+      throw error[0];
+    return result.get(0);
+  }
+
+  @Test
+  void deepResume() throws Throwable {
+    /* the resume needs a constant stack, so a stack too small for the frames' recursion is enough */
+    final var head = onStack(1 << 20, () -> {
+      try {
+        sumDown(1000);
+        return null;
+      } catch (final CThrowable e) {
+        return ((Unwind) e).head;
+      }
+    });
+    out.println(format("sum: %d", onStack(1 << 18, () -> head.<Long, Long>resumeTop(0L))));
+  }
+
+  /* the Java stack's depth where the captured chain's last frame is resumed */
+  static int resumedDepth(final int n) throws CThrowable {
+    if (n == 0) {
+      Unwind.brkValue(n);
+      return StackWalker.getInstance().walk(Stream::count).intValue();
+    }
+    /* not a tail call, so the frame is captured */
+    final var ret = resumedDepth(n - 1);
+    return ret;
+  }
+
+  static int resumedDepthOf(final int depth) {
+    try {
+      resumedDepth(depth);
+      return -1;
+    } catch (final CThrowable e) {
+      return ((Unwind) e).head.resumeTop(null);
+    }
+  }
+
+  @Test
+  void resumeDoesntRecurse() {
+    /* the frames are resumed one by one from the same place, however long the chain is */
+    final var shallow = resumedDepthOf(10);
+    final var deep = resumedDepthOf(1000);
+    assertEquals(shallow, deep);
+    out.println(format("the same depth for 10 and 1000 frames: %b", shallow == deep));
+  }
+
+  static int sumSteps(final int n) throws CThrowable {
+    var sum = 0;
+    for (var i = 0; i < n; ++i)
+      sum += Unwind.<Integer, Integer>brkValue(i);
+    return sum;
+  }
+
+  static Object step(final CallFrame frame, final int value) {
+    return step(frame, value, true);
+  }
+
+  static Object step(final CallFrame frame, final int value, final boolean once) {
+    try {
+      return frame == null ? sumSteps(3) : once ? frame.resumeOnce(value) : frame.resume(value);
+    } catch (final CThrowable e) {
+      return ((Unwind) e).head;
+    }
+  }
+
+  @Test
+  void oneShotResume() {
+    final var frame = (CallFrame) step(null, 0);
+    assertSame(frame, step(frame, 10));
+    assertSame(frame, step(frame, 20));
+    out.println(format("sum: %s", step(frame, 30)));
+    final var e = assertThrows(IllegalStateException.class, () -> frame.resumeOnce(40));
+    out.println(format("resumed again: %s", e.getMessage()));
+    assertThrows(IllegalStateException.class, () -> frame.resumeTop(40));
+  }
+
+  @Test
+  void multiShotResume() {
+    final var frame = (CallFrame) step(null, 0);
+    final var first = (CallFrame) step(frame, 1, false);
+    final var second = (CallFrame) step(frame, 5, false);
+    final var third = (CallFrame) step(first, 10, false);
+    out.println(format("first: %s", step(third, 100, false)));
+    out.println(format("second: %s", step((CallFrame) step(second, 20, false), 200, true)));
+    out.println(format("third: %s", step(third, 1000, true)));
+    final var again = (CallFrame) step((CallFrame) step(frame, 7, false), 0, false);
+    out.println(format("frame: %s", step(again, 0, false)));
+  }
+
+  static int nextInt(final int i) throws CThrowable {
+    throw new Unwind(i);
+  }
+
+  static double average(final int n) throws CThrowable {
+    var sum = 0L;
+    for (var i = 0; i < n; ++i)
+      sum += nextInt(i);
+    return (double) sum / n;
+  }
+
+  static Object stepInt(final CallFrame frame, final int value) {
+    try {
+      return frame == null ? average(3) : frame.resumeInt(value);
+    } catch (final CThrowable e) {
+      return ((Unwind) e).head;
+    }
+  }
+
+  @Test
+  void primitiveResume() {
+    var result = stepInt(null, 0);
+    for (var i = 1; result instanceof CallFrame; ++i)
+      result = stepInt((CallFrame) result, i * 10);
+    out.println(format("average: %s", result));
+  }
+
+  static int countTail(final int depth, final int acc) throws CThrowable {
+    if (depth == 0)
+      return Unwind.<Integer, Integer>brkValue(acc);
+    return countTail(depth - 1, acc + 1);
+  }
+
+  @Test
+  void tailCalls() {
+    try {
+      countTail(100, 0);
+      fail();
+    } catch (final CThrowable e) {
+      final var u = (Unwind) e;
+      var length = 0;
+      for (var i = u.head; i != null; i = i.next)
+        ++length;
+      assertTrue(!Transform.TAIL_CALLS || length == 1);
+      out.println(format("payload: %s, result: %s", u.payload, u.head.resumeTop(42)));
+    }
+  }
+
+  /* not static and not private, so it isn't inlined */
+  char letter() throws CThrowable {
+    return Unwind.<Character, Character>brkValue('a');
+  }
+
+  /* the call's result is widened, so it isn't a tail call */
+  int letterCode() throws CThrowable {
+    return letter();
+  }
+
+  @Test
+  void widenedTailCall() {
+    try {
+      letterCode();
+      fail();
+    } catch (final CThrowable e) {
+      final int result = ((Unwind) e).head.resumeTop('x');
+      assertEquals('x', result);
+      out.println(format("result: %s", result));
+    }
+  }
+
+  /* the outermost instrumented frames, nothing is captured below them */
+  Object question() throws CThrowable {
+    return Unwind.brkValue("question");
+  }
+
+  <T> T typedQuestion() throws CThrowable {
+    return Unwind.brkValue("typedQuestion");
+  }
+
+  @Test
+  void outermostTailCall() {
+    try {
+      question();
+      fail();
+    } catch (final CThrowable e) {
+      final var u = (Unwind) e;
+      out.println(format("payload: %s, result: %s", u.payload, u.head.resumeTop("a")));
+    }
+    try {
+      this.<String>typedQuestion();
+      fail();
+    } catch (final CThrowable e) {
+      final var u = (Unwind) e;
+      out.println(format("payload: %s, result: %s", u.payload, u.head.resumeTop("b")));
+    }
+  }
+
+  static int ask(final int i) throws CThrowable {
+    return Unwind.<Integer, Integer>brkValue(i) * 2;
+  }
+
+  static int askBoth(final int i) throws CThrowable {
+    return ask(i) + ask(i + 1);
+  }
+
+  static Object stepAsk(final CallFrame frame, final int value) {
+    try {
+      return frame == null ? askBoth(1) : frame.resume(value);
+    } catch (final CThrowable e) {
+      return ((Unwind) e).head;
+    }
+  }
+
+  @Test
+  void inlinedCalls() {
+    final var frame = (CallFrame) stepAsk(null, 0);
+    var length = 0;
+    for (var i = frame; i != null; i = i.next)
+      ++length;
+    /* `ask` doesn't get its own frame */
+    assertEquals(Transform.INLINE_CALLS ? 1 : 2, length);
+    final var next = (CallFrame) stepAsk(frame, 10);
+    out.println(format("result: %s", stepAsk(next, 20)));
+  }
+
+  static int ratio(final int total, final int count) throws CThrowable {
+    if (count < 0)
+      Unwind.brkValue(count);
+    return total / count;
+  }
+
+  static int ratioPlusOne(final int total, final int count) throws CThrowable {
+    return ratio(total, count) + 1;
+  }
+
+  @Test
+  void inlinedLineNumbers() {
+    final var direct = assertThrows(ArithmeticException.class, () -> ratio(1, 0));
+    final var nested = assertThrows(ArithmeticException.class, () -> ratioPlusOne(1, 0));
+    /* both point to the division, inlined or not */
+    final var same = direct.getStackTrace()[0].getLineNumber() == nested.getStackTrace()[0].getLineNumber();
+    assertTrue(same);
+    out.println(format("the same line: %b", same));
+  }
+
+  static long sumTo(final int n) throws CThrowable {
+    var sum = 0L;
+    for (var i = 0; i < n; ++i)
+      sum += i;
+    return sum;
+  }
+
+  static Object stepSum(final CallFrame frame) {
+    Preempt.budget(5000);
+    try {
+      return frame == null ? sumTo(100000) : frame.resume(null);
+    } catch (final CThrowable e) {
+      assertTrue(e instanceof Preempt);
+      return ((Unwind) e).head;
+    } finally {
+      Preempt.budget(Long.MAX_VALUE);
+    }
+  }
+
+  @Test
+  void preemptedLoop() {
+    var result = stepSum(null);
+    var slices = 1;
+    for (; result instanceof CallFrame; ++slices)
+      result = stepSum((CallFrame) result);
+    assertEquals(Transform.YIELD_POINTS, slices > 1);
+    out.println(format("sum: %s", result));
+  }
+
+  static int twice(final int i) throws CThrowable {
+    return Unwind.<Integer, Integer>brkValue(i) + Unwind.<Integer, Integer>brkValue(i);
+  }
+
+  @Test
+  void inlineReport() throws IOException {
+    final var original = classBytes(UnwindTest.class);
+    final var report = Transform.inlineReport(original, Transform.instrumentClass(original));
+    final var twice = report.stream().filter(i -> i.contains(".twice$cc(")).count();
+    assertTrue(report.stream().noneMatch(i -> i.contains("$unwind$")));
+    out.println(format("twice handler's body reported: %d", twice));
+  }
+
+  @Test
+  void prescan() throws IOException {
+    final var ctrl = classBytes(UnwindTest.class);
+    final var plain = classBytes(Snapshot.class);
+    out.println(format("UnwindTest: %b, Snapshot: %b", Transform.isCandidate(ctrl), Transform.isCandidate(plain)));
+  }
+
+  @Test
+  void profiledBodies() throws IOException {
+    final var original = classBytes(UnwindTest.class);
+    final byte[] instrumented;
+    Transform.profile = new Profile(List.of("io/github/javactrl/coreTest/UnwindTest.askBoth:1"));
+    try {
+      instrumented = Transform.instrumentClass(original, Main.defaultCallPredicate);
+    } finally {
+      Transform.profile = null;
+    }
+    final var errors = new StringWriter();
+    CheckClassAdapter.verify(new ClassReader(instrumented), UnwindTest.class.getClassLoader(), false,
+        new PrintWriter(errors));
+    assertEquals("", errors.toString());
+    final var cls = new ClassNode();
+    new ClassReader(instrumented).accept(cls, 0);
+    final var guarded = new ArrayList<String>();
+    for (final var method : cls.methods) {
+      for (final var insn : method.instructions) {
+        if (insn instanceof MethodInsnNode && ((MethodInsnNode) insn).name.startsWith("$cc$guard$")) {
+          guarded.add(method.name);
+          break;
+        }
+      }
+    }
+    assertFalse(guarded.contains("askBoth"));
+    final var u = new Unwind();
+    assertTrue(CallFrame._missedCapture(u, UnwindTest.class, "ask") instanceof IllegalStateException);
+    u.escape = true;
+    assertSame(u, CallFrame._missedCapture(u, UnwindTest.class, "ask"));
+    out.println(format("ask is guarded: %b, stepAsk is guarded: %b", guarded.contains("ask"),
+        guarded.contains("stepAsk")));
+  }
+
+  static int escapeFrom(final int depth) throws CThrowable {
+    if (depth == 0)
+      return Unwind.escape("out");
+    return escapeFrom(depth - 1) + 1;
+  }
+
+  @Test
+  void escape() {
+    try {
+      escapeFrom(10);
+      fail();
+    } catch (final CThrowable e) {
+      final var u = (Unwind) e;
+      out.println(format("payload: %s, captured: %s", u.payload, u.head));
+    }
+  }
+
   String runSeveralUnwindsOnOneFrame() throws CThrowable {
     var counter = 0;
     try {
@@ -169,4 +169,54 @@ void nestedWindHandlerInSeveralFrames() throws Throwable {
     assertEquals("ret2(ret1(?3,3),2)", runNestedWindHandlerInSeveralFrames(false, false, false, false));
   }
 
+  int windThroughHandlers(final int rethrows) throws CThrowable {
+    var level = 0;
+    try {
+      try {
+        try {
+          try {
+            try {
+              level = Unwind.<Integer, Integer>brkValue(level);
+              out.println(format("after-raise: level=%d", level));
+            } catch (final Wind w3) {
+              level += 100;
+              out.println(format("in-wind-3: level=%d", level));
+              if (rethrows > 2)
+                throw w3;
+            }
+          } catch (final CThrowable t) {
+            out.println(format("CThrowable-catch-section: should be called only for unwind %s", t));
+            assertInstanceOf(Unwind.class, t);
+            throw t;
+          }
+        } catch (final Wind w2) {
+          level += 10;
+          out.println(format("in-wind-2: level=%d", level));
+          if (rethrows > 1)
+            throw w2;
+        }
+      } finally {
+        out.println(format("finally-section: level=%d", level));
+      }
+    } catch (final Wind w1) {
+      level += 1;
+      out.println(format("in-wind-1: level=%d", level));
+      if (rethrows > 0)
+        throw w1;
+    }
+    return level;
+  }
+
+  @Test
+  void deepWindHandlersInOneFrame() throws Throwable {
+    for (var i = 0; i <= 3; ++i) {
+      out.println(format("enter: rethrows=%d", i));
+      try {
+        windThroughHandlers(i);
+      } catch (final Unwind u) {
+        final int ret = u.head.resumeTop(1000);
+        out.println(format("resumed: %d", ret));
+      }
+    }
+  }
 }
@@ -108,7 +108,7 @@ public static <A> A pushPrompt(final Prompt<A> prompt, final CSupplier<A> block)
     } catch (final CCUnwind u) {
       if (u.prompt != prompt)
         throw u;
-      final var frame = u.head.next;
+      final var frame = u.escape ? null : u.head.next;
       final var body = (CFunction<SubCont<Object, A>, A>) u.body;
       return body.apply(new SubCont<Object, A>(frame));
     }
@@ -196,7 +196,11 @@ public static <A, B> A shift(final Prompt<B> prompt, final CFunction<CFunction<C
    * @throws CThrowable if itself captured
    */
   public static <A, B> A abort(final Prompt<B> prompt, final CSupplier<B> body) throws CThrowable {
-    return withSubCont(prompt, sk -> body.get());
+    /* the sub-continuation is dropped, so it isn't captured */
+    final var u = new CCUnwind(prompt, sk -> body.get());
+    u.escape = true;
+    final CSupplier<A> supplier = Unwind.brk(u);
+    return supplier.get();
   }
 
   /**
@@ -0,0 +1,102 @@
+package io.github.javactrl.gradle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.stream.Collectors;
+
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import io.github.javactrl.instrument.BatchTransform;
+import io.github.javactrl.instrument.BytecodeCache;
+import io.github.javactrl.instrument.Main;
+
+/** {@link InstrumentClasses}'s work, it runs in the worker process */
+public abstract class InstrumentAction implements WorkAction<InstrumentAction.Parameters> {
+
+  /** The work's parameters, see {@link InstrumentClasses} for their meaning */
+  public interface Parameters extends WorkParameters {
+    /**
+     * The compiled classes
+     *
+     * @return the directories
+     */
+    ConfigurableFileCollection getClassesDirs();
+
+    /**
+     * The classes the instrumented ones call
+     *
+     * @return the class path
+     */
+    ConfigurableFileCollection getClasspath();
+
+    /**
+     * The agent's options
+     *
+     * @return the options
+     */
+    ListProperty<String> getOptions();
+
+    /**
+     * The instrumented classes
+     *
+     * @return the directory
+     */
+    DirectoryProperty getOutputDirectory();
+
+    /**
+     * The results of the previous runs
+     *
+     * @return the directory
+     */
+    DirectoryProperty getCacheDirectory();
+  }
+
+  @Override
+  public void execute() {
+    final var parameters = getParameters();
+    final var output = parameters.getOutputDirectory().get().getAsFile().toPath();
+    try {
+      /* the worker process is reused, so all the options are set each time */
+      Main.configure(parameters.getOptions().get());
+      Main.classPath = parameters.getClassesDirs().plus(parameters.getClasspath()).getFiles().stream()
+          .map(File::toString).collect(Collectors.joining(File.pathSeparator));
+      /* the predicate's class loader would keep the class path's jars open in the reused worker */
+      try (final var callPredicate = Main.aotCallPredicate(null)) {
+        final var cache = new BytecodeCache(parameters.getCacheDirectory().get().getAsFile().toPath());
+        for (final var dir : parameters.getClassesDirs()) {
+          if (!dir.isDirectory())
+            continue;
+          final var root = dir.toPath();
+          try (final var files = Files.walk(root)) {
+            files.filter(Files::isRegularFile).parallel().forEach(i -> {
+              try {
+                final var path = root.relativize(i).toString();
+                final var target = output.resolve(path);
+                Files.createDirectories(target.getParent());
+                final var result = BatchTransform.isInstrumentable(path.replace(File.separatorChar, '/'))
+                    ? cache.instrumentClass(Files.readAllBytes(i), callPredicate)
+                    : null;
+                if (result == null)
+                  Files.copy(i, target, StandardCopyOption.REPLACE_EXISTING);
+                else
+                  Files.write(target, result);
+              } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+          }
+        }
+      }
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package io.github.javactrl.gradle;
+
+import javax.inject.Inject;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.IgnoreEmptyDirectories;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.SkipWhenEmpty;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.workers.WorkerExecutor;
+
+/**
+ * Instruments class directories into another directory, the classes which don't need it, and
+ * other files are copied.
+ *
+ * The instrumentation runs in a worker process, so different options of the projects don't mix in
+ * the static fields of {@link io.github.javactrl.instrument.Transform}. Besides the task's up to
+ * date checks and the build cache, each class's result is kept in the task's temporary directory
+ * (see {@link io.github.javactrl.instrument.BytecodeCache}), so after a change only the changed
+ * classes, and the classes calling the methods which changed their <code>throws</code> clauses, are
+ * instrumented again.
+ */
+@CacheableTask
+public abstract class InstrumentClasses extends DefaultTask {
+
+  /**
+   * Constructor
+   */
+  public InstrumentClasses() {
+    setGroup("build");
+  }
+
+  /**
+   * The compiled classes
+   *
+   * @return the directories
+   */
+  @InputFiles
+  @SkipWhenEmpty
+  @IgnoreEmptyDirectories
+  @PathSensitive(PathSensitivity.RELATIVE)
+  public abstract ConfigurableFileCollection getClassesDirs();
+
+  /**
+   * The classes the instrumented ones call, to find the methods which can suspend
+   *
+   * @return the class path
+   */
+  @Classpath
+  public abstract ConfigurableFileCollection getClasspath();
+
+  /**
+   * The agent's options (see {@link JavactrlExtension#getOptions()})
+   *
+   * @return the options
+   */
+  @Input
+  public abstract ListProperty<String> getOptions();
+
+  /**
+   * The jars of javactrl and ASM the instrumentation runs with
+   *
+   * @return the class path
+   */
+  @Classpath
+  public abstract ConfigurableFileCollection getEngineClasspath();
+
+  /**
+   * The instrumented classes
+   *
+   * @return the directory
+   */
+  @OutputDirectory
+  public abstract DirectoryProperty getOutputDirectory();
+
+  /**
+   * Injected service
+   *
+   * @return the service
+   */
+  @Inject
+  protected abstract WorkerExecutor getWorkerExecutor();
+
+  /**
+   * Injected service
+   *
+   * @return the service
+   */
+  @Inject
+  protected abstract FileSystemOperations getFileSystemOperations();
+
+  /** The task's action */
+  @TaskAction
+  public void instrument() {
+    /* the removed classes mustn't stay */
+    getFileSystemOperations().delete(spec -> spec.delete(getOutputDirectory()));
+    getWorkerExecutor().processIsolation(spec -> spec.getClasspath().from(getEngineClasspath()))
+        .submit(InstrumentAction.class, parameters -> {
+          parameters.getClassesDirs().from(getClassesDirs());
+          parameters.getClasspath().from(getClasspath());
+          parameters.getOptions().set(getOptions());
+          parameters.getOutputDirectory().set(getOutputDirectory());
+          parameters.getCacheDirectory().set(getTemporaryDir());
+        });
+  }
+}
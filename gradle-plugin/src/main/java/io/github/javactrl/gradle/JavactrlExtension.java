@@ -0,0 +1,15 @@
+package io.github.javactrl.gradle;
+
+import org.gradle.api.provider.ListProperty;
+
+/** The <code>javactrl</code> extension of the projects with {@link JavactrlPlugin} */
+public abstract class JavactrlExtension {
+
+  /**
+   * The instrumentation options, the same as the agent's ones (except <code>train</code>,
+   * <code>cache</code> and <code>preinstrument</code>), e.g. <code>options = ['lazy', 'dual']</code>
+   *
+   * @return the options, empty by default
+   */
+  public abstract ListProperty<String> getOptions();
+}
@@ -0,0 +1,72 @@
+package io.github.javactrl.gradle;
+
+import java.io.File;
+import java.net.URISyntaxException;
+
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.plugins.JavaPlugin;
+import org.gradle.api.tasks.SourceSet;
+import org.gradle.api.tasks.SourceSetContainer;
+
+/**
+ * Instruments the compiled classes of each source set at build time, so the jars and the tests
+ * run them without the java agent.
+ *
+ * For a source set it registers <code>instrument&lt;SourceSet&gt;Classes</code> task (see
+ * {@link InstrumentClasses}) reading the compilers' outputs, and the source set's classes
+ * directories are replaced with the task's output, so everything using them (<code>jar</code>,
+ * <code>test</code>, <code>run</code>, the dependent projects) takes the instrumented classes.
+ */
+public class JavactrlPlugin implements Plugin<Project> {
+  /* the classes needed to run the instrumentation, the worker's class path has their jars */
+  private static final String[] ENGINE = {
+      "io.github.javactrl.gradle.InstrumentAction",
+      "io.github.javactrl.instrument.Transform",
+      "org.objectweb.asm.ClassReader",
+      "org.objectweb.asm.tree.ClassNode",
+      "org.objectweb.asm.tree.analysis.Analyzer",
+      "org.objectweb.asm.commons.AnalyzerAdapter",
+      "org.objectweb.asm.util.CheckClassAdapter" };
+
+  @Override
+  public void apply(final Project project) {
+    final var extension = project.getExtensions().create("javactrl", JavactrlExtension.class);
+    project.getPlugins().withType(JavaPlugin.class, java -> {
+      final var engine = project.files((Object[]) engineClasspath());
+      project.getExtensions().getByType(SourceSetContainer.class)
+          .all(sourceSet -> configure(project, extension, engine, sourceSet));
+    });
+  }
+
+  private static void configure(final Project project, final JavactrlExtension extension,
+      final ConfigurableFileCollection engine, final SourceSet sourceSet) {
+    final var classesDirs = (ConfigurableFileCollection) sourceSet.getOutput().getClassesDirs();
+    final var compiled = project.files(classesDirs.getFrom().toArray()).builtBy(classesDirs.getBuiltBy().toArray());
+    final var task = project.getTasks().register(sourceSet.getTaskName("instrument", "classes"),
+        InstrumentClasses.class, i -> {
+          i.setDescription(String.format("Instruments %s classes with javactrl.", sourceSet.getName()));
+          i.getClassesDirs().from(compiled);
+          i.getClasspath().from(sourceSet.getCompileClasspath());
+          i.getOptions().set(extension.getOptions());
+          i.getEngineClasspath().from(engine);
+          i.getOutputDirectory().set(project.getLayout().getBuildDirectory().dir("javactrl/" + sourceSet.getName()));
+        });
+    classesDirs.setFrom(task.flatMap(InstrumentClasses::getOutputDirectory));
+  }
+
+  /* the jars (or directories) of the plugin, the core and ASM */
+  private static File[] engineClasspath() {
+    final var ret = new File[ENGINE.length];
+    for (var i = 0; i < ENGINE.length; ++i) {
+      try {
+        final var cls = Class.forName(ENGINE[i], false, JavactrlPlugin.class.getClassLoader());
+        ret[i] = new File(cls.getProtectionDomain().getCodeSource().getLocation().toURI());
+      } catch (final ClassNotFoundException | URISyntaxException e) {
+        throw new IllegalStateException("javactrl plugin's class path is incomplete", e);
+      }
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,89 @@
+package io.github.javactrl.gradle;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static java.lang.String.format;
+
+class JavactrlPluginTest {
+
+  static final String BUILD = String.join("\n",
+      "plugins {",
+      "  id 'application'",
+      "  id 'io.github.javactrl'",
+      "}",
+      "dependencies {",
+      "  implementation files('%s')",
+      "}",
+      "javactrl {",
+      "  options = ['check']",
+      "}",
+      "application {",
+      "  mainClass = 'sample.App'",
+      "}",
+      "");
+
+  static final String APP = String.join("\n",
+      "package sample;",
+      "",
+      "import io.github.javactrl.rt.CThrowable;",
+      "import io.github.javactrl.rt.Ctrl;",
+      "import io.github.javactrl.rt.Unwind;",
+      "import io.github.javactrl.rt.Wind;",
+      "",
+      "@Ctrl",
+      "public class App {",
+      "  static String greet() throws CThrowable {",
+      "    final String name = Unwind.brkValue(\"name?\");",
+      "    return \"Hello, \" + name;",
+      "  }",
+      "",
+      "  static String answer() throws CThrowable {",
+      "    try {",
+      "      return greet();",
+      "    } catch (final Unwind e) {",
+      "      return e.head.wind(Wind.createReturn(\"%s\"));",
+      "    }",
+      "  }",
+      "",
+      "  public static void main(final String[] args) throws CThrowable {",
+      "    System.out.println(answer());",
+      "  }",
+      "}",
+      "");
+
+  static void write(final Path dir, final String name) throws IOException {
+    final var source = dir.resolve("src/main/java/sample/App.java");
+    Files.createDirectories(source.getParent());
+    Files.writeString(source, format(APP, name));
+  }
+
+  static GradleRunner runner(final Path dir) {
+    return GradleRunner.create().withProjectDir(dir.toFile()).withPluginClasspath()
+        .withArguments("run", "--offline", "-q");
+  }
+
+  @Test
+  void runsWithoutAgent(@TempDir final Path dir) throws IOException {
+    Files.writeString(dir.resolve("settings.gradle"), "rootProject.name = 'sample'\n");
+    Files.writeString(dir.resolve("build.gradle"),
+        format(BUILD, System.getProperty("javactrl.core").replace("\\", "/")));
+    write(dir, "world");
+    final var first = runner(dir).build();
+    assertEquals("Hello, world", first.getOutput().trim());
+    assertEquals(TaskOutcome.SUCCESS, first.task(":instrumentClasses").getOutcome());
+    final var second = runner(dir).build();
+    assertEquals(TaskOutcome.UP_TO_DATE, second.task(":instrumentClasses").getOutcome());
+    write(dir, "again");
+    final var third = runner(dir).build();
+    assertEquals("Hello, again", third.getOutput().trim());
+    assertEquals(TaskOutcome.SUCCESS, third.task(":instrumentClasses").getOutcome());
+  }
+}